@@ -0,0 +1,61 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.jms.Message;
+
+/**
+ * An {@link EventListener} that receives the messages of a subscription in batches, a batch is
+ * delivered once it holds {@link #getMaxBatchSize()} messages or {@link #getMaxBatchWait()}
+ * milliseconds after its first message, whichever comes first. The messages of a batch are
+ * acknowledged together after {@link #onMessages(List)} returns, if it throws an exception they are
+ * redelivered. It can be subscribed through any of the {@link Event} subscribe methods.
+ */
+public interface BatchEventListener extends EventListener {
+	
+	int DEFAULT_MAX_BATCH_SIZE = 100;
+	
+	long DEFAULT_MAX_BATCH_WAIT = 1000;
+	
+	/**
+	 * Handles a batch of messages in the order they were received
+	 * 
+	 * @param messages the messages, never empty
+	 */
+	void onMessages(List<Message> messages);
+	
+	/**
+	 * @return the maximum number of messages in a batch
+	 */
+	default int getMaxBatchSize() {
+		return DEFAULT_MAX_BATCH_SIZE;
+	}
+	
+	/**
+	 * @return the maximum time in milliseconds to wait for a batch to fill up
+	 */
+	default long getMaxBatchWait() {
+		return DEFAULT_MAX_BATCH_WAIT;
+	}
+	
+	/**
+	 * Handles a single message as a batch of one
+	 * 
+	 * @see javax.jms.MessageListener#onMessage(Message)
+	 */
+	@Override
+	default void onMessage(Message message) {
+		onMessages(Collections.singletonList(message));
+	}
+	
+}
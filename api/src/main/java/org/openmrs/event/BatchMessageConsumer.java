@@ -0,0 +1,159 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jms.support.JmsUtils;
+
+/**
+ * Receives the messages of a subscription on its own thread and hands them to a
+ * {@link BatchEventListener} in batches. The session must use
+ * {@link Session#CLIENT_ACKNOWLEDGE}, each batch is acknowledged after the listener returns and
+ * recovered for redelivery if it throws an exception.
+ */
+class BatchMessageConsumer implements Runnable {
+	
+	private static final Logger log = LoggerFactory.getLogger(BatchMessageConsumer.class);
+	
+	private static final long JOIN_TIMEOUT = 5000;
+	
+	private final Session session;
+	
+	private final MessageConsumer consumer;
+	
+	private final BatchEventListener listener;
+	
+	private final boolean readOnlyMessages;
+	
+	private final PrefetchController prefetchController;
+	
+	private volatile boolean running;
+	
+	private Thread thread;
+	
+	/**
+	 * @param prefetchController records the time the listener takes per message, can be null
+	 */
+	BatchMessageConsumer(Session session, MessageConsumer consumer, BatchEventListener listener,
+	    boolean readOnlyMessages, PrefetchController prefetchController) {
+		this.session = session;
+		this.consumer = consumer;
+		this.listener = listener;
+		this.readOnlyMessages = readOnlyMessages;
+		this.prefetchController = prefetchController;
+	}
+	
+	synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "Event Batch Consumer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stops receiving messages and waits for the messages received so far to be delivered
+	 */
+	void close() {
+		running = false;
+		//Unblocks the pending receive call
+		JmsUtils.closeMessageConsumer(consumer);
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			thread = null;
+		}
+		if (t != null && t != Thread.currentThread()) {
+			try {
+				t.join(JOIN_TIMEOUT);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	@Override
+	public void run() {
+		int maxBatchSize = Math.max(1, listener.getMaxBatchSize());
+		long maxBatchWait = Math.max(1, listener.getMaxBatchWait());
+		List<Message> batch = new ArrayList<>(maxBatchSize);
+		while (running) {
+			try {
+				Message message = consumer.receive();
+				if (message == null) {
+					break;
+				}
+				batch.add(prepare(message));
+				long deadline = System.currentTimeMillis() + maxBatchWait;
+				while (running && batch.size() < maxBatchSize) {
+					long remaining = deadline - System.currentTimeMillis();
+					message = remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait();
+					if (message == null) {
+						break;
+					}
+					batch.add(prepare(message));
+				}
+				
+				deliver(batch);
+			}
+			catch (JMSException e) {
+				if (running) {
+					log.error("Failed to receive the messages for " + listener.getClass(), e);
+				}
+				break;
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+	
+	private void deliver(List<Message> batch) throws JMSException {
+		long start = System.nanoTime();
+		try {
+			listener.onMessages(new ArrayList<>(batch));
+		}
+		catch (RuntimeException e) {
+			log.error("Failed to handle a batch of " + batch.size() + " messages, they will be redelivered", e);
+			session.recover();
+			return;
+		}
+		finally {
+			if (prefetchController != null) {
+				prefetchController.record((System.nanoTime() - start) / batch.size());
+			}
+		}
+		//Acknowledges all the messages received by the session so far
+		batch.get(batch.size() - 1).acknowledge();
+	}
+	
+	private Message prepare(Message message) {
+		if (readOnlyMessages && message instanceof ActiveMQMessage) {
+			//The message can be shared with other listeners so they must not be able to modify it
+			((ActiveMQMessage) message).setReadOnlyBody(true);
+			((ActiveMQMessage) message).setReadOnlyProperties(true);
+		}
+		return message;
+	}
+	
+}
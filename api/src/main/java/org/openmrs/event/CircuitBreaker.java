@@ -0,0 +1,104 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+/**
+ * A simple circuit breaker that opens after a number of consecutive failures and lets a single
+ * trial call through once it has been open for a given duration. The breaker closes again when the
+ * trial call succeeds and opens for another period when it fails.
+ */
+public class CircuitBreaker {
+	
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	private final int failureThreshold;
+	
+	private final long openDuration;
+	
+	private State state = State.CLOSED;
+	
+	private int failures;
+	
+	private long openedAt;
+	
+	private long openedCount;
+	
+	/**
+	 * @param failureThreshold the number of consecutive failures after which the breaker opens
+	 * @param openDuration the time in milliseconds the breaker stays open before a trial call
+	 */
+	public CircuitBreaker(int failureThreshold, long openDuration) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openDuration = openDuration;
+	}
+	
+	/**
+	 * @return true if a call can be made, moves an open breaker to half open once its open duration
+	 *         has elapsed
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+			state = State.HALF_OPEN;
+			return true;
+		}
+		return state == State.CLOSED;
+	}
+	
+	public synchronized void recordSuccess() {
+		failures = 0;
+		state = State.CLOSED;
+	}
+	
+	public synchronized void recordFailure() {
+		failures++;
+		if (state == State.HALF_OPEN || failures >= failureThreshold) {
+			if (state != State.OPEN) {
+				openedCount++;
+			}
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Opens the breaker regardless of the number of failures, e.g. when the caller measures the failure
+	 * rate itself
+	 */
+	public synchronized void trip() {
+		if (state != State.OPEN) {
+			openedCount++;
+		}
+		state = State.OPEN;
+		openedAt = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @return true if the requests are refused, i.e. the breaker is open and the open duration has not
+	 *         elapsed yet or a trial request is in progress
+	 */
+	public synchronized boolean isRefusing() {
+		return state == State.HALF_OPEN || (state == State.OPEN && System.currentTimeMillis() - openedAt < openDuration);
+	}
+	
+	public synchronized State getState() {
+		return state;
+	}
+	
+	/**
+	 * @return the number of times the breaker opened
+	 */
+	public synchronized long getOpenedCount() {
+		return openedCount;
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.apache.activemq.broker.BrokerPlugin;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.ConstantPendingMessageLimitStrategy;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.broker.util.TimeStampingBrokerPlugin;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.apache.activemq.usage.SystemUsage;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * Builds the embedded broker from the broker global properties, a property that is not set leaves
+ * the ActiveMQ default in place
+ */
+public class EmbeddedBrokerFactory {
+	
+	private static final Logger log = LoggerFactory.getLogger(EmbeddedBrokerFactory.class);
+	
+	public static final String BROKER_NAME = "localhost";
+	
+	private static final long OFFLINE_DURABLE_SUBSCRIBER_CHECK_PERIOD = 60 * 60 * 1000L;
+	
+	/**
+	 * The persistence of the embedded broker
+	 */
+	public enum Profile {
+		/**
+		 * KahaDB with the default settings, every write to the journal is synced to disk
+		 */
+		PERSISTENT,
+		/**
+		 * Nothing is written to disk, undelivered events are lost when the broker stops
+		 */
+		MEMORY,
+		/**
+		 * KahaDB without disk syncs and with asynchronous index writes, undelivered events written in
+		 * the last moments before a crash can be lost
+		 */
+		ASYNC_KAHADB
+	}
+	
+	public static final int ASYNC_KAHADB_JOURNAL_MAX_FILE_LENGTH = 8 * 1024 * 1024;
+	
+	public static final int ASYNC_KAHADB_INDEX_CACHE_SIZE = 20000;
+	
+	private EmbeddedBrokerFactory() {
+	}
+	
+	/**
+	 * @return the profile set by the {@link EventConstants#GP_BROKER_PROFILE} global property
+	 */
+	public static Profile getProfile() {
+		String name = EventUtil.getGlobalProperty(EventConstants.GP_BROKER_PROFILE);
+		if (StringUtils.isNotBlank(name)) {
+			try {
+				return Profile.valueOf(name.trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) {
+				log.warn("Invalid broker profile {}, using {}", name, Profile.PERSISTENT);
+			}
+		}
+		return Profile.PERSISTENT;
+	}
+	
+	/**
+	 * Creates the broker with the profile set by the global properties, the broker is not started
+	 * 
+	 * @param dataDirectory the directory where the broker stores its data
+	 * @return the broker
+	 */
+	public static BrokerService createBroker(File dataDirectory) throws Exception {
+		Profile profile = getProfile();
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName(BROKER_NAME);
+		broker.setUseJmx(false);
+		broker.setDataDirectoryFile(dataDirectory);
+		
+		switch (profile) {
+			case MEMORY:
+				broker.setPersistent(false);
+				break;
+			case ASYNC_KAHADB:
+				broker.setPersistent(true);
+				KahaDBPersistenceAdapter kahaDB = createKahaDB(dataDirectory);
+				kahaDB.setEnableJournalDiskSyncs(false);
+				kahaDB.setEnableIndexWriteAsync(true);
+				kahaDB.setJournalMaxFileLength(EventUtil.getGlobalProperty(
+				    EventConstants.GP_BROKER_JOURNAL_MAX_FILE_LENGTH, ASYNC_KAHADB_JOURNAL_MAX_FILE_LENGTH));
+				kahaDB.setIndexCacheSize(
+				    EventUtil.getGlobalProperty(EventConstants.GP_BROKER_INDEX_CACHE_SIZE, ASYNC_KAHADB_INDEX_CACHE_SIZE));
+				broker.setPersistenceAdapter(kahaDB);
+				break;
+			default:
+				broker.setPersistent(true);
+				broker.setPersistenceAdapter(createKahaDB(dataDirectory));
+		}
+		
+		configureSystemUsage(broker.getSystemUsage());
+		broker.setDestinationPolicy(createPolicyMap());
+		
+		long offlineTimeout = EventUtil.getGlobalProperty(EventConstants.GP_BROKER_OFFLINE_DURABLE_SUBSCRIBER_TIMEOUT,
+		    EventConstants.DEFAULT_OFFLINE_DURABLE_SUBSCRIBER_TIMEOUT);
+		if (offlineTimeout > 0) {
+			//Bounds what is retained for the durable subscriptions of listeners that are gone
+			broker.setOfflineDurableSubscriberTimeout(offlineTimeout);
+			broker.setOfflineDurableSubscriberTaskSchedule(Math.min(offlineTimeout, OFFLINE_DURABLE_SUBSCRIBER_CHECK_PERIOD));
+		}
+		
+		long timeToLive = EventUtil.getGlobalProperty(EventConstants.GP_BROKER_MESSAGE_TIME_TO_LIVE, 0L);
+		if (timeToLive > 0) {
+			//Gives the events without an expiration one so that undelivered events don't accumulate
+			TimeStampingBrokerPlugin timeStamping = new TimeStampingBrokerPlugin();
+			timeStamping.setZeroExpirationOverride(timeToLive);
+			timeStamping.setTtlCeiling(timeToLive);
+			broker.setPlugins(new BrokerPlugin[] { timeStamping });
+		}
+		
+		log.info("Created the embedded broker with the {} profile in {}", profile, dataDirectory);
+		return broker;
+	}
+	
+	/**
+	 * Creates a KahaDB store in the location of the default store of the broker so that switching
+	 * profiles keeps the undelivered events, and applies the checkpoint and recovery global properties
+	 */
+	private static KahaDBPersistenceAdapter createKahaDB(File dataDirectory) {
+		KahaDBPersistenceAdapter kahaDB = new KahaDBPersistenceAdapter();
+		kahaDB.setDirectory(new File(new File(dataDirectory, BROKER_NAME), "KahaDB"));
+		kahaDB.setCheckpointInterval(
+		    EventUtil.getGlobalProperty(EventConstants.GP_BROKER_CHECKPOINT_INTERVAL, kahaDB.getCheckpointInterval()));
+		kahaDB.setCleanupInterval(
+		    EventUtil.getGlobalProperty(EventConstants.GP_BROKER_CLEANUP_INTERVAL, kahaDB.getCleanupInterval()));
+		kahaDB.setCheckForCorruptJournalFiles(EventUtil.getGlobalProperty(
+		    EventConstants.GP_BROKER_CHECK_FOR_CORRUPT_JOURNAL_FILES, kahaDB.isCheckForCorruptJournalFiles()));
+		kahaDB.setIgnoreMissingJournalfiles(EventUtil.getGlobalProperty(
+		    EventConstants.GP_BROKER_IGNORE_MISSING_JOURNAL_FILES, kahaDB.isIgnoreMissingJournalfiles()));
+		return kahaDB;
+	}
+	
+	private static void configureSystemUsage(SystemUsage usage) {
+		usage.getMemoryUsage().setLimit(
+		    EventUtil.getGlobalProperty(EventConstants.GP_BROKER_MEMORY_LIMIT, usage.getMemoryUsage().getLimit()));
+		usage.getStoreUsage()
+		        .setLimit(EventUtil.getGlobalProperty(EventConstants.GP_BROKER_STORE_LIMIT, usage.getStoreUsage().getLimit()));
+		usage.getTempUsage()
+		        .setLimit(EventUtil.getGlobalProperty(EventConstants.GP_BROKER_TEMP_LIMIT, usage.getTempUsage().getLimit()));
+		log.info("Embedded broker limits: memory={}, store={}, temp={}", usage.getMemoryUsage().getLimit(),
+		    usage.getStoreUsage().getLimit(), usage.getTempUsage().getLimit());
+	}
+	
+	/**
+	 * Creates the policy applied to all the topics
+	 */
+	private static PolicyMap createPolicyMap() {
+		PolicyEntry policy = new PolicyEntry();
+		policy.setTopic(">");
+		policy.setProducerFlowControl(
+		    EventUtil.getGlobalProperty(EventConstants.GP_BROKER_PRODUCER_FLOW_CONTROL, policy.isProducerFlowControl()));
+		long memoryLimit = EventUtil.getGlobalProperty(EventConstants.GP_BROKER_DESTINATION_MEMORY_LIMIT, 0L);
+		if (memoryLimit > 0) {
+			policy.setMemoryLimit(memoryLimit);
+		}
+		policy.setCursorMemoryHighWaterMark(EventUtil.getGlobalProperty(
+		    EventConstants.GP_BROKER_CURSOR_MEMORY_HIGH_WATER_MARK, policy.getCursorMemoryHighWaterMark()));
+		int pendingMessageLimit = EventUtil.getGlobalProperty(EventConstants.GP_BROKER_PENDING_MESSAGE_LIMIT, 0);
+		if (pendingMessageLimit > 0) {
+			//The oldest pending events of a subscriber that falls behind are discarded
+			ConstantPendingMessageLimitStrategy strategy = new ConstantPendingMessageLimitStrategy();
+			strategy.setLimit(pendingMessageLimit);
+			policy.setPendingMessageLimitStrategy(strategy);
+		}
+		long expireMessagesPeriod = EventUtil.getGlobalProperty(EventConstants.GP_BROKER_EXPIRE_MESSAGES_PERIOD, 0L);
+		if (expireMessagesPeriod > 0) {
+			policy.setExpireMessagesPeriod(expireMessagesPeriod);
+		}
+		
+		PolicyMap policyMap = new PolicyMap();
+		policyMap.setDefaultEntry(policy);
+		return policyMap;
+	}
+}
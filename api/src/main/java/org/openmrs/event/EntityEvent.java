@@ -9,23 +9,56 @@
  */
 package org.openmrs.event;
 
-import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import org.openmrs.OpenmrsObject;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * Represents a particular action performed on a particular OpenmrsObject entity
  */
 @Data
-@AllArgsConstructor
 public class EntityEvent implements Serializable {
 	
 	private OpenmrsObject entity;
 	
 	private Event.Action action;
 	
+	/**
+	 * The roles of the collections owned by the entity that changed, only tracked for UPDATED events
+	 * and not taken into account when comparing events
+	 */
+	@EqualsAndHashCode.Exclude
+	private Set<String> changedCollections;
+	
+	public EntityEvent(OpenmrsObject entity, Event.Action action) {
+		this.entity = entity;
+		this.action = action;
+	}
+	
+	/**
+	 * @return the roles of the changed collections, never null
+	 */
+	public Set<String> getChangedCollections() {
+		return changedCollections != null ? changedCollections : Collections.emptySet();
+	}
+	
+	/**
+	 * Records that the collection with the specified role was changed
+	 * 
+	 * @param role the collection role e.g. org.openmrs.Concept.names
+	 */
+	public void addChangedCollection(String role) {
+		if (changedCollections == null) {
+			changedCollections = new LinkedHashSet<>();
+		}
+		changedCollections.add(role);
+	}
+	
 	@Override
 	public String toString() {
 		return action + " " + entity.getClass().getSimpleName() + "[" + entity.getUuid() + "]";
@@ -9,10 +9,15 @@
  */
 package org.openmrs.event;
 
+import org.openmrs.api.context.Context;
+
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -48,6 +53,18 @@ public class Event {
 		eventEngine.fireAction(action, object);
 	}
 	
+	/**
+	 * Fires the action for the specified object, the message includes the specified properties in
+	 * addition to the uuid, classname and action
+	 * 
+	 * @param action
+	 * @param object
+	 * @param properties additional properties to include in the message, can be null
+	 */
+	public static void fireAction(String action, final Object object, EventMessage properties) {
+		eventEngine.fireAction(action, object, properties);
+	}
+	
 	public static void fireEvent(final Destination dest, final Object object) {
 		eventEngine.fireEvent(dest, object);
 	}
@@ -63,6 +80,48 @@ public class Event {
 		eventEngine.fireEvent(topicName, eventMessage);
 	}
 	
+	/**
+	 * Fires the action for the specified object without waiting for the broker
+	 * 
+	 * @param action
+	 * @param object
+	 * @param properties additional properties to include in the message, can be null
+	 * @return a future completed once the broker has accepted the event
+	 * @see #fireAction(String, Object, EventMessage)
+	 */
+	public static CompletableFuture<Void> fireActionAsync(String action, final Object object, EventMessage properties) {
+		return eventEngine.fireActionAsync(action, object, properties);
+	}
+	
+	/**
+	 * Fires an event to the specified topic without waiting for the broker
+	 * 
+	 * @param topicName
+	 * @param eventMessage
+	 * @return a future completed once the broker has accepted the event, or completed exceptionally if
+	 *         it failed to be sent
+	 * @see #fireEvent(String, EventMessage)
+	 */
+	public static CompletableFuture<Void> fireEventAsync(String topicName, EventMessage eventMessage) {
+		return eventEngine.fireEventAsync(topicName, eventMessage);
+	}
+	
+	/**
+	 * Fires several events to the specified topic without waiting for the broker, when there is no
+	 * publish queue the events are sent in a single transaction by a background thread which also
+	 * starts the engine if needed, the future fails right away if too many calls are waiting for it.
+	 * While buffering or while the engine is warming up the events are buffered or held in order with
+	 * the events fired synchronously.
+	 * 
+	 * @param topicName
+	 * @param eventMessages
+	 * @return a future completed once the broker has accepted all the events or they are buffered or
+	 *         held, or completed exceptionally if any of them failed to be sent
+	 */
+	public static CompletableFuture<Void> fireEvents(String topicName, Collection<EventMessage> eventMessages) {
+		return eventEngine.fireEvents(topicName, eventMessages);
+	}
+	
 	/**
 	 * Creates a subscription for the specified class and action, if action is null, the subscription is
 	 * created for all the actions
@@ -101,6 +160,20 @@ public class Event {
 		eventEngine.subscribe(topicName, listener);
 	}
 	
+	/**
+	 * Creates a subscription to the topic with the specified name using the specified options instead
+	 * of the ones of the listener
+	 * 
+	 * @param topicName
+	 * @param listener
+	 * @param options the options of the subscription, e.g. its acknowledge mode
+	 * @throws org.openmrs.api.APIException if the other subscriptions of the listener have other
+	 *             {@link SubscriptionOptions#getExecutorSettings() executor settings}
+	 */
+	public static void subscribe(String topicName, EventListener listener, SubscriptionOptions options) {
+		eventEngine.subscribe(topicName, listener, options);
+	}
+	
 	/**
 	 * Removes the subscription associated to the specified class and action, if action is null all
 	 * subscriptions associated to the class are dropped
@@ -136,7 +209,8 @@ public class Event {
 	}
 	
 	/**
-	 * Creates subscriptions for the specified {@link Destination}
+	 * Creates subscriptions for the specified {@link Destination}, a {@link BatchEventListener}
+	 * receives the messages in batches
 	 * 
 	 * @param destination e.g. org.openmrs.Patient.CREATED or org.openmrs.Patient.DELETED
 	 * @param listenerToRegister
@@ -145,6 +219,20 @@ public class Event {
 		eventEngine.subscribe(destination, listenerToRegister);
 	}
 	
+	/**
+	 * Creates subscriptions for the specified {@link Destination} using the specified options instead
+	 * of the ones of the listener
+	 * 
+	 * @param destination e.g. org.openmrs.Patient.CREATED or org.openmrs.Patient.DELETED
+	 * @param listenerToRegister
+	 * @param options the options of the subscription, e.g. its acknowledge mode
+	 * @throws org.openmrs.api.APIException if the other subscriptions of the listener have other
+	 *             {@link SubscriptionOptions#getExecutorSettings() executor settings}
+	 */
+	public static void subscribe(Destination destination, EventListener listenerToRegister, SubscriptionOptions options) {
+		eventEngine.subscribe(destination, listenerToRegister, options);
+	}
+	
 	/**
 	 * Removes the subscription associated to the specified {@link Destination}
 	 * 
@@ -158,6 +246,35 @@ public class Event {
 		eventEngine.unsubscribe(dest, listener);
 	}
 	
+	/**
+	 * Closes the durable subscription of the listener to the topic if active and removes it along with
+	 * the messages the broker retains for it
+	 * 
+	 * @param topicName the name of the topic
+	 * @param listenerId the listener id from the subscription options or else the class name of the
+	 *            listener
+	 */
+	public static void removeDurableSubscription(String topicName, String listenerId) {
+		eventEngine.removeDurableSubscription(topicName, listenerId);
+	}
+	
+	/**
+	 * Closes all the subscriptions of the listener without scanning the class hierarchy, waits for the
+	 * messages being delivered to it
+	 * 
+	 * @param listener the listener to unsubscribe
+	 */
+	public static void unsubscribeAll(EventListener listener) {
+		eventEngine.unsubscribeAll(listener);
+	}
+	
+	/**
+	 * Closes all the subscriptions, waits for the messages being delivered
+	 */
+	public static void unsubscribeAll() {
+		eventEngine.unsubscribeAll();
+	}
+	
 	/**
 	 * Called by spring application context. It needs to be non static, but it acts like static.
 	 * 
@@ -200,7 +317,72 @@ public class Event {
 	}
 	
 	/**
-	 * Closes the underlying shared connection which will close the broker too under the hood
+	 * Returns the queue the messages a listener still failed to handle after its retries are sent to,
+	 * with the original topic, the number of attempts and the last error as properties
+	 * 
+	 * @param listenerId the id of the listener, see {@link SubscriptionOptions#getListenerId(EventListener)}
+	 * @return the dead letter queue
+	 */
+	public static Destination getDeadLetterQueue(String listenerId) {
+		return eventEngine.getDeadLetterQueue(listenerId);
+	}
+	
+	/**
+	 * Subscribes the listeners to their objects and actions including subclasses, the class hierarchy
+	 * is scanned once for all the listeners and the listeners are subscribed in parallel
+	 * 
+	 * @param listeners the listeners to subscribe
+	 * @throws org.openmrs.api.APIException if any listener fails to subscribe, once the others are
+	 *             subscribed
+	 */
+	public static void subscribeAll(Collection<? extends SubscribableEventListener> listeners) {
+		eventEngine.subscribeAll(listeners);
+	}
+	
+	/**
+	 * Holds the events fired with {@link #fireAction(String, Object)} and {@link #fireEvent(String,
+	 * EventMessage)} until {@link #stopBuffering()} is called, e.g. while the subscriptions are being
+	 * created so that the subscribers don't miss them. When the buffer is full, the threads firing
+	 * events wait for it to be sent so that the events stay in order, for at most the
+	 * {@link EventConstants#GP_WARM_UP_TIMEOUT} after which their events are sent ahead of the
+	 * buffered ones.
+	 * 
+	 * @param maxSize the maximum number of events to hold
+	 */
+	public static void startBuffering(int maxSize) {
+		eventEngine.startBuffering(maxSize);
+	}
+	
+	/**
+	 * Sends the buffered events in the order they were fired and stops buffering
+	 */
+	public static void stopBuffering() {
+		eventEngine.stopBuffering();
+	}
+	
+	/**
+	 * Starts the broker and creates the connection in the background, firing waits for it to complete
+	 * for at most the warm up timeout, after which the events are held until it completes. Subscribing
+	 * waits for it however long it takes.
+	 */
+	public static void warmUp() {
+		eventEngine.warmUp();
+	}
+	
+	/**
+	 * @return the metrics of the event engine and the outbox relay by name, e.g. publishQueue.depth
+	 *         or outbox.lagMillis
+	 */
+	public static Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>(eventEngine.getStatistics());
+		for (EventOutboxRelay relay : Context.getRegisteredComponents(EventOutboxRelay.class)) {
+			relay.getStatistics().forEach((name, value) -> statistics.put("outbox." + name, value));
+		}
+		return statistics;
+	}
+	
+	/**
+	 * Closes the underlying shared connection and stops the embedded broker
 	 */
 	public static void shutdown() {
 		eventEngine.shutdown();
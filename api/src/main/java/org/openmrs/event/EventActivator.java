@@ -11,16 +11,14 @@ package org.openmrs.event;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.OpenmrsObject;
-import org.openmrs.event.Event.Action;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.event.api.db.hibernate.HibernateEventInterceptor;
 import org.openmrs.module.BaseModuleActivator;
 import org.openmrs.module.DaemonToken;
 import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.util.HandlerUtil;
 
-import java.util.Collection;
-import java.util.List;
-
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
  */
@@ -28,41 +26,127 @@ public class EventActivator extends BaseModuleActivator implements DaemonTokenAw
 	
 	protected Log log = LogFactory.getLog(getClass());
 	
+	private static final long SUBSCRIPTION_TIMEOUT = 30000;
+	
+	/**
+	 * The thread subscribing the listeners in the background, null once they are subscribed
+	 */
+	private volatile Thread subscriptionThread;
+	
 	@Override
 	public void started() {
 		log.info("Event Module started");
-		List<SubscribableEventListener> listeners = HandlerUtil.getHandlersForType(SubscribableEventListener.class, null);
-		try (EventClassScannerThreadHolder holder = new EventClassScannerThreadHolder()) {
-			for (SubscribableEventListener listener : listeners) {
-				Collection<String> actions = listener.subscribeToActions();
-				for (Class<? extends OpenmrsObject> clazz : listener.subscribeToObjects()) {
-					Event.subscribe(clazz, actions, listener);
-				}
+		configure();
+		Event.warmUp();
+		
+		//Events fired before the listeners are subscribed are held and sent once they are
+		Event.startBuffering(EventUtil.getGlobalProperty(EventConstants.GP_STARTUP_BUFFER_SIZE,
+		    EventConstants.DEFAULT_STARTUP_BUFFER_SIZE));
+		Runnable subscribe = () -> {
+			try {
+				Event.subscribeAll(HandlerUtil.getHandlersForType(SubscribableEventListener.class, null));
 			}
+			catch (RuntimeException e) {
+				log.error("Failed to subscribe the event listeners", e);
+			}
+			finally {
+				Event.stopBuffering();
+				subscriptionThread = null;
+			}
+		};
+		DaemonToken daemonToken = TransactionEventListener.getDaemonToken();
+		if (daemonToken != null) {
+			subscriptionThread = Daemon.runInDaemonThread(subscribe, daemonToken);
+		} else {
+			Thread thread = new Thread(subscribe, "Event Listener Subscriber");
+			thread.setDaemon(true);
+			subscriptionThread = thread;
+			thread.start();
 		}
 	}
 	
 	@Override
 	public void stopped() {
 		log.info("Event Module stopped");
+		awaitSubscriptions();
 		try {
-			List<SubscribableEventListener> listeners = HandlerUtil.getHandlersForType(SubscribableEventListener.class,
-			    null);
-			try (EventClassScannerThreadHolder holder = new EventClassScannerThreadHolder()) {
-				for (SubscribableEventListener listener : listeners) {
-					for (Class<? extends OpenmrsObject> clazz : listener.subscribeToObjects()) {
-						for (String action : listener.subscribeToActions()) {
-							Event.unsubscribe(clazz, Action.valueOf(action), listener);
-						}
-					}
-				}
-			}
+			Event.unsubscribeAll();
 		}
 		finally {
+			for (EventOutboxRelay relay : Context.getRegisteredComponents(EventOutboxRelay.class)) {
+				relay.stop();
+			}
+			for (JmsEventPublisher publisher : Context.getRegisteredComponents(JmsEventPublisher.class)) {
+				EventCoalescer coalescer = publisher.getCoalescer();
+				publisher.setCoalescer(null);
+				if (coalescer != null) {
+					coalescer.stop();
+				}
+			}
 			Event.shutdown();
 		}
 	}
 	
+	/**
+	 * Waits for the listeners to be subscribed for at most {@link #SUBSCRIPTION_TIMEOUT}
+	 */
+	void awaitSubscriptions() {
+		Thread thread = subscriptionThread;
+		if (thread != null) {
+			try {
+				thread.join(SUBSCRIPTION_TIMEOUT);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (thread.isAlive()) {
+				log.warn("Timed out waiting for the event listeners to be subscribed");
+			}
+		}
+	}
+	
+	/**
+	 * Applies the module's global properties to its components
+	 */
+	protected void configure() {
+		EventAggregator aggregator = EventAggregator.parse(EventUtil.getGlobalProperty(EventConstants.GP_AGGREGATION_RULES));
+		if (!aggregator.isEmpty()) {
+			log.info("Aggregating child events with rules " + aggregator.getRules());
+		}
+		boolean outboxEnabled = EventUtil.getGlobalProperty(EventConstants.GP_OUTBOX_ENABLED, false);
+		long coalescingWindow = EventUtil.getGlobalProperty(EventConstants.GP_COALESCING_WINDOW, 0L);
+		long coalescingMaxDelay = EventUtil.getGlobalProperty(EventConstants.GP_COALESCING_MAX_DELAY,
+		    EventConstants.DEFAULT_COALESCING_MAX_DELAY);
+		String coalescedClasses = EventUtil.getGlobalProperty(EventConstants.GP_COALESCING_CLASSES);
+		for (JmsEventPublisher publisher : Context.getRegisteredComponents(JmsEventPublisher.class)) {
+			publisher.setAggregator(aggregator);
+			publisher.setOutboxEnabled(outboxEnabled);
+			EventCoalescer coalescer = EventCoalescer.parse(coalescingWindow, coalescingMaxDelay, coalescedClasses);
+			if (coalescer != null) {
+				coalescer.start();
+			}
+			EventCoalescer previous = publisher.getCoalescer();
+			publisher.setCoalescer(coalescer);
+			if (previous != null) {
+				previous.stop();
+			}
+		}
+		if (outboxEnabled) {
+			int batchSize = EventUtil.getGlobalProperty(EventConstants.GP_OUTBOX_BATCH_SIZE,
+			    EventConstants.DEFAULT_OUTBOX_BATCH_SIZE);
+			long pollInterval = EventUtil.getGlobalProperty(EventConstants.GP_OUTBOX_POLL_INTERVAL,
+			    EventConstants.DEFAULT_OUTBOX_POLL_INTERVAL);
+			for (EventOutboxRelay relay : Context.getRegisteredComponents(EventOutboxRelay.class)) {
+				relay.start(batchSize, pollInterval);
+			}
+		}
+		
+		boolean mergeNestedTransactions = EventUtil.getGlobalProperty(EventConstants.GP_MERGE_NESTED_TRANSACTIONS, false);
+		for (HibernateEventInterceptor interceptor : Context.getRegisteredComponents(HibernateEventInterceptor.class)) {
+			interceptor.setMergeNestedTransactions(mergeNestedTransactions);
+		}
+	}
+	
 	@Override
 	public void setDaemonToken(DaemonToken daemonToken) {
 		TransactionEventListener.setDaemonToken(daemonToken);
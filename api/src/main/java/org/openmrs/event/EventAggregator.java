@@ -0,0 +1,202 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Hibernate;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.api.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.PropertyAccessorFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Folds the events of child entities into a single event for their parent entity e.g. the events
+ * for all the Obs saved with an Encounter into the Encounter event. The child events are listed in
+ * the message fired for the parent event, see {@link EventMessage#CHILD_EVENTS}. Rules can be
+ * chained e.g. PersonName to Person and Person to Patient, the events are then folded into the event
+ * of the top level ancestor.
+ */
+public class EventAggregator {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventAggregator.class);
+	
+	/**
+	 * The actions of the parent events the child events are folded into, by preference
+	 */
+	private static final Event.Action[] PARENT_ACTIONS = { Event.Action.CREATED, Event.Action.PURGED,
+	        Event.Action.UPDATED, Event.Action.VOIDED, Event.Action.RETIRED, Event.Action.UNVOIDED,
+	        Event.Action.UNRETIRED };
+	
+	@Getter
+	private final List<Rule> rules;
+	
+	/**
+	 * A rule specifying the property used to get the parent of a child entity
+	 */
+	@Getter
+	public static class Rule {
+		
+		private final Class<?> childClass;
+		
+		private final String parentProperty;
+		
+		public Rule(Class<?> childClass, String parentProperty) {
+			this.childClass = childClass;
+			this.parentProperty = parentProperty;
+		}
+		
+		/**
+		 * Gets the parent of the child entity, a lazy parent is loaded so that the class and uuid of
+		 * the parent can still be read once the session is closed
+		 * 
+		 * @param child the child entity
+		 * @return the parent of the child entity or null if it has none
+		 */
+		public OpenmrsObject getParent(OpenmrsObject child) {
+			Object parent = Hibernate.unproxy(
+			    PropertyAccessorFactory.forBeanPropertyAccess(child).getPropertyValue(parentProperty));
+			return parent instanceof OpenmrsObject ? (OpenmrsObject) parent : null;
+		}
+		
+		@Override
+		public String toString() {
+			return childClass.getName() + ":" + parentProperty;
+		}
+	}
+	
+	public EventAggregator(List<Rule> rules) {
+		this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+	}
+	
+	/**
+	 * Parses rules in the form childClassname:parentProperty separated by commas, invalid rules are
+	 * logged and ignored
+	 * 
+	 * @param rules the rules to parse, e.g. org.openmrs.Obs:encounter,org.openmrs.PersonName:person
+	 * @return the aggregator
+	 */
+	public static EventAggregator parse(String rules) {
+		List<Rule> parsedRules = new ArrayList<>();
+		for (String rule : StringUtils.split(StringUtils.defaultString(rules), ',')) {
+			String[] parts = StringUtils.split(rule.trim(), ':');
+			if (parts.length != 2) {
+				log.warn("Ignoring invalid aggregation rule: {}", rule);
+				continue;
+			}
+			try {
+				parsedRules.add(new Rule(Context.loadClass(parts[0].trim()), parts[1].trim()));
+			}
+			catch (ClassNotFoundException e) {
+				log.warn("Ignoring aggregation rule for unknown class: {}", rule);
+			}
+		}
+		return new EventAggregator(parsedRules);
+	}
+	
+	/**
+	 * @return true if there are no rules to apply
+	 */
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+	
+	/**
+	 * Folds the child events into the events of their top level ancestors, if an ancestor has no event
+	 * an UPDATED event is added for it
+	 * 
+	 * @param events the events of a transaction
+	 * @return the remaining events in order mapped to the events folded into them in order
+	 */
+	public Map<EntityEvent, List<EntityEvent>> aggregate(Collection<EntityEvent> events) {
+		Map<EntityEvent, List<EntityEvent>> aggregated = new LinkedHashMap<>();
+		for (EntityEvent event : events) {
+			aggregated.put(event, Collections.emptyList());
+		}
+		if (rules.isEmpty()) {
+			return aggregated;
+		}
+		
+		//The ancestors are resolved before any event is folded, a top level ancestor is never folded
+		Map<EntityEvent, OpenmrsObject> ancestors = new LinkedHashMap<>();
+		for (EntityEvent event : events) {
+			OpenmrsObject ancestor = getTopLevelAncestor(event.getEntity());
+			if (ancestor != null) {
+				ancestors.put(event, ancestor);
+			}
+		}
+		for (Map.Entry<EntityEvent, OpenmrsObject> entry : ancestors.entrySet()) {
+			EntityEvent parentEvent = getParentEvent(aggregated, entry.getValue());
+			List<EntityEvent> children = aggregated.get(parentEvent);
+			if (children.isEmpty()) {
+				children = new ArrayList<>();
+				aggregated.put(parentEvent, children);
+			}
+			children.add(entry.getKey());
+			aggregated.remove(entry.getKey());
+		}
+		
+		return aggregated;
+	}
+	
+	/**
+	 * @return the last ancestor found by following the rules or null if the entity has no parent
+	 */
+	private OpenmrsObject getTopLevelAncestor(OpenmrsObject entity) {
+		Set<OpenmrsObject> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		visited.add(entity);
+		OpenmrsObject ancestor = null;
+		OpenmrsObject parent = getParent(entity);
+		//Stops at a cycle in the rules e.g. between an entity and its parent
+		while (parent != null && visited.add(parent)) {
+			ancestor = parent;
+			parent = getParent(parent);
+		}
+		return ancestor;
+	}
+	
+	private OpenmrsObject getParent(OpenmrsObject entity) {
+		for (Rule rule : rules) {
+			if (rule.getChildClass().isInstance(entity)) {
+				try {
+					return rule.getParent(entity);
+				}
+				catch (RuntimeException e) {
+					// e.g. the parent is a proxy that can't be loaded, the child event is fired on its own
+					log.debug("Failed to get the parent of {} for rule {}", entity, rule, e);
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+	
+	private EntityEvent getParentEvent(Map<EntityEvent, List<EntityEvent>> aggregated, OpenmrsObject parent) {
+		for (Event.Action action : PARENT_ACTIONS) {
+			EntityEvent candidate = new EntityEvent(parent, action);
+			if (aggregated.containsKey(candidate)) {
+				return candidate;
+			}
+		}
+		EntityEvent parentEvent = new EntityEvent(parent, Event.Action.UPDATED);
+		aggregated.put(parentEvent, Collections.emptyList());
+		return parentEvent;
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Collapses the UPDATED events fired for the same entity within a time window into a single event
+ * that carries the number of updates in {@link EventMessage#COALESCED_COUNT}. The window restarts
+ * with each update but an event is never held for longer than the max delay after the first update
+ * it carries. Only the classes the coalescer is configured with are coalesced. A PURGED event
+ * discards the pending UPDATED event of the entity and any other action sends it right away, so
+ * subscribers still see the actions of an entity in order.
+ */
+public class EventCoalescer {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventCoalescer.class);
+	
+	private static final Set<String> MERGED_PROPERTIES = new HashSet<>(
+	        Arrays.asList(EventMessage.CHANGED_COLLECTIONS, EventMessage.CHILD_EVENTS));
+	
+	private static class PendingEvent {
+		
+		private final String topicName;
+		
+		private final EventMessage eventMessage;
+		
+		private final long firstTime;
+		
+		private long deadline;
+		
+		private int count;
+		
+		private PendingEvent(String topicName, EventMessage eventMessage, long firstTime) {
+			this.topicName = topicName;
+			this.eventMessage = eventMessage;
+			this.firstTime = firstTime;
+		}
+	}
+	
+	private final long window;
+	
+	private final long maxDelay;
+	
+	private final Set<String> classnames;
+	
+	private final BiConsumer<String, EventMessage> sender;
+	
+	private final Map<String, PendingEvent> pendingEvents = new ConcurrentHashMap<>();
+	
+	private ScheduledExecutorService executor;
+	
+	/**
+	 * @param window the time in milliseconds to wait for another update of an entity
+	 * @param maxDelay the maximum time in milliseconds an update can be held
+	 * @param classnames the names of the classes to coalesce the UPDATED events of
+	 */
+	public EventCoalescer(long window, long maxDelay, Collection<String> classnames) {
+		this(window, maxDelay, classnames, Event::fireEvent);
+	}
+	
+	EventCoalescer(long window, long maxDelay, Collection<String> classnames, BiConsumer<String, EventMessage> sender) {
+		this.window = window;
+		this.maxDelay = Math.max(window, maxDelay);
+		this.classnames = Collections.unmodifiableSet(new LinkedHashSet<>(classnames));
+		this.sender = sender;
+	}
+	
+	/**
+	 * Creates a coalescer from the comma separated names of the classes to coalesce
+	 * 
+	 * @return the coalescer or null if the window is not positive or there are no classes
+	 */
+	public static EventCoalescer parse(long window, long maxDelay, String classnames) {
+		if (window <= 0 || StringUtils.isBlank(classnames)) {
+			return null;
+		}
+		Set<String> names = new LinkedHashSet<>();
+		for (String classname : StringUtils.split(classnames, ',')) {
+			if (StringUtils.isNotBlank(classname)) {
+				names.add(classname.trim());
+			}
+		}
+		return names.isEmpty() ? null : new EventCoalescer(window, maxDelay, names);
+	}
+	
+	public Set<String> getClassnames() {
+		return classnames;
+	}
+	
+	public long getWindow() {
+		return window;
+	}
+	
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+	
+	/**
+	 * @return the number of entities with a pending UPDATED event
+	 */
+	public int getPendingCount() {
+		return pendingEvents.size();
+	}
+	
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Event Coalescer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long tick = Math.max(10, window / 10);
+		executor.scheduleWithFixedDelay(this::sendDueEvents, tick, tick, TimeUnit.MILLISECONDS);
+		log.info("Coalescing the UPDATED events of {} within {}ms", classnames, window);
+	}
+	
+	/**
+	 * Stops the coalescer and sends all the pending events
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			executor = null;
+		}
+		send(takeEvents(Long.MAX_VALUE));
+	}
+	
+	/**
+	 * Holds the UPDATED events of the coalesced classes and sends or discards the pending UPDATED
+	 * event of the entity as needed for other actions
+	 * 
+	 * @param topicName the name of the topic the event is fired to
+	 * @param classname the name of the class of the entity
+	 * @param uuid the uuid of the entity
+	 * @param eventMessage the message to fire
+	 * @return true if the event is held and must not be fired by the caller
+	 */
+	public boolean coalesce(String topicName, String classname, String uuid, EventMessage eventMessage) {
+		if (uuid == null || !classnames.contains(classname)) {
+			return false;
+		}
+		
+		String updatedTopicName = Event.Action.UPDATED.name() + EventEngine.DELIMITER + classname;
+		String key = updatedTopicName + EventEngine.DELIMITER + uuid;
+		if (topicName.equals(updatedTopicName)) {
+			long now = System.currentTimeMillis();
+			pendingEvents.compute(key, (k, pending) -> {
+				if (pending == null) {
+					pending = new PendingEvent(topicName, new EventMessage(), now);
+				}
+				merge(pending.eventMessage, eventMessage);
+				pending.count++;
+				pending.eventMessage.put(EventMessage.COALESCED_COUNT, pending.count);
+				pending.deadline = Math.min(now + window, pending.firstTime + maxDelay);
+				return pending;
+			});
+			return true;
+		}
+		
+		PendingEvent pending = pendingEvents.remove(key);
+		if (pending != null) {
+			if (topicName.startsWith(Event.Action.PURGED.name() + EventEngine.DELIMITER)) {
+				log.debug("Discarded {} coalesced updates of purged {} {}", pending.count, classname, uuid);
+			} else {
+				sender.accept(pending.topicName, pending.eventMessage);
+			}
+		}
+		return false;
+	}
+	
+	private static void merge(EventMessage target, EventMessage source) {
+		for (Map.Entry<String, Serializable> entry : source.entrySet()) {
+			Serializable existing = target.get(entry.getKey());
+			if (existing != null && entry.getValue() != null && MERGED_PROPERTIES.contains(entry.getKey())) {
+				Set<String> values = new LinkedHashSet<>(Arrays.asList(StringUtils.split(existing.toString(), ',')));
+				values.addAll(Arrays.asList(StringUtils.split(entry.getValue().toString(), ',')));
+				target.put(entry.getKey(), StringUtils.join(values, ','));
+			} else {
+				target.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	private void sendDueEvents() {
+		try {
+			List<PendingEvent> dueEvents = takeEvents(System.currentTimeMillis());
+			if (dueEvents.isEmpty()) {
+				return;
+			}
+			DaemonToken daemonToken = TransactionEventListener.getDaemonToken();
+			if (daemonToken != null) {
+				Daemon.runInDaemonThreadAndWait(() -> send(dueEvents), daemonToken);
+			} else {
+				send(dueEvents);
+			}
+		}
+		catch (Exception e) {
+			log.error("Failed to send the coalesced events", e);
+		}
+	}
+	
+	private List<PendingEvent> takeEvents(long now) {
+		List<PendingEvent> dueEvents = new ArrayList<>();
+		for (String key : pendingEvents.keySet()) {
+			//Remove atomically so that an update arriving meanwhile starts a new pending event
+			pendingEvents.computeIfPresent(key, (k, pending) -> {
+				if (pending.deadline <= now) {
+					dueEvents.add(pending);
+					return null;
+				}
+				return pending;
+			});
+		}
+		dueEvents.sort((e1, e2) -> Long.compare(e1.firstTime, e2.firstTime));
+		return dueEvents;
+	}
+	
+	private void send(List<PendingEvent> events) {
+		for (PendingEvent event : events) {
+			try {
+				sender.accept(event.topicName, event.eventMessage);
+			}
+			catch (RuntimeException e) {
+				log.error("Failed to send the coalesced " + event.topicName + " event", e);
+			}
+		}
+	}
+}
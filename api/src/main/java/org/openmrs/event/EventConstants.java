@@ -0,0 +1,210 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+/**
+ * Constants used by the event module
+ */
+public final class EventConstants {
+	
+	private EventConstants() {
+	}
+	
+	public static final String GP_EXTERNAL_URL = "activeMQ.externalUrl";
+	
+	/**
+	 * Comma separated child to parent aggregation rules in the form childClassname:parentProperty
+	 * e.g. org.openmrs.Obs:encounter,org.openmrs.PersonName:person
+	 */
+	public static final String GP_AGGREGATION_RULES = "event.aggregation.rules";
+	
+	/**
+	 * When true, the events of committed nested transactions are published once with the events of
+	 * the outermost transaction
+	 */
+	public static final String GP_MERGE_NESTED_TRANSACTIONS = "event.mergeNestedTransactions";
+	
+	/**
+	 * When true, events are written to the event_outbox table in the same transaction as the changes
+	 * and fired by a background relay
+	 */
+	public static final String GP_OUTBOX_ENABLED = "event.outbox.enabled";
+	
+	public static final String GP_OUTBOX_BATCH_SIZE = "event.outbox.batchSize";
+	
+	public static final String GP_OUTBOX_POLL_INTERVAL = "event.outbox.pollInterval";
+	
+	public static final int DEFAULT_OUTBOX_BATCH_SIZE = 100;
+	
+	public static final long DEFAULT_OUTBOX_POLL_INTERVAL = 1000;
+	
+	/**
+	 * When true, events are sent to the broker by a background thread from a bounded queue so that a
+	 * slow or unavailable broker doesn't hold up the threads firing them
+	 */
+	public static final String GP_PUBLISH_QUEUE_ENABLED = "event.publishQueue.enabled";
+	
+	/**
+	 * The maximum number of events in the publish queue, without a publish queue the maximum number of
+	 * asynchronous fire calls waiting to be sent
+	 */
+	public static final String GP_PUBLISH_QUEUE_CAPACITY = "event.publishQueue.capacity";
+	
+	/**
+	 * One of BLOCK, DROP_OLDEST or SPILL
+	 */
+	public static final String GP_PUBLISH_QUEUE_OVERFLOW_POLICY = "event.publishQueue.overflowPolicy";
+	
+	/**
+	 * The maximum number of events the publish queue sends to the broker in one transaction
+	 */
+	public static final String GP_PUBLISH_QUEUE_MAX_BATCH_SIZE = "event.publishQueue.maxBatchSize";
+	
+	public static final String GP_PUBLISH_QUEUE_BLOCK_TIMEOUT = "event.publishQueue.blockTimeout";
+	
+	public static final String GP_PUBLISH_QUEUE_FAILURE_THRESHOLD = "event.publishQueue.failureThreshold";
+	
+	public static final String GP_PUBLISH_QUEUE_OPEN_DURATION = "event.publishQueue.openDuration";
+	
+	public static final int DEFAULT_PUBLISH_QUEUE_CAPACITY = 10000;
+	
+	public static final long DEFAULT_PUBLISH_QUEUE_BLOCK_TIMEOUT = 100;
+	
+	public static final int DEFAULT_PUBLISH_QUEUE_FAILURE_THRESHOLD = 5;
+	
+	public static final long DEFAULT_PUBLISH_QUEUE_OPEN_DURATION = 30000;
+	
+	/**
+	 * The time in milliseconds within which repeated UPDATED events of an entity are collapsed into
+	 * one, 0 disables coalescing
+	 */
+	public static final String GP_COALESCING_WINDOW = "event.coalescing.window";
+	
+	public static final String GP_COALESCING_MAX_DELAY = "event.coalescing.maxDelay";
+	
+	/**
+	 * Comma separated names of the classes to coalesce the UPDATED events of e.g.
+	 * org.openmrs.Patient,org.openmrs.Visit
+	 */
+	public static final String GP_COALESCING_CLASSES = "event.coalescing.classes";
+	
+	public static final long DEFAULT_COALESCING_MAX_DELAY = 5000;
+	
+	/**
+	 * The name of an {@link EventEngine.ConnectionProfile} applied before the other connection
+	 * properties
+	 */
+	public static final String GP_CONNECTION_PROFILE = "event.connection.profile";
+	
+	/**
+	 * When true, persistent messages are sent without waiting for the broker to store them
+	 */
+	public static final String GP_CONNECTION_USE_ASYNC_SEND = "event.connection.useAsyncSend";
+	
+	/**
+	 * The number of bytes of asynchronously sent messages a producer can have unacknowledged before it
+	 * waits for the broker, 0 for no limit
+	 */
+	public static final String GP_CONNECTION_PRODUCER_WINDOW_SIZE = "event.connection.producerWindowSize";
+	
+	public static final String GP_CONNECTION_OPTIMIZE_ACKNOWLEDGE = "event.connection.optimizeAcknowledge";
+	
+	public static final String GP_CONNECTION_DISPATCH_ASYNC = "event.connection.dispatchAsync";
+	
+	public static final String GP_CONNECTION_COPY_MESSAGE_ON_SEND = "event.connection.copyMessageOnSend";
+	
+	/**
+	 * The maximum number of threads shared by the sessions of the subscriptions to dispatch messages,
+	 * 0 for the ActiveMQ default
+	 */
+	public static final String GP_CONNECTION_SESSION_THREAD_POOL_SIZE = "event.connection.sessionThreadPoolSize";
+	
+	/**
+	 * The name of the {@link EmbeddedBrokerFactory.Profile} of the embedded broker
+	 */
+	public static final String GP_BROKER_PROFILE = "event.broker.profile";
+	
+	public static final String GP_BROKER_JOURNAL_MAX_FILE_LENGTH = "event.broker.journalMaxFileLength";
+	
+	public static final String GP_BROKER_INDEX_CACHE_SIZE = "event.broker.indexCacheSize";
+	
+	public static final String GP_BROKER_MEMORY_LIMIT = "event.broker.memoryLimit";
+	
+	public static final String GP_BROKER_STORE_LIMIT = "event.broker.storeLimit";
+	
+	public static final String GP_BROKER_TEMP_LIMIT = "event.broker.tempLimit";
+	
+	public static final String GP_BROKER_PRODUCER_FLOW_CONTROL = "event.broker.producerFlowControl";
+	
+	public static final String GP_BROKER_DESTINATION_MEMORY_LIMIT = "event.broker.destinationMemoryLimit";
+	
+	public static final String GP_BROKER_CURSOR_MEMORY_HIGH_WATER_MARK = "event.broker.cursorMemoryHighWaterMark";
+	
+	/**
+	 * The number of pending events a subscriber can fall behind by before the oldest ones are discarded
+	 */
+	public static final String GP_BROKER_PENDING_MESSAGE_LIMIT = "event.broker.pendingMessageLimit";
+	
+	/**
+	 * The time in milliseconds after which undelivered events expire
+	 */
+	public static final String GP_BROKER_MESSAGE_TIME_TO_LIVE = "event.broker.messageTimeToLive";
+	
+	public static final String GP_BROKER_EXPIRE_MESSAGES_PERIOD = "event.broker.expireMessagesPeriod";
+	
+	/**
+	 * The time in milliseconds firing and subscribing wait for the event engine to start when it is
+	 * warming up, the events fired after it are held and sent once the engine has started
+	 */
+	public static final String GP_WARM_UP_TIMEOUT = "event.warmUpTimeout";
+	
+	public static final long DEFAULT_WARM_UP_TIMEOUT = 30000;
+	
+	public static final String GP_BROKER_CHECKPOINT_INTERVAL = "event.broker.checkpointInterval";
+	
+	public static final String GP_BROKER_CLEANUP_INTERVAL = "event.broker.cleanupInterval";
+	
+	public static final String GP_BROKER_CHECK_FOR_CORRUPT_JOURNAL_FILES = "event.broker.checkForCorruptJournalFiles";
+	
+	public static final String GP_BROKER_IGNORE_MISSING_JOURNAL_FILES = "event.broker.ignoreMissingJournalFiles";
+	
+	/**
+	 * The maximum number of events held while the listeners are subscribed when the module starts, the
+	 * threads firing events wait for the buffer to be sent when it is full
+	 */
+	public static final String GP_STARTUP_BUFFER_SIZE = "event.startupBufferSize";
+	
+	public static final int DEFAULT_STARTUP_BUFFER_SIZE = 10000;
+	
+	/**
+	 * The client ID of the connection of the durable subscriptions, the shared connection has none so
+	 * that other connections to the broker can be made. Blank uses {@link #DEFAULT_EMBEDDED_CLIENT_ID}
+	 * with the embedded broker and no client ID with an external one
+	 */
+	public static final String GP_CONNECTION_CLIENT_ID = "event.connection.clientId";
+	
+	public static final String DEFAULT_EMBEDDED_CLIENT_ID = "openmrs";
+	
+	/**
+	 * The time in milliseconds after which the embedded broker removes a durable subscription that is
+	 * not connected along with the events it retains, 0 to keep it forever
+	 */
+	public static final String GP_BROKER_OFFLINE_DURABLE_SUBSCRIBER_TIMEOUT = "event.broker.offlineDurableSubscriberTimeout";
+	
+	public static final long DEFAULT_OFFLINE_DURABLE_SUBSCRIBER_TIMEOUT = 7 * 24 * 60 * 60 * 1000L;
+	
+	/**
+	 * The maximum number of retries pending across the listeners, a message failing while they are
+	 * pending is sent to the dead letter queue of its listener without being retried
+	 */
+	public static final String GP_MAX_PENDING_RETRIES = "event.maxPendingRetries";
+	
+	public static final int DEFAULT_MAX_PENDING_RETRIES = 10000;
+}
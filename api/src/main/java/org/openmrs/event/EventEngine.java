@@ -12,13 +12,29 @@ package org.openmrs.event;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import javax.jms.Destination;
@@ -26,23 +42,30 @@ import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
 import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
 import javax.jms.Topic;
 import javax.jms.TopicConnection;
 import javax.jms.TopicSession;
 import javax.jms.TopicSubscriber;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.usage.SystemUsage;
 import org.apache.commons.lang3.StringUtils;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.APIException;
-import org.openmrs.api.AdministrationService;
-import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.event.SubscriptionOptions.AcknowledgeMode;
+import org.openmrs.module.DaemonToken;
 import org.openmrs.util.OpenmrsUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.openmrs.util.PrivilegeConstants;
 import org.springframework.jms.connection.SingleConnectionFactory;
 import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.support.JmsUtils;
 
 /**
  * Used by {@link Event}.
@@ -51,14 +74,154 @@ public class EventEngine {
 	
 	protected final static String DELIMITER = ":";
 	
+	/**
+	 * Sets of connection settings selected with the {@link EventConstants#GP_CONNECTION_PROFILE}
+	 * global property
+	 */
+	public enum ConnectionProfile {
+		/**
+		 * The ActiveMQ defaults
+		 */
+		DEFAULT,
+		/**
+		 * For the embedded broker, messages are passed by reference instead of being copied on send and
+		 * are delivered on the dispatching thread, messages are made read only before they reach the
+		 * listeners since they can be shared
+		 */
+		IN_VM
+	}
+	
 	protected static Logger log = LoggerFactory.getLogger(EventEngine.class);
 	
-	protected JmsTemplate jmsTemplate = null;
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 10000;
+	
+	private static final String SESSION_THREAD_NAME = SessionTaskRunnerFactory.THREAD_NAME;
+	
+	/**
+	 * The prefix of the names of the dead letter queues, followed by the listener id
+	 */
+	public static final String DEAD_LETTER_QUEUE_PREFIX = "DLQ" + DELIMITER;
+	
+	protected volatile JmsTemplate jmsTemplate = null;
+	
+	protected Map<String, TopicSubscriber> subscribers = new ConcurrentHashMap<String, TopicSubscriber>();
+	
+	/**
+	 * The sessions of the subscribers by the same keys
+	 */
+	protected Map<String, TopicSession> sessions = new ConcurrentHashMap<String, TopicSession>();
 	
-	protected Map<String, TopicSubscriber> subscribers = new HashMap<String, TopicSubscriber>();
+	/**
+	 * The consumers delivering the messages of the subscriptions of batch listeners by the same keys
+	 */
+	protected Map<String, BatchMessageConsumer> batchConsumers = new ConcurrentHashMap<String, BatchMessageConsumer>();
+	
+	/**
+	 * The prefetch controllers of the subscriptions with a configured prefetch by the same keys
+	 */
+	protected Map<String, PrefetchController> prefetchControllers = new ConcurrentHashMap<String, PrefetchController>();
+	
+	/**
+	 * The executors of the listeners that handle their messages concurrently by listener class name,
+	 * shared by all the subscriptions of a listener. The messages of each topic are delivered by its
+	 * own session so the messages for an entity are only in order within a topic
+	 */
+	protected Map<String, OrderedExecutor> listenerExecutors = new ConcurrentHashMap<String, OrderedExecutor>();
+	
+	/**
+	 * The settings the listener executors were created with by the same keys
+	 */
+	private final Map<String, String> listenerExecutorSettings = new ConcurrentHashMap<String, String>();
 	
 	protected SingleConnectionFactory connectionFactory;
 	
+	protected volatile EventPublishQueue publishQueue;
+	
+	/**
+	 * The embedded broker, null when an external broker is used
+	 */
+	protected volatile BrokerService broker;
+	
+	/**
+	 * Sends batches of events in a single transaction
+	 */
+	protected volatile JmsTemplate batchJmsTemplate;
+	
+	/**
+	 * Sends the events fired asynchronously when there is no publish queue or while buffering, guarded
+	 * by {@link #asyncSenderLock}
+	 */
+	private ExecutorService asyncSender;
+	
+	/**
+	 * Guards the async sender apart from the engine so that firing asynchronously doesn't wait for the
+	 * engine to start
+	 */
+	private final Object asyncSenderLock = new Object();
+	
+	private volatile CountDownLatch warmUpLatch;
+	
+	/**
+	 * Holds the events fired after waiting for the warm up timed out, sent by the warm up thread once
+	 * the engine is initialized, guarded by itself
+	 */
+	private final List<EventPublishQueue.PendingEvent> warmUpBacklog = new ArrayList<>();
+	
+	private volatile long warmUpTimeout;
+	
+	private volatile long initializationMillis;
+	
+	private volatile long brokerStartMillis;
+	
+	private static final int SUBSCRIBE_PARALLELISM = 4;
+	
+	/**
+	 * Holds the events fired while buffering, guarded by itself
+	 */
+	private final List<EventPublishQueue.PendingEvent> buffer = new ArrayList<>();
+	
+	private volatile boolean buffering;
+	
+	private volatile int bufferSize;
+	
+	/**
+	 * The time in milliseconds a thread waits for room in the full buffer
+	 */
+	private volatile long bufferTimeout;
+	
+	/**
+	 * When true, delivered messages are made read only before they are passed to the listeners
+	 */
+	protected volatile boolean readOnlyMessages;
+	
+	/**
+	 * The client ID of the connection of the durable subscriptions, null if they are not supported
+	 */
+	protected volatile String clientId;
+	
+	/**
+	 * Creates the connection of the durable subscriptions with the client ID once one is made, the
+	 * shared connection has no client ID so that other connections to the broker can be made. Null if
+	 * there is no client ID.
+	 */
+	protected volatile SingleConnectionFactory durableConnectionFactory;
+	
+	/**
+	 * Retries the failed deliveries of the subscriptions with retries, created with the first one
+	 */
+	protected volatile RetryScheduler retryScheduler;
+	
+	/**
+	 * Acknowledges the partial batches of the subscriptions acknowledging in batches and resumes the
+	 * subscriptions catching up, created with the first one
+	 */
+	private ScheduledExecutorService listenerTimer;
+	
+	/**
+	 * The names of the durable subscriptions by the keys of their subscribers
+	 */
+	protected Map<String, String> durableSubscriptions = new ConcurrentHashMap<String, String>();
+	
 	/**
 	 * This inner class holds the context for managing a subscription. Basically it serves to simplify
 	 * using the {@link EventClassScanner} to manage subscriptions for a specific class
@@ -116,18 +279,59 @@ public class EventEngine {
 		fireEvent(key, object);
 	}
 	
+	/**
+	 * @see Event#fireAction(String, Object, EventMessage)
+	 */
+	public void fireAction(String action, final Object object, EventMessage properties) {
+		if (properties == null || properties.isEmpty()) {
+			fireAction(action, object);
+			return;
+		}
+		
+		Destination key = getDestination(object.getClass(), action);
+		fireEvent(key, object, properties);
+	}
+	
 	/**
 	 * @see Event#fireEvent(Destination, Object)
 	 */
 	public void fireEvent(final Destination dest, final Object object) {
+		fireEvent(dest, object, null);
+	}
+	
+	/**
+	 * Fires an event for the specified object, the specified properties are added to the message
+	 * after the uuid, classname and action which they can't override
+	 * 
+	 * @param dest the destination
+	 * @param object the object the event is fired for
+	 * @param properties additional properties to include in the message, can be null
+	 */
+	public void fireEvent(final Destination dest, final Object object, EventMessage properties) {
+		String uuid = object instanceof OpenmrsObject ? ((OpenmrsObject) object).getUuid() : null;
+		doFireEvent(dest, createEventMessage(uuid, object.getClass().getName(), getAction(dest), properties));
+	}
+	
+	/**
+	 * Creates the message fired for an entity
+	 * 
+	 * @param uuid the uuid of the entity, can be null
+	 * @param classname the classname of the entity
+	 * @param action the action
+	 * @param properties additional properties that can't override the others, can be null
+	 * @return the message
+	 */
+	static EventMessage createEventMessage(String uuid, String classname, String action, EventMessage properties) {
 		EventMessage eventMessage = new EventMessage();
-		if (object instanceof OpenmrsObject) {
-			eventMessage.put("uuid", ((OpenmrsObject) object).getUuid());
+		if (uuid != null) {
+			eventMessage.put("uuid", uuid);
 		}
-		eventMessage.put("classname", object.getClass().getName());
-		eventMessage.put("action", getAction(dest));
-		
-		doFireEvent(dest, eventMessage);
+		eventMessage.put("classname", classname);
+		eventMessage.put("action", action);
+		if (properties != null) {
+			properties.forEach(eventMessage::putIfAbsent);
+		}
+		return eventMessage;
 	}
 	
 	/**
@@ -140,22 +344,268 @@ public class EventEngine {
 		doFireEvent(getDestination(topicName), eventMessage);
 	}
 	
-	private void doFireEvent(final Destination dest, final EventMessage eventMessage) {
-		initializeIfNeeded();
+	/**
+	 * @see Event#fireActionAsync(String, Object, EventMessage)
+	 */
+	public CompletableFuture<Void> fireActionAsync(String action, final Object object, EventMessage properties) {
+		String uuid = object instanceof OpenmrsObject ? ((OpenmrsObject) object).getUuid() : null;
+		String classname = object.getClass().getName();
+		return fireEventAsync(action + DELIMITER + classname, createEventMessage(uuid, classname, action, properties));
+	}
+	
+	/**
+	 * @see Event#fireEventAsync(String, EventMessage)
+	 */
+	public CompletableFuture<Void> fireEventAsync(String topicName, EventMessage eventMessage) {
+		return fireEvents(topicName, Collections.singletonList(eventMessage));
+	}
+	
+	/**
+	 * @see Event#fireEvents(String, Collection)
+	 */
+	public CompletableFuture<Void> fireEvents(String topicName, Collection<EventMessage> eventMessages) {
+		if (StringUtils.isBlank(topicName)) {
+			throw new APIException("Topic name cannot be null or blank");
+		}
 		
-		jmsTemplate.send(dest, session -> {
-			if (log.isInfoEnabled())
-				log.info("Sending data " + eventMessage);
-			
-			MapMessage mapMessage = session.createMapMessage();
-			if (eventMessage != null) {
-				for (Map.Entry<String, Serializable> entry : eventMessage.entrySet()) {
-					mapMessage.setObject(entry.getKey(), entry.getValue());
+		EventPublishQueue queue = publishQueue;
+		if (queue != null && !buffering) {
+			return offer(queue, topicName, eventMessages);
+		}
+		
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		try {
+			getAsyncSender().execute(() -> {
+				try {
+					sendFired(topicName, eventMessages).whenComplete((result, e) -> {
+						if (e != null) {
+							future.completeExceptionally(e);
+						} else {
+							future.complete(null);
+						}
+					});
 				}
+				catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			log.warn("Too many events are waiting to be sent asynchronously, the {} events are not sent", topicName);
+			future.completeExceptionally(
+			    new APIException("Too many events are waiting to be sent asynchronously, the events were not sent", e));
+		}
+		return future;
+	}
+	
+	private CompletableFuture<Void> offer(EventPublishQueue queue, String topicName,
+	        Collection<EventMessage> eventMessages) {
+		CompletableFuture<?>[] futures = eventMessages.stream()
+		        .map(eventMessage -> queue.offerAsync(topicName, eventMessage)).toArray(CompletableFuture[]::new);
+		return CompletableFuture.allOf(futures);
+	}
+	
+	/**
+	 * Sends the events fired asynchronously on the async sender thread, the engine is initialized
+	 * here so the caller doesn't wait for the broker to start. While buffering or warming up the
+	 * events are buffered or held like the events fired synchronously so that they stay in order with
+	 * them, the future then completes once they are buffered or held.
+	 */
+	private CompletableFuture<Void> sendFired(String topicName, Collection<EventMessage> eventMessages) {
+		CountDownLatch latch = warmUpLatch;
+		if (buffering || latch != null && latch.getCount() > 0) {
+			Destination dest = getDestination(topicName);
+			for (EventMessage eventMessage : eventMessages) {
+				doFireEvent(dest, eventMessage);
 			}
-			
-			return mapMessage;
-		});
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		initializeIfNeeded();
+		EventPublishQueue queue = publishQueue;
+		if (queue != null) {
+			return offer(queue, topicName, eventMessages);
+		}
+		List<EventPublishQueue.PendingEvent> events = new ArrayList<>(eventMessages.size());
+		for (EventMessage eventMessage : eventMessages) {
+			events.add(new EventPublishQueue.PendingEvent(topicName, eventMessage));
+		}
+		send(batchJmsTemplate, events);
+		return CompletableFuture.completedFuture(null);
+	}
+	
+	/**
+	 * Gets the single thread that sends the events fired asynchronously when there is no publish
+	 * queue or while buffering, at most {@link EventConstants#GP_PUBLISH_QUEUE_CAPACITY} calls wait
+	 * for it
+	 */
+	private ExecutorService getAsyncSender() {
+		synchronized (asyncSenderLock) {
+			if (asyncSender == null) {
+				int capacity = EventUtil.getGlobalProperty(EventConstants.GP_PUBLISH_QUEUE_CAPACITY,
+				    EventConstants.DEFAULT_PUBLISH_QUEUE_CAPACITY);
+				asyncSender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				        new ArrayBlockingQueue<>(Math.max(1, capacity)), runnable -> {
+					        Thread thread = new Thread(runnable, "Event Async Sender");
+					        thread.setDaemon(true);
+					        return thread;
+				        });
+			}
+			return asyncSender;
+		}
+	}
+	
+	/**
+	 * @see Event#startBuffering(int)
+	 */
+	public void startBuffering(int maxSize) {
+		long timeout = EventUtil.getGlobalProperty(EventConstants.GP_WARM_UP_TIMEOUT,
+		    EventConstants.DEFAULT_WARM_UP_TIMEOUT);
+		synchronized (buffer) {
+			bufferTimeout = timeout;
+			bufferSize = maxSize;
+			buffering = true;
+		}
+	}
+	
+	/**
+	 * @see Event#stopBuffering()
+	 */
+	public void stopBuffering() {
+		long sent = 0;
+		while (true) {
+			List<EventPublishQueue.PendingEvent> events;
+			synchronized (buffer) {
+				if (buffer.isEmpty()) {
+					buffering = false;
+					buffer.notifyAll();
+					break;
+				}
+				events = new ArrayList<>(buffer);
+				buffer.clear();
+				//Wakes up the threads waiting for room in the full buffer
+				buffer.notifyAll();
+			}
+			//Events fired meanwhile are buffered after these ones so the order is kept
+			for (EventPublishQueue.PendingEvent event : events) {
+				try {
+					send(getDestination(event.getTopicName()), event.getEventMessage());
+					sent++;
+				}
+				catch (RuntimeException e) {
+					log.error("Failed to send the buffered " + event.getTopicName() + " event", e);
+				}
+			}
+		}
+		if (sent > 0) {
+			log.info("Sent {} events buffered while the subscriptions were created", sent);
+		}
+	}
+	
+	/**
+	 * Buffers the event while buffering, when the buffer is full waits for it to be sent since sending
+	 * the event right away would overtake the buffered ones. If there is still no room after the
+	 * {@link EventConstants#GP_WARM_UP_TIMEOUT} the event is sent ahead of the buffered ones rather
+	 * than holding up the firing thread, e.g. a commit, any longer.
+	 * 
+	 * @return true if the event is buffered
+	 */
+	private boolean buffer(Destination dest, EventMessage eventMessage) {
+		if (!buffering) {
+			return false;
+		}
+		synchronized (buffer) {
+			if (buffering && buffer.size() >= bufferSize) {
+				log.warn("The buffer of {} events is full, waiting for it to be sent", bufferSize);
+				long deadline = System.currentTimeMillis() + bufferTimeout;
+				while (buffering && buffer.size() >= bufferSize) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						log.warn("Timed out after {}ms waiting for the full buffer to be sent, the {} event is sent ahead "
+						        + "of the {} buffered events", bufferTimeout, getTopicName(dest), buffer.size());
+						return false;
+					}
+					try {
+						buffer.wait(remaining);
+					}
+					catch (InterruptedException e) {
+						//The event is buffered beyond the size rather than lost
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+			if (!buffering) {
+				return false;
+			}
+			buffer.add(new EventPublishQueue.PendingEvent(getTopicName(dest), eventMessage));
+			return true;
+		}
+	}
+	
+	private void doFireEvent(final Destination dest, final EventMessage eventMessage) {
+		if (buffer(dest, eventMessage)) {
+			return;
+		}
+		send(dest, eventMessage);
+	}
+	
+	private void send(final Destination dest, final EventMessage eventMessage) {
+		if (holdUntilWarmedUp(dest, eventMessage)) {
+			return;
+		}
+		send(initializeIfNeeded(), dest, eventMessage);
+	}
+	
+	private void send(JmsTemplate template, final Destination dest, final EventMessage eventMessage) {
+		EventPublishQueue queue = publishQueue;
+		if (queue != null) {
+			queue.offer(getTopicName(dest), eventMessage);
+		} else {
+			template.send(dest, session -> createMapMessage(session, eventMessage));
+		}
+	}
+	
+	/**
+	 * Sends the events in a single transacted session, reusing one producer per topic
+	 */
+	private void send(JmsTemplate template, final List<EventPublishQueue.PendingEvent> events) {
+		template.execute(session -> {
+			Map<String, MessageProducer> producers = new HashMap<>();
+			try {
+				for (EventPublishQueue.PendingEvent event : events) {
+					MessageProducer producer = producers.get(event.getTopicName());
+					if (producer == null) {
+						producer = session.createProducer(session.createTopic(event.getTopicName()));
+						producers.put(event.getTopicName(), producer);
+					}
+					producer.send(createMapMessage(session, event.getEventMessage()));
+				}
+				if (session.getTransacted()) {
+					session.commit();
+				}
+			}
+			finally {
+				for (MessageProducer producer : producers.values()) {
+					JmsUtils.closeMessageProducer(producer);
+				}
+			}
+			return null;
+		}, false);
+	}
+	
+	private MapMessage createMapMessage(Session session, EventMessage eventMessage) throws JMSException {
+		if (log.isInfoEnabled())
+			log.info("Sending data " + eventMessage);
+		
+		MapMessage mapMessage = session.createMapMessage();
+		if (eventMessage != null) {
+			for (Map.Entry<String, Serializable> entry : eventMessage.entrySet()) {
+				mapMessage.setObject(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		return mapMessage;
 	}
 	
 	private boolean enabled() {
@@ -163,47 +613,336 @@ public class EventEngine {
 		        .toFile().exists();
 	}
 	
-	private synchronized void initializeIfNeeded() {
-		if (jmsTemplate == null) {
-			log.info("creating connection factory");
-			String property = getExternalUrl();
-			String brokerURL;
-			if (property == null || property.isEmpty()) {
-				String dataDirectory = new File(OpenmrsUtil.getApplicationDataDirectory(), "activemq-data")
-				        .getAbsolutePath();
+	/**
+	 * @see Event#warmUp()
+	 */
+	public void warmUp() {
+		CountDownLatch latch;
+		synchronized (this) {
+			if (jmsTemplate != null || warmUpLatch != null) {
+				return;
+			}
+			warmUpTimeout = EventUtil.getGlobalProperty(EventConstants.GP_WARM_UP_TIMEOUT,
+			    EventConstants.DEFAULT_WARM_UP_TIMEOUT);
+			latch = new CountDownLatch(1);
+			warmUpLatch = latch;
+		}
+		
+		Runnable task = () -> {
+			try {
+				synchronized (this) {
+					if (jmsTemplate == null) {
+						initialize();
+					}
+				}
+			}
+			catch (RuntimeException e) {
+				log.error("Failed to warm up the event engine", e);
+			}
+			finally {
+				completeWarmUp(latch);
+			}
+		};
+		DaemonToken daemonToken = TransactionEventListener.getDaemonToken();
+		if (daemonToken != null) {
+			Daemon.runInDaemonThread(task, daemonToken);
+		} else {
+			Thread thread = new Thread(task, "Event Engine Warm-up");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Sends the events held while waiting for the warm up then marks it as complete, the events held
+	 * meanwhile are sent too so that none is left behind and the order is kept
+	 */
+	private void completeWarmUp(CountDownLatch latch) {
+		while (true) {
+			List<EventPublishQueue.PendingEvent> events;
+			synchronized (warmUpBacklog) {
+				if (warmUpBacklog.isEmpty()) {
+					latch.countDown();
+					return;
+				}
+				events = new ArrayList<>(warmUpBacklog);
+				warmUpBacklog.clear();
+			}
+			JmsTemplate template = jmsTemplate;
+			if (template == null) {
+				log.error("The event engine failed to start, {} events fired while it was starting are not sent",
+				    events.size());
+				continue;
+			}
+			for (EventPublishQueue.PendingEvent event : events) {
 				try {
-					dataDirectory = URLEncoder.encode(dataDirectory, "UTF-8");
+					send(template, getDestination(event.getTopicName()), event.getEventMessage());
 				}
-				catch (UnsupportedEncodingException e) {
-					throw new RuntimeException("Failed to encode URI", e);
+				catch (RuntimeException e) {
+					log.error("Failed to send the " + event.getTopicName() + " event fired while the engine was starting",
+					    e);
 				}
-				brokerURL = "vm://localhost?broker.persistent=true&broker.useJmx=false&broker.dataDirectory="
-				        + dataDirectory;
-			} else {
-				brokerURL = "tcp://" + property;
 			}
-			
-			ActiveMQConnectionFactory cf = new ActiveMQConnectionFactory(brokerURL);
-			connectionFactory = new SingleConnectionFactory(cf);
-			jmsTemplate = new JmsTemplate(connectionFactory);
+			log.info("Sent {} events fired while the event engine was starting", events.size());
+		}
+	}
+	
+	/**
+	 * Waits for the warm up if one is in progress, if it doesn't complete within the warm up timeout
+	 * the event is held and sent by the warm up thread once it completes instead of being lost
+	 * 
+	 * @return true if the event is held
+	 */
+	private boolean holdUntilWarmedUp(Destination dest, EventMessage eventMessage) {
+		CountDownLatch latch = warmUpLatch;
+		if (latch == null || latch.getCount() == 0) {
+			return false;
+		}
+		synchronized (warmUpBacklog) {
+			//Once an event is held the next ones are held without waiting again so they stay in order
+			if (!warmUpBacklog.isEmpty() && latch.getCount() > 0) {
+				warmUpBacklog.add(new EventPublishQueue.PendingEvent(getTopicName(dest), eventMessage));
+				return true;
+			}
+		}
+		if (awaitWarmUp(latch)) {
+			return false;
+		}
+		synchronized (warmUpBacklog) {
+			if (latch.getCount() == 0) {
+				return false;
+			}
+			if (warmUpBacklog.isEmpty()) {
+				log.warn("Timed out after {}ms waiting for the event engine to start, the events are sent once it has "
+				        + "started", warmUpTimeout);
+			}
+			warmUpBacklog.add(new EventPublishQueue.PendingEvent(getTopicName(dest), eventMessage));
+			return true;
+		}
+	}
+	
+	/**
+	 * @return false if the warm up doesn't complete within the warm up timeout or the thread is
+	 *         interrupted
+	 */
+	private boolean awaitWarmUp(CountDownLatch latch) {
+		try {
+			return latch.await(warmUpTimeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * @throws APIException if the thread is interrupted while waiting
+	 */
+	private void awaitWarmUpUntilComplete(CountDownLatch latch) {
+		try {
+			if (!latch.await(warmUpTimeout, TimeUnit.MILLISECONDS)) {
+				log.warn("The event engine has not started after {}ms, waiting for it to subscribe", warmUpTimeout);
+				latch.await();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while waiting for the event engine to start", e);
+		}
+	}
+	
+	/**
+	 * @throws APIException if a warm up is in progress and doesn't complete within the warm up timeout
+	 */
+	private JmsTemplate initializeIfNeeded() {
+		return initializeIfNeeded(false);
+	}
+	
+	/**
+	 * @param untilWarmedUp true to wait for a warm up in progress however long it takes, e.g. while
+	 *            the broker recovers its store, since a subscription can't be held like an event
+	 * @throws APIException if a warm up is in progress and doesn't complete within the warm up timeout
+	 *             or the thread is interrupted while waiting for it
+	 */
+	private JmsTemplate initializeIfNeeded(boolean untilWarmedUp) {
+		JmsTemplate template = jmsTemplate;
+		if (template == null) {
+			CountDownLatch latch = warmUpLatch;
+			if (latch != null && untilWarmedUp) {
+				awaitWarmUpUntilComplete(latch);
+			} else if (latch != null && !awaitWarmUp(latch)) {
+				throw new APIException("Timed out after " + warmUpTimeout + "ms waiting for the event engine to start");
+			}
+			synchronized (this) {
+				if (jmsTemplate == null) {
+					initialize();
+				}
+				template = jmsTemplate;
+			}
 		} else {
 			log.trace("messageListener already defined");
 		}
+		return template;
 	}
 	
-	private String getExternalUrl() {
+	/**
+	 * Creates the connection factory, the publish queue if enabled and finally the jms template which
+	 * marks the engine as initialized
+	 */
+	private void initialize() {
+		log.info("creating connection factory");
+		long start = System.currentTimeMillis();
+		String property = getExternalUrl();
+		String brokerURL;
+		boolean embedded = property == null || property.isEmpty();
+		if (embedded) {
+			startBroker();
+			brokerURL = "vm://" + broker.getBrokerName() + "?create=false";
+		} else {
+			brokerURL = "tcp://" + property;
+		}
+		
+		ActiveMQConnectionFactory cf = new ActiveMQConnectionFactory(brokerURL);
+		configureConnectionFactory(cf, embedded);
+		connectionFactory = new SingleConnectionFactory(cf);
+		if (clientId != null) {
+			SingleConnectionFactory durableCf = new SingleConnectionFactory(cf);
+			durableCf.setClientId(clientId);
+			durableConnectionFactory = durableCf;
+		}
+		JmsTemplate template = new JmsTemplate(connectionFactory);
+		JmsTemplate batchTemplate = new JmsTemplate(connectionFactory);
+		batchTemplate.setSessionTransacted(true);
+		batchJmsTemplate = batchTemplate;
+		
+		EventPublishQueue queue = null;
+		if (EventUtil.getGlobalProperty(EventConstants.GP_PUBLISH_QUEUE_ENABLED, false)) {
+			queue = createPublishQueue();
+			publishQueue = queue;
+		}
+		
+		initializationMillis = System.currentTimeMillis() - start;
+		log.info("Initialized the event engine in {}ms", initializationMillis);
+		
+		jmsTemplate = template;
+		if (queue != null) {
+			queue.start();
+		}
+	}
+	
+	private void startBroker() {
 		try {
-			Context.addProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
-			return Context.getRegisteredComponent("adminService", AdministrationService.class)
-			        .getGlobalProperty("activeMQ.externalUrl");
+			long start = System.currentTimeMillis();
+			BrokerService brokerService = EmbeddedBrokerFactory
+			        .createBroker(new File(OpenmrsUtil.getApplicationDataDirectory(), "activemq-data"));
+			brokerService.start();
+			brokerService.waitUntilStarted();
+			broker = brokerService;
+			//Includes the recovery of the store after an unclean shutdown
+			brokerStartMillis = System.currentTimeMillis() - start;
+			log.info("Started the embedded broker in {}ms", brokerStartMillis);
 		}
-		catch (NullPointerException ex) {
-			log.error("AdministrationService not yet initialized to get the activeMQ.externalUrl setting", ex);
+		catch (Exception e) {
+			throw new APIException("Failed to start the embedded broker", e);
 		}
-		finally {
-			Context.removeProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+	}
+	
+	/**
+	 * Applies the connection profile then the connection global properties to the connection factory,
+	 * a property that is not set leaves the value of the profile in place
+	 * 
+	 * @param cf the connection factory to configure
+	 * @param embedded true if the connection is to the embedded broker
+	 */
+	protected void configureConnectionFactory(ActiveMQConnectionFactory cf, boolean embedded) {
+		ConnectionProfile profile = ConnectionProfile.DEFAULT;
+		String profileName = EventUtil.getGlobalProperty(EventConstants.GP_CONNECTION_PROFILE);
+		if (StringUtils.isNotBlank(profileName)) {
+			try {
+				profile = ConnectionProfile.valueOf(profileName.trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) {
+				log.warn("Invalid connection profile {}, using {}", profileName, profile);
+			}
+		}
+		if (profile == ConnectionProfile.IN_VM && !embedded) {
+			log.warn("The {} connection profile only applies to the embedded broker, using {}", profile,
+			    ConnectionProfile.DEFAULT);
+			profile = ConnectionProfile.DEFAULT;
+		}
+		if (profile == ConnectionProfile.IN_VM) {
+			//The vm transport doesn't marshal messages, so without the copy on send they are passed by reference
+			cf.setCopyMessageOnSend(false);
+			cf.setAlwaysSessionAsync(false);
+		}
+		
+		cf.setUseAsyncSend(EventUtil.getGlobalProperty(EventConstants.GP_CONNECTION_USE_ASYNC_SEND, cf.isUseAsyncSend()));
+		cf.setProducerWindowSize(EventUtil.getGlobalProperty(EventConstants.GP_CONNECTION_PRODUCER_WINDOW_SIZE,
+		    cf.getProducerWindowSize()));
+		cf.setOptimizeAcknowledge(EventUtil.getGlobalProperty(EventConstants.GP_CONNECTION_OPTIMIZE_ACKNOWLEDGE,
+		    cf.isOptimizeAcknowledge()));
+		cf.setDispatchAsync(EventUtil.getGlobalProperty(EventConstants.GP_CONNECTION_DISPATCH_ASYNC, cf.isDispatchAsync()));
+		cf.setCopyMessageOnSend(EventUtil.getGlobalProperty(EventConstants.GP_CONNECTION_COPY_MESSAGE_ON_SEND,
+		    cf.isCopyMessageOnSend()));
+		readOnlyMessages = !cf.isCopyMessageOnSend();
+		String configuredClientId = EventUtil.getGlobalProperty(EventConstants.GP_CONNECTION_CLIENT_ID);
+		if (StringUtils.isNotBlank(configuredClientId)) {
+			clientId = configuredClientId.trim();
+		} else {
+			clientId = embedded ? EventConstants.DEFAULT_EMBEDDED_CLIENT_ID : null;
+		}
+		int sessionThreadPoolSize = EventUtil.getGlobalProperty(EventConstants.GP_CONNECTION_SESSION_THREAD_POOL_SIZE, 0);
+		if (sessionThreadPoolSize > 0) {
+			//Sessions only borrow a pooled thread while they have messages to dispatch
+			cf.setUseDedicatedTaskRunner(false);
+			cf.setSessionTaskRunner(new SessionTaskRunnerFactory(sessionThreadPoolSize));
+		}
+		log.info("Connection settings: profile={}, useAsyncSend={}, producerWindowSize={}, optimizeAcknowledge={}, "
+		        + "dispatchAsync={}, copyMessageOnSend={}, sessionThreadPoolSize={}",
+		    profile, cf.isUseAsyncSend(), cf.getProducerWindowSize(), cf.isOptimizeAcknowledge(), cf.isDispatchAsync(),
+		    cf.isCopyMessageOnSend(), sessionThreadPoolSize);
+	}
+	
+	private EventPublishQueue createPublishQueue() {
+		String policy = EventUtil.getGlobalProperty(EventConstants.GP_PUBLISH_QUEUE_OVERFLOW_POLICY);
+		EventPublishQueue.OverflowPolicy overflowPolicy = EventPublishQueue.OverflowPolicy.BLOCK;
+		if (StringUtils.isNotBlank(policy)) {
+			try {
+				overflowPolicy = EventPublishQueue.OverflowPolicy.valueOf(policy.trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) {
+				log.warn("Invalid event publish queue overflow policy {}, using {}", policy, overflowPolicy);
+			}
+		}
+		
+		EventSpool spool = null;
+		if (overflowPolicy == EventPublishQueue.OverflowPolicy.SPILL) {
+			spool = new EventSpool(
+			        OpenmrsUtil.getApplicationDataDirectoryAsFile().toPath().resolve("activemq-data").resolve("spool")
+			                .toFile());
 		}
-		return null;
+		
+		CircuitBreaker circuitBreaker = new CircuitBreaker(
+		        EventUtil.getGlobalProperty(EventConstants.GP_PUBLISH_QUEUE_FAILURE_THRESHOLD,
+		            EventConstants.DEFAULT_PUBLISH_QUEUE_FAILURE_THRESHOLD),
+		        EventUtil.getGlobalProperty(EventConstants.GP_PUBLISH_QUEUE_OPEN_DURATION,
+		            EventConstants.DEFAULT_PUBLISH_QUEUE_OPEN_DURATION));
+		
+		JmsTemplate batchTemplate = batchJmsTemplate;
+		
+		log.info("Sending events through a publish queue with the {} overflow policy", overflowPolicy);
+		return new EventPublishQueue(events -> send(batchTemplate, events),
+		        EventUtil.getGlobalProperty(EventConstants.GP_PUBLISH_QUEUE_MAX_BATCH_SIZE,
+		            EventPublishQueue.DEFAULT_MAX_BATCH_SIZE),
+		        EventUtil.getGlobalProperty(EventConstants.GP_PUBLISH_QUEUE_CAPACITY,
+		            EventConstants.DEFAULT_PUBLISH_QUEUE_CAPACITY),
+		        overflowPolicy, EventUtil.getGlobalProperty(EventConstants.GP_PUBLISH_QUEUE_BLOCK_TIMEOUT,
+		            EventConstants.DEFAULT_PUBLISH_QUEUE_BLOCK_TIMEOUT),
+		        spool, circuitBreaker);
+	}
+	
+	private String getExternalUrl() {
+		return EventUtil.getGlobalProperty(EventConstants.GP_EXTERNAL_URL);
 	}
 	
 	/**
@@ -268,15 +1007,104 @@ public class EventEngine {
 		}
 	}
 	
+	/**
+	 * @see Event#subscribeAll(Collection)
+	 */
+	public void subscribeAll(Collection<? extends SubscribableEventListener> listeners) {
+		long start = System.currentTimeMillis();
+		Map<SubscribableEventListener, Set<String>> topics = new LinkedHashMap<>();
+		//Scan the class hierarchy once for all the listeners
+		Map<Class<? extends OpenmrsObject>, List<Class<? extends OpenmrsObject>>> subclasses = new HashMap<>();
+		try (EventClassScanner scanner = new EventClassScanner()) {
+			for (SubscribableEventListener listener : listeners) {
+				Collection<String> actions = listener.subscribeToActions();
+				if (actions == null) {
+					actions = Event.Action.getActionNames();
+				}
+				Set<String> listenerTopics = new LinkedHashSet<>();
+				for (Class<? extends OpenmrsObject> clazz : listener.subscribeToObjects()) {
+					if (!subclasses.containsKey(clazz)) {
+						subclasses.put(clazz, scanner.getClasses(clazz));
+					}
+					for (Class<? extends OpenmrsObject> c : subclasses.get(clazz)) {
+						for (String action : actions) {
+							listenerTopics.add(action + DELIMITER + c.getName());
+						}
+					}
+				}
+				topics.put(listener, listenerTopics);
+			}
+		}
+		catch (IOException | ClassNotFoundException e) {
+			throw new APIException("Exception raised while scanning the classes to subscribe to", e);
+		}
+		if (topics.isEmpty()) {
+			return;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(topics.size(), SUBSCRIBE_PARALLELISM),
+		    runnable -> {
+			    Thread thread = new Thread(runnable, "Event Subscriber");
+			    thread.setDaemon(true);
+			    return thread;
+		    });
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Map.Entry<SubscribableEventListener, Set<String>> entry : topics.entrySet()) {
+				futures.add(executor.submit(() -> {
+					for (String topicName : entry.getValue()) {
+						subscribe(getDestination(topicName), entry.getKey());
+					}
+					log.info("{} subscribed to {} topics", entry.getKey().getClass(), entry.getValue().size());
+				}));
+			}
+			APIException failure = null;
+			int failed = 0;
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				}
+				catch (ExecutionException e) {
+					log.error("Failed to subscribe a listener", e.getCause());
+					if (failure == null) {
+						failure = new APIException("Failed to subscribe a listener", e.getCause());
+					} else {
+						failure.addSuppressed(e.getCause());
+					}
+					failed++;
+				}
+			}
+			//The other listeners are subscribed, but a missing subscription must not go unnoticed
+			if (failure != null) {
+				throw new APIException("Failed to subscribe " + failed + " of " + topics.size() + " listeners", failure);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while subscribing the listeners", e);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		log.info("Subscribed {} listeners in {}ms", topics.size(), System.currentTimeMillis() - start);
+	}
+	
 	/**
 	 * @see Event#subscribe(String, EventListener)
 	 */
 	public void subscribe(String topicName, EventListener listener) {
+		subscribe(topicName, listener, null);
+	}
+	
+	/**
+	 * @see Event#subscribe(String, EventListener, SubscriptionOptions)
+	 */
+	public void subscribe(String topicName, EventListener listener, SubscriptionOptions options) {
 		if (StringUtils.isBlank(topicName)) {
 			throw new APIException("Topic name cannot be null or blank");
 		}
 		
-		subscribe(getDestination(topicName), listener);
+		subscribe(getDestination(topicName), listener, options);
 	}
 	
 	/**
@@ -392,37 +1220,100 @@ public class EventEngine {
 	/**
 	 * @see Event#subscribe(Destination, EventListener)
 	 */
-	public void subscribe(Destination destination, final EventListener listenerToRegister) {
+	public void subscribe(Destination destination, EventListener listenerToRegister) {
+		subscribe(destination, listenerToRegister, null);
+	}
+	
+	/**
+	 * @see Event#subscribe(Destination, EventListener, SubscriptionOptions)
+	 */
+	public void subscribe(Destination destination, EventListener listenerToRegister,
+	        SubscriptionOptions subscriptionOptions) {
 		if (enabled()) {
-			initializeIfNeeded();
+			JmsTemplate template = initializeIfNeeded(true);
 			
 			TopicConnection conn;
 			Topic topic = (Topic) destination;
 			
 			try {
-				conn = (TopicConnection) jmsTemplate.getConnectionFactory().createConnection();
-				TopicSession session = conn.createTopicSession(false, TopicSession.AUTO_ACKNOWLEDGE);
-				TopicSubscriber subscriber = session.createSubscriber(topic);
-				subscriber.setMessageListener(new MessageListener() {
-					
-					@Override
-					public void onMessage(Message message) {
-						listenerToRegister.onMessage(message);
-					}
-				});
-				
-				//Check if this is a duplicate and remove it
+				//Check if this is a duplicate and remove it, keeping the retries and the executor of the listener
 				String key = topic.getTopicName() + DELIMITER + listenerToRegister.getClass().getName();
 				if (subscribers.containsKey(key)) {
-					unsubscribe(destination, listenerToRegister);
+					closeSubscription(key);
+				}
+				
+				boolean batch = listenerToRegister instanceof BatchEventListener;
+				SubscriptionOptions options = subscriptionOptions != null ? subscriptionOptions
+				        : listenerToRegister.getSubscriptionOptions();
+				if (!batch && options != null && options.isConcurrent()) {
+					checkExecutorSettings(listenerToRegister, options);
+				}
+				String durableName = null;
+				if (options != null && options.isDurable()) {
+					if (clientId != null) {
+						durableName = getDurableSubscriptionName(topic.getTopicName(),
+						    options.getListenerId(listenerToRegister));
+					} else {
+						log.warn("{} is subscribed to {} without a durable subscription since the connection has no "
+						        + "client ID, set the {} global property",
+						    listenerToRegister.getClass(), topic.getTopicName(), EventConstants.GP_CONNECTION_CLIENT_ID);
+					}
+				}
+				//Only the connection of the durable subscriptions has the client ID
+				conn = (TopicConnection) (durableName != null ? durableConnectionFactory : template.getConnectionFactory())
+				        .createConnection();
+				AcknowledgeMode acknowledgeMode = options != null && options.getAcknowledgeMode() != null
+				        ? options.getAcknowledgeMode() : AcknowledgeMode.AUTO;
+				if (batch) {
+					//The batch consumer acknowledges each batch
+					acknowledgeMode = AcknowledgeMode.CLIENT;
+				}
+				TopicSession session = conn.createTopicSession(acknowledgeMode == AcknowledgeMode.TRANSACTED,
+				    acknowledgeMode.getSessionMode());
+				int prefetch = options != null ? PrefetchController.getInitialPrefetch(options) : 0;
+				//ActiveMQ reads the consumer options from the destination name
+				Topic subscribeTo = prefetch > 0
+				        ? session.createTopic(topic.getTopicName() + "?consumer.prefetchSize=" + prefetch) : topic;
+				TopicSubscriber subscriber = durableName != null ? session.createDurableSubscriber(subscribeTo, durableName)
+				        : session.createSubscriber(subscribeTo);
+				PrefetchController prefetchController = prefetch > 0 ? new PrefetchController(session, subscriber, options)
+				        : null;
+				BatchMessageConsumer batchConsumer = null;
+				if (batch) {
+					batchConsumer = new BatchMessageConsumer(session, subscriber, (BatchEventListener) listenerToRegister,
+					        readOnlyMessages, prefetchController);
+				} else {
+					OrderedExecutor executor = options != null && options.isConcurrent()
+					        ? getListenerExecutor(listenerToRegister, options) : null;
+					RetryScheduler retries = options != null && options.getMaxRetries() > 0 ? getRetryScheduler() : null;
+					ScheduledExecutorService timer = acknowledgeMode == AcknowledgeMode.CLIENT
+					        || acknowledgeMode == AcknowledgeMode.TRANSACTED
+					        || (options != null && options.getCatchUpRate() > 0) ? getListenerTimer() : null;
+					ActiveMQMessageConsumer consumer = subscriber instanceof ActiveMQMessageConsumer
+					        ? (ActiveMQMessageConsumer) subscriber : null;
+					subscriber.setMessageListener(new SubscriptionListener(listenerToRegister, session, options, executor,
+					        prefetchController, retries, readOnlyMessages, consumer, timer));
 				}
 				
 				subscribers.put(key, subscriber);
+				sessions.put(key, session);
+				if (prefetchController != null) {
+					prefetchControllers.put(key, prefetchController);
+				}
+				if (durableName != null) {
+					durableSubscriptions.put(key, durableName);
+				}
+				if (batchConsumer != null) {
+					batchConsumers.put(key, batchConsumer);
+					batchConsumer.start();
+				}
 				conn.start();
 				
 			}
 			catch (JMSException e) {
-				log.error("Exception occurred while subscribing", e);
+				releaseListener(listenerToRegister.getClass().getName(), DEFAULT_SHUTDOWN_TIMEOUT);
+				throw new APIException("Failed to subscribe " + listenerToRegister.getClass().getName() + " to "
+				        + destination, e);
 			}
 		}
 	}
@@ -432,16 +1323,13 @@ public class EventEngine {
 	 */
 	public void unsubscribe(Destination dest, EventListener listener) {
 		if (enabled()) {
-			initializeIfNeeded();
+			initializeIfNeeded(true);
 			
 			if (dest != null) {
 				Topic topic = (Topic) dest;
 				try {
-					String key = topic.getTopicName() + DELIMITER + listener.getClass().getName();
-					if (subscribers.get(key) != null)
-						subscribers.get(key).close();
-					
-					subscribers.remove(key);
+					closeSubscription(topic.getTopicName() + DELIMITER + listener.getClass().getName());
+					releaseListener(listener.getClass().getName(), DEFAULT_SHUTDOWN_TIMEOUT);
 				}
 				catch (JMSException e) {
 					log.error("Failed to unsubscribe from the specified destination:", e);
@@ -450,6 +1338,309 @@ public class EventEngine {
 		}
 	}
 	
+	/**
+	 * Closes the subscription with the key, the retries and the executor of its listener are left to
+	 * {@link #releaseListener(String, long)}
+	 */
+	private void closeSubscription(String key) throws JMSException {
+		BatchMessageConsumer batchConsumer = batchConsumers.remove(key);
+		if (batchConsumer != null) {
+			batchConsumer.close();
+		}
+		prefetchControllers.remove(key);
+		durableSubscriptions.remove(key);
+		if (subscribers.get(key) != null) {
+			closeSubscriptionListener(subscribers.get(key));
+			subscribers.get(key).close();
+		}
+		
+		subscribers.remove(key);
+		TopicSession session = sessions.remove(key);
+		if (session != null) {
+			session.close();
+		}
+	}
+	
+	/**
+	 * @see Event#removeDurableSubscription(String, String)
+	 */
+	public void removeDurableSubscription(String topicName, String listenerId) {
+		if (StringUtils.isBlank(listenerId)) {
+			throw new APIException("Listener id cannot be null or blank");
+		}
+		if (!enabled()) {
+			return;
+		}
+		initializeIfNeeded(true);
+		SingleConnectionFactory durableCf = durableConnectionFactory;
+		if (durableCf == null) {
+			return;
+		}
+		String name = getDurableSubscriptionName(topicName, listenerId);
+		//The subscription must not be active to be removed
+		String activeKey = null;
+		for (Map.Entry<String, String> entry : durableSubscriptions.entrySet()) {
+			if (entry.getValue().equals(name)) {
+				activeKey = entry.getKey();
+			}
+		}
+		if (activeKey != null) {
+			final String key = activeKey;
+			closeSubscriptions(k -> k.equals(key), DEFAULT_SHUTDOWN_TIMEOUT);
+		}
+		
+		TopicSession session = null;
+		try {
+			TopicConnection conn = (TopicConnection) durableCf.createConnection();
+			session = conn.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+			session.unsubscribe(name);
+			log.info("Removed the durable subscription {}", name);
+		}
+		catch (JMSException e) {
+			log.error("Failed to remove the durable subscription " + name, e);
+		}
+		finally {
+			JmsUtils.closeSession(session);
+		}
+	}
+	
+	/**
+	 * @param topicName the name of the topic
+	 * @param listenerId the stable id of the listener
+	 * @return the name of the durable subscription of the listener to the topic
+	 */
+	private static String getDurableSubscriptionName(String topicName, String listenerId) {
+		return listenerId + DELIMITER + topicName;
+	}
+	
+	private synchronized ScheduledExecutorService getListenerTimer() {
+		if (listenerTimer == null) {
+			listenerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Event Listener Timer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return listenerTimer;
+	}
+	
+	/**
+	 * Acknowledges the handled messages of the subscriber before it is closed
+	 */
+	private void closeSubscriptionListener(TopicSubscriber subscriber) {
+		try {
+			MessageListener messageListener = subscriber.getMessageListener();
+			if (messageListener instanceof SubscriptionListener) {
+				((SubscriptionListener) messageListener).close();
+			}
+		}
+		catch (JMSException e) {
+			log.debug("Failed to get the listener of the subscriber", e);
+		}
+	}
+	
+	private synchronized RetryScheduler getRetryScheduler() {
+		if (retryScheduler == null) {
+			retryScheduler = new RetryScheduler(this::sendToDeadLetterQueue, EventUtil.getGlobalProperty(
+			    EventConstants.GP_MAX_PENDING_RETRIES, EventConstants.DEFAULT_MAX_PENDING_RETRIES));
+		}
+		return retryScheduler;
+	}
+	
+	/**
+	 * @see Event#getDeadLetterQueue(String)
+	 */
+	public Destination getDeadLetterQueue(String listenerId) {
+		return new ActiveMQQueue(DEAD_LETTER_QUEUE_PREFIX + listenerId);
+	}
+	
+	/**
+	 * Sends a copy of a message that could not be delivered to the dead letter queue of the listener,
+	 * with the original topic, the number of attempts and the last error as properties. A queue keeps
+	 * the messages until they are consumed, with or without a consumer when they are sent
+	 */
+	private void sendToDeadLetterQueue(String listenerId, Message message, int attempts, Throwable error) {
+		JmsTemplate template = jmsTemplate;
+		if (template == null) {
+			log.error("Cannot send a message to the dead letter queue of {} after the engine is shut down", listenerId);
+			return;
+		}
+		template.send(getDeadLetterQueue(listenerId), session -> {
+			MapMessage copy = session.createMapMessage();
+			if (message instanceof MapMessage) {
+				MapMessage mapMessage = (MapMessage) message;
+				Enumeration<?> names = mapMessage.getMapNames();
+				while (names.hasMoreElements()) {
+					String name = (String) names.nextElement();
+					copy.setObject(name, mapMessage.getObject(name));
+				}
+			}
+			if (message.getJMSDestination() instanceof Topic) {
+				copy.setStringProperty("originalTopic", ((Topic) message.getJMSDestination()).getTopicName());
+			}
+			copy.setIntProperty("attempts", attempts);
+			copy.setStringProperty("error", String.valueOf(error));
+			return copy;
+		});
+	}
+	
+	/**
+	 * @see Event#unsubscribeAll(EventListener)
+	 */
+	public void unsubscribeAll(EventListener listener) {
+		String suffix = DELIMITER + listener.getClass().getName();
+		closeSubscriptions(key -> key.endsWith(suffix), DEFAULT_SHUTDOWN_TIMEOUT);
+	}
+	
+	/**
+	 * @see Event#unsubscribeAll()
+	 */
+	public void unsubscribeAll() {
+		closeSubscriptions(key -> true, DEFAULT_SHUTDOWN_TIMEOUT);
+	}
+	
+	/**
+	 * Closes the matching subscribers and their sessions in parallel, closing a subscriber waits for
+	 * the message it is delivering if any
+	 * 
+	 * @param filter matches the keys of the subscriptions to close
+	 * @param timeout the time in milliseconds to wait for the subscriptions to be closed
+	 * @return true if all the subscriptions were closed within the timeout
+	 */
+	private boolean closeSubscriptions(Predicate<String> filter, long timeout) {
+		List<String> keys = subscribers.keySet().stream().filter(filter).collect(Collectors.toList());
+		if (keys.isEmpty()) {
+			return true;
+		}
+		
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(keys.size(), SUBSCRIBE_PARALLELISM),
+		    runnable -> {
+			    Thread thread = new Thread(runnable, "Event Unsubscriber");
+			    thread.setDaemon(true);
+			    return thread;
+		    });
+		for (String key : keys) {
+			TopicSubscriber subscriber = subscribers.remove(key);
+			TopicSession session = sessions.remove(key);
+			BatchMessageConsumer batchConsumer = batchConsumers.remove(key);
+			prefetchControllers.remove(key);
+			durableSubscriptions.remove(key);
+			executor.execute(() -> {
+				if (batchConsumer != null) {
+					batchConsumer.close();
+				}
+				if (subscriber != null) {
+					closeSubscriptionListener(subscriber);
+					JmsUtils.closeMessageConsumer(subscriber);
+				}
+				if (session != null) {
+					JmsUtils.closeSession(session);
+				}
+			});
+		}
+		executor.shutdown();
+		
+		boolean closed = false;
+		long deadline = start + timeout;
+		try {
+			closed = executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (String key : keys) {
+			String listenerClassName = key.substring(key.lastIndexOf(DELIMITER) + DELIMITER.length());
+			closed &= releaseListener(listenerClassName, remaining(deadline));
+		}
+		if (closed) {
+			log.info("Closed {} subscriptions in {}ms", keys.size(), System.currentTimeMillis() - start);
+		} else {
+			log.warn("Timed out after {}ms closing {} subscriptions", timeout, keys.size());
+		}
+		return closed;
+	}
+	
+	/**
+	 * @return the number of live threads ActiveMQ dispatches the messages of the sessions on
+	 */
+	public static int getSessionThreadCount() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith(SESSION_THREAD_NAME)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the executor that handles the messages of the listener concurrently, creating it if needed
+	 */
+	/**
+	 * @throws APIException if the listener already has an executor with other settings, since it is
+	 *             shared by all the subscriptions of the listener
+	 */
+	private void checkExecutorSettings(EventListener listener, SubscriptionOptions options) {
+		String listenerClassName = listener.getClass().getName();
+		String settings = listenerExecutorSettings.get(listenerClassName);
+		if (settings != null && !settings.equals(options.getExecutorSettings())) {
+			if (!hasSubscriptions(listenerClassName)) {
+				//The only subscription is replaced, so is the executor
+				releaseListener(listenerClassName, DEFAULT_SHUTDOWN_TIMEOUT);
+				return;
+			}
+			throw new APIException(listener.getClass().getName() + " is already subscribed with " + settings
+			        + ", its subscriptions share its executor so they can't have " + options.getExecutorSettings());
+		}
+	}
+	
+	private OrderedExecutor getListenerExecutor(EventListener listener, SubscriptionOptions options) {
+		return listenerExecutors.computeIfAbsent(listener.getClass().getName(), name -> {
+			listenerExecutorSettings.put(name, options.getExecutorSettings());
+			String threadName = "Event Worker " + listener.getClass().getSimpleName();
+			OrderedExecutor executor;
+			if (options.isIsolated()) {
+				executor = new IsolatingExecutor(threadName, options.getIsolationQueueCapacity(),
+				        options.getSlowThreshold(), options.getErrorRateThreshold(), options.getBreakerOpenDuration(),
+				        options.isParkWhenOpen());
+			} else if (options.isVirtualThreads()) {
+				executor = new VirtualThreadExecutor(threadName, options.getMaxInFlight(), options.getConcurrency());
+			} else if (options.isScaling()) {
+				executor = new ScalingExecutor(threadName, options.getConcurrency(), options.getMaxConcurrency(),
+				        options.getIdleTimeout(), options.getMaxQueuedPerWorker() * options.getMaxConcurrency());
+			} else {
+				executor = new KeyedExecutor(threadName, options.getConcurrency(), options.getMaxQueuedPerWorker());
+			}
+			executor.start();
+			return executor;
+		});
+	}
+	
+	/**
+	 * Cancels the pending retries of the listener once it has no more subscriptions and stops its
+	 * executor, waiting for the queued messages to be handled
+	 * 
+	 * @return false if the queued messages were not handled within the timeout
+	 */
+	private boolean releaseListener(String listenerClassName, long timeout) {
+		if (hasSubscriptions(listenerClassName)) {
+			return true;
+		}
+		RetryScheduler retries = retryScheduler;
+		if (retries != null) {
+			retries.cancel(listenerClassName);
+		}
+		OrderedExecutor executor = listenerExecutors.remove(listenerClassName);
+		listenerExecutorSettings.remove(listenerClassName);
+		return executor == null || executor.stop(timeout);
+	}
+	
+	private boolean hasSubscriptions(String listenerClassName) {
+		String suffix = DELIMITER + listenerClassName;
+		return subscribers.keySet().stream().anyMatch(key -> key.endsWith(suffix));
+	}
+	
 	/**
 	 * @see Event#setSubscription(SubscribableEventListener)
 	 */
@@ -476,6 +1667,49 @@ public class EventEngine {
 		}
 	}
 	
+	private String getTopicName(final Destination dest) {
+		try {
+			return ((Topic) dest).getTopicName();
+		}
+		catch (JMSException e) {
+			throw new APIException("Failed to get the topic name of " + dest, e);
+		}
+	}
+	
+	/**
+	 * @see Event#getStatistics()
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		if (jmsTemplate != null) {
+			statistics.put("engine.initializationMillis", initializationMillis);
+			statistics.put("engine.subscriptions", subscribers.size());
+			statistics.put("engine.durableSubscriptions", durableSubscriptions.size());
+			statistics.put("engine.sessionThreads", getSessionThreadCount());
+		}
+		EventPublishQueue queue = publishQueue;
+		if (queue != null) {
+			queue.getStatistics().forEach((name, value) -> statistics.put("publishQueue." + name, value));
+		}
+		listenerExecutors.forEach((listener, executor) -> executor.getStatistics()
+		        .forEach((name, value) -> statistics.put("listener." + listener + "." + name, value)));
+		RetryScheduler retries = retryScheduler;
+		if (retries != null) {
+			retries.getStatistics().forEach((name, value) -> statistics.put("retry." + name, value));
+		}
+		prefetchControllers.forEach((subscription, controller) -> controller.getStatistics()
+		        .forEach((name, value) -> statistics.put("subscription." + subscription + "." + name, value)));
+		BrokerService brokerService = broker;
+		if (brokerService != null) {
+			SystemUsage usage = brokerService.getSystemUsage();
+			statistics.put("broker.startMillis", brokerStartMillis);
+			statistics.put("broker.memoryPercentUsage", usage.getMemoryUsage().getPercentUsage());
+			statistics.put("broker.storePercentUsage", usage.getStoreUsage().getPercentUsage());
+			statistics.put("broker.tempPercentUsage", usage.getTempUsage().getPercentUsage());
+		}
+		return statistics;
+	}
+	
 	protected String getAction(final Destination dest) {
 		if (dest instanceof Topic) {
 			// look for delimiter and get string before that
@@ -503,14 +1737,96 @@ public class EventEngine {
 	}
 	
 	/**
-	 * Closes the underlying shared connection which will close the broker too under the hood
+	 * Closes the underlying shared connection and stops the embedded broker, waits for at most
+	 * {@link #DEFAULT_SHUTDOWN_TIMEOUT} for the queued events to be sent and the subscriptions to be
+	 * closed
 	 */
 	public void shutdown() {
+		shutdown(DEFAULT_SHUTDOWN_TIMEOUT);
+	}
+	
+	/**
+	 * Sends the queued events, closes the subscriptions waiting for the messages being delivered, then
+	 * closes the shared connection and stops the embedded broker
+	 * 
+	 * @param timeout the time in milliseconds to wait for the queued events to be sent and the
+	 *            subscriptions to be closed
+	 */
+	public void shutdown(long timeout) {
 		if (log.isDebugEnabled())
 			log.debug("Shutting down JMS shared connection...");
 		
-		if (connectionFactory != null) {
-			connectionFactory.destroy();
+		long deadline = System.currentTimeMillis() + timeout;
+		EventPublishQueue queue = publishQueue;
+		if (queue != null) {
+			publishQueue = null;
+			queue.stop(remaining(deadline));
+		}
+		
+		ExecutorService sender;
+		synchronized (asyncSenderLock) {
+			sender = asyncSender;
+			asyncSender = null;
+		}
+		if (sender != null) {
+			sender.shutdown();
+			try {
+				if (!sender.awaitTermination(remaining(deadline), TimeUnit.MILLISECONDS)) {
+					log.warn("Timed out waiting for the asynchronous events to be sent");
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		closeSubscriptions(key -> true, remaining(deadline));
+		
+		RetryScheduler retries;
+		synchronized (this) {
+			retries = retryScheduler;
+			retryScheduler = null;
 		}
+		if (retries != null) {
+			//The pending retries go to the dead letter queues while the connection is still open
+			retries.stop(remaining(deadline));
+		}
+		synchronized (this) {
+			if (listenerTimer != null) {
+				listenerTimer.shutdownNow();
+				listenerTimer = null;
+			}
+		}
+		
+		synchronized (this) {
+			if (durableConnectionFactory != null) {
+				durableConnectionFactory.destroy();
+			}
+			if (connectionFactory != null) {
+				connectionFactory.destroy();
+			}
+			
+			if (broker != null) {
+				try {
+					broker.stop();
+					broker.waitUntilStopped();
+				}
+				catch (Exception e) {
+					log.error("Failed to stop the embedded broker", e);
+				}
+			}
+			
+			//The engine is initialized again if it is used after it is shut down
+			jmsTemplate = null;
+			warmUpLatch = null;
+			batchJmsTemplate = null;
+			connectionFactory = null;
+			durableConnectionFactory = null;
+			broker = null;
+		}
+	}
+	
+	private static long remaining(long deadline) {
+		return Math.max(0, deadline - System.currentTimeMillis());
 	}
 }
@@ -18,4 +18,11 @@ import javax.jms.MessageListener;
  */
 public interface EventListener extends MessageListener {
 	
+	/**
+	 * @return the options of the subscriptions of this listener, null for the defaults
+	 */
+	default SubscriptionOptions getSubscriptionOptions() {
+		return null;
+	}
+	
 }
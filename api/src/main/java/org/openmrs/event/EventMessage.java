@@ -19,4 +19,21 @@ public class EventMessage extends LinkedHashMap<String, Serializable> {
 	
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * Comma separated roles of the collections that changed in an UPDATED event, e.g.
+	 * org.openmrs.Concept.names, absent if no collection changed
+	 */
+	public static final String CHANGED_COLLECTIONS = "changedCollections";
+	
+	/**
+	 * Comma separated child events folded into an aggregate event, each in the form
+	 * action:classname:uuid e.g. CREATED:org.openmrs.Obs:9d3e..., absent if there are none
+	 */
+	public static final String CHILD_EVENTS = "childEvents";
+	
+	/**
+	 * The number of UPDATED events of the entity collapsed into a coalesced event
+	 */
+	public static final String COALESCED_COUNT = "coalescedCount";
+	
 }
@@ -0,0 +1,45 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * An event written to the outbox in the same transaction as the change it represents, waiting to be
+ * fired by the {@link EventOutboxRelay}
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EventOutboxEntry {
+	
+	private Long id;
+	
+	private String action;
+	
+	private String classname;
+	
+	private String uuid;
+	
+	private EventMessage properties;
+	
+	private Date dateCreated;
+	
+	/**
+	 * @return the name of the topic to fire the event to
+	 */
+	public String getTopicName() {
+		return action + EventEngine.DELIMITER + classname;
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import lombok.Getter;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.event.api.db.EventOutboxDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background relay that reads the events written to the outbox by the {@link EventOutboxWriter} in
+ * batches, fires them and deletes them once fired. Events are delivered at least once, an event
+ * can be fired again if the relay stops between firing it and deleting it. A batch is read, fired
+ * and deleted in one transaction holding a lock on its rows, so the relays of several nodes sharing
+ * the database take turns instead of firing the same events.
+ */
+@Component
+public class EventOutboxRelay {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventOutboxRelay.class);
+	
+	@Autowired
+	private EventOutboxDAO outboxDAO;
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	@Autowired
+	private JmsEventPublisher publisher;
+	
+	/**
+	 * The daemon thread polling the outbox for as long as the relay runs
+	 */
+	private Thread thread;
+	
+	private volatile boolean running;
+	
+	private final Object wakeUp = new Object();
+	
+	private volatile int batchSize;
+	
+	private volatile long pollInterval;
+	
+	/**
+	 * The total number of events fired by the relay
+	 */
+	private final AtomicLong relayedCount = new AtomicLong();
+	
+	/**
+	 * The age in milliseconds of the oldest entry found by the last poll, 0 if the outbox was empty
+	 */
+	@Getter
+	private volatile long lagMillis;
+	
+	/**
+	 * The time the last poll completed
+	 */
+	@Getter
+	private volatile long lastPollTime;
+	
+	/**
+	 * Starts polling the outbox, does nothing if the relay is already started
+	 * 
+	 * @param batchSize the maximum number of entries to read and delete at once
+	 * @param pollInterval the delay in milliseconds between the end of a poll and the next one
+	 */
+	public synchronized void start(int batchSize, long pollInterval) {
+		if (thread != null) {
+			return;
+		}
+		this.batchSize = batchSize;
+		this.pollInterval = pollInterval;
+		running = true;
+		//A single daemon thread polls, so the polls run with the daemon user without a thread each
+		thread = Daemon.runInDaemonThread(this::run, TransactionEventListener.getDaemonToken());
+		thread.setName("Event Outbox Relay");
+		log.info("Started the event outbox relay with batch size {} and poll interval {}ms", batchSize, pollInterval);
+	}
+	
+	/**
+	 * Stops polling the outbox, waiting for the current poll to complete
+	 */
+	public synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		running = false;
+		synchronized (wakeUp) {
+			wakeUp.notifyAll();
+		}
+		try {
+			thread.join(30000);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			log.warn("Timed out waiting for the event outbox relay to stop");
+		}
+		thread = null;
+		log.info("Stopped the event outbox relay");
+	}
+	
+	public long getRelayedCount() {
+		return relayedCount.get();
+	}
+	
+	/**
+	 * @return the relayed count, the lag and the time of the last poll by name
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("running", running);
+		statistics.put("relayed", getRelayedCount());
+		statistics.put("lagMillis", lagMillis);
+		statistics.put("lastPollTime", lastPollTime);
+		return statistics;
+	}
+	
+	private void run() {
+		while (running) {
+			synchronized (wakeUp) {
+				try {
+					wakeUp.wait(pollInterval);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if (running) {
+				poll();
+			}
+		}
+	}
+	
+	private void poll() {
+		try {
+			relay();
+		}
+		catch (Exception e) {
+			log.error("Failed to relay the events in the outbox", e);
+		}
+		finally {
+			//The session of the thread lives as long as the relay
+			Context.clearSession();
+		}
+		lastPollTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Fires the events in the outbox batch by batch until it is empty, a batch is deleted after its
+	 * events are fired, if firing an event fails the events fired before it are still deleted. The
+	 * UPDATED events of the coalesced classes are handed to the coalescer of the publisher if any, they
+	 * are deleted from the outbox when the coalescer takes them.
+	 */
+	protected void relay() {
+		relay(batchSize);
+	}
+	
+	/**
+	 * @see #relay()
+	 * @param size the maximum number of entries to read and delete at once
+	 */
+	void relay(int size) {
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		while (true) {
+			Batch batch = transactionTemplate.execute(status -> relayBatch(size));
+			if (batch.failure != null) {
+				throw batch.failure;
+			}
+			if (batch.read < size) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * The outcome of relaying a batch
+	 */
+	private static class Batch {
+		
+		private int read;
+		
+		private RuntimeException failure;
+	}
+	
+	/**
+	 * Fires and deletes the entries of a batch in the current transaction, the entries fired before a
+	 * failure are still deleted and the failure is returned so that the transaction commits
+	 */
+	private Batch relayBatch(int size) {
+		Batch batch = new Batch();
+		List<EventOutboxEntry> entries = outboxDAO.getEntries(size);
+		batch.read = entries.size();
+		if (entries.isEmpty()) {
+			lagMillis = 0;
+			return batch;
+		}
+		lagMillis = System.currentTimeMillis() - entries.get(0).getDateCreated().getTime();
+		
+		EventCoalescer coalescer = publisher.getCoalescer();
+		List<Long> fired = new ArrayList<>(entries.size());
+		try {
+			for (EventOutboxEntry entry : entries) {
+				EventMessage eventMessage = EventEngine.createEventMessage(entry.getUuid(), entry.getClassname(),
+				    entry.getAction(), entry.getProperties());
+				if (coalescer == null
+				        || !coalescer.coalesce(entry.getTopicName(), entry.getClassname(), entry.getUuid(), eventMessage)) {
+					Event.fireEvent(entry.getTopicName(), eventMessage);
+				}
+				fired.add(entry.getId());
+			}
+		}
+		catch (RuntimeException e) {
+			batch.failure = e;
+		}
+		if (!fired.isEmpty()) {
+			outboxDAO.deleteEntries(fired);
+			relayedCount.addAndGet(fired.size());
+		}
+		log.debug("Relayed {} events from the outbox, lag {}ms", fired.size(), lagMillis);
+		return batch;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.openmrs.event.api.db.EventOutboxDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Application listener that writes the changes of a transaction to the outbox before the transaction
+ * completes when {@link JmsEventPublisher#isOutboxEnabled()}, so that the events are saved or
+ * discarded with the changes and can't be lost if the JVM stops before they are fired
+ */
+@Component
+public class EventOutboxWriter extends TransactionEventListener {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventOutboxWriter.class);
+	
+	@Autowired
+	private JmsEventPublisher publisher;
+	
+	@Autowired
+	private EventOutboxDAO outboxDAO;
+	
+	@Override
+	public void beforeTransactionCompletion(TransactionBeforeCompletionEvent transactionEvent) {
+		if (!publisher.isOutboxEnabled()) {
+			return;
+		}
+		
+		Date dateCreated = new Date();
+		List<EventOutboxEntry> entries = new ArrayList<>();
+		for (Map.Entry<EntityEvent, EventMessage> entry : publisher.getEventsToFire(transactionEvent.getEvents())
+		        .entrySet()) {
+			EntityEvent entityEvent = entry.getKey();
+			entries.add(new EventOutboxEntry(null, entityEvent.getAction().name(),
+			        entityEvent.getEntity().getClass().getName(), entityEvent.getEntity().getUuid(), entry.getValue(),
+			        dateCreated));
+		}
+		log.trace("Writing {} events to the outbox", entries.size());
+		outboxDAO.addEntries(entries);
+	}
+}
@@ -0,0 +1,565 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded queue in front of the broker, events are offered by the threads firing them and sent by
+ * a single background thread so that a slow or unavailable broker doesn't hold up the firing
+ * threads. The sender drains the queue in batches, the batch size adapts to the load: it grows while
+ * the batches are full and shrinks as they get smaller, when a batch is not full the sender lingers
+ * for a fraction of a millisecond to let more events in. When the queue is full, the
+ * {@link OverflowPolicy} decides what happens to new events. A {@link CircuitBreaker} stops the
+ * sender from trying to send while the broker keeps failing, with the {@link OverflowPolicy#SPILL}
+ * policy the queued events are moved to the {@link EventSpool} while the breaker is open and sent
+ * again once the broker is back.
+ */
+public class EventPublishQueue {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventPublishQueue.class);
+	
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	private static final long RETRY_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	
+	public enum OverflowPolicy {
+		/**
+		 * Waits up to the block timeout for space in the queue then drops the event
+		 */
+		BLOCK,
+		/**
+		 * Drops the oldest queued event to make space for the new one
+		 */
+		DROP_OLDEST,
+		/**
+		 * Writes the queued events then the new one to the spool, new events are spooled after them
+		 * until the spooled events are sent
+		 */
+		SPILL
+	}
+	
+	private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+	
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	
+	/**
+	 * An event waiting to be sent
+	 */
+	public static class PendingEvent {
+		
+		private final String topicName;
+		
+		private final EventMessage eventMessage;
+		
+		private final CompletableFuture<Void> future;
+		
+		public PendingEvent(String topicName, EventMessage eventMessage) {
+			this(topicName, eventMessage, null);
+		}
+		
+		public PendingEvent(String topicName, EventMessage eventMessage, CompletableFuture<Void> future) {
+			this.topicName = topicName;
+			this.eventMessage = eventMessage;
+			this.future = future;
+		}
+		
+		public String getTopicName() {
+			return topicName;
+		}
+		
+		public EventMessage getEventMessage() {
+			return eventMessage;
+		}
+		
+		/**
+		 * @return the future to complete once the event is sent, can be null
+		 */
+		public CompletableFuture<Void> getFuture() {
+			return future;
+		}
+		
+		private void complete() {
+			if (future != null) {
+				future.complete(null);
+			}
+		}
+		
+		private void fail(Throwable cause) {
+			if (future != null) {
+				future.completeExceptionally(cause);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a batch of events, either all the events of the batch are sent or none
+	 */
+	public interface BatchSender {
+		
+		void send(List<PendingEvent> events) throws Exception;
+	}
+	
+	private final Queue<PendingEvent> queue = new ConcurrentLinkedQueue<>();
+	
+	private final BatchSender sender;
+	
+	private final int maxBatchSize;
+	
+	private volatile int batchSize = 1;
+	
+	private final int capacity;
+	
+	private final Semaphore permits;
+	
+	private final OverflowPolicy overflowPolicy;
+	
+	private final long blockTimeout;
+	
+	private final EventSpool spool;
+	
+	private final CircuitBreaker circuitBreaker;
+	
+	/**
+	 * With a spool, guards moving events from the queue to the batch or the spool so they stay in
+	 * order, while the spool holds events new ones are spooled after them instead of being queued
+	 */
+	private final Object spoolLock = new Object();
+	
+	private final AtomicLong sentCount = new AtomicLong();
+	
+	private final AtomicLong droppedCount = new AtomicLong();
+	
+	private final AtomicLong spilledCount = new AtomicLong();
+	
+	private final AtomicLong failedCount = new AtomicLong();
+	
+	private final AtomicLong batchCount = new AtomicLong();
+	
+	private volatile Thread thread;
+	
+	private volatile boolean stopping;
+	
+	private volatile long stopDeadline;
+	
+	/**
+	 * @param sender sends the batches of events to the broker
+	 * @param maxBatchSize the maximum number of events sent in a batch
+	 * @param capacity the maximum number of queued events
+	 * @param overflowPolicy what to do with new events when the queue is full
+	 * @param blockTimeout the time in milliseconds to wait for space with {@link OverflowPolicy#BLOCK}
+	 * @param spool the spool, required with {@link OverflowPolicy#SPILL} and ignored otherwise
+	 * @param circuitBreaker guards the calls to the sender
+	 */
+	public EventPublishQueue(BatchSender sender, int maxBatchSize, int capacity, OverflowPolicy overflowPolicy,
+	    long blockTimeout, EventSpool spool, CircuitBreaker circuitBreaker) {
+		if (overflowPolicy == OverflowPolicy.SPILL && spool == null) {
+			throw new IllegalArgumentException("A spool is required to spill events");
+		}
+		this.sender = sender;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.capacity = Math.max(1, capacity);
+		this.permits = new Semaphore(this.capacity);
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeout = blockTimeout;
+		this.spool = overflowPolicy == OverflowPolicy.SPILL ? spool : null;
+		this.circuitBreaker = circuitBreaker;
+	}
+	
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		stopping = false;
+		thread = new Thread(this::run, "Event Publisher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stops the sender after it has sent the queued events or the timeout has elapsed, the events that
+	 * are still queued then are spilled to the spool if there is one and lost otherwise.
+	 * 
+	 * @param timeout the time in milliseconds to wait for the queued events to be sent
+	 */
+	public void stop(long timeout) {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			if (t == null) {
+				return;
+			}
+			stopDeadline = System.currentTimeMillis() + timeout;
+			stopping = true;
+		}
+		LockSupport.unpark(t);
+		try {
+			t.join(timeout + TimeUnit.SECONDS.toMillis(5));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			thread = null;
+		}
+	}
+	
+	/**
+	 * Queues the event to be sent, never blocks for longer than the block timeout
+	 * 
+	 * @param topicName the name of the topic to send the event to
+	 * @param eventMessage the event
+	 */
+	public void offer(String topicName, EventMessage eventMessage) {
+		offer(new PendingEvent(topicName, eventMessage));
+	}
+	
+	/**
+	 * Queues the event to be sent like {@link #offer(String, EventMessage)}
+	 * 
+	 * @param topicName the name of the topic to send the event to
+	 * @param eventMessage the event
+	 * @return a future completed once the event is sent or spooled, or completed exceptionally if the
+	 *         event is dropped
+	 */
+	public CompletableFuture<Void> offerAsync(String topicName, EventMessage eventMessage) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		offer(new PendingEvent(topicName, eventMessage, future));
+		return future;
+	}
+	
+	private void offer(PendingEvent event) {
+		if (spool != null) {
+			offerOrSpill(event);
+			return;
+		}
+		if (permits.tryAcquire()) {
+			enqueue(event);
+			return;
+		}
+		
+		switch (overflowPolicy) {
+			case BLOCK:
+				try {
+					if (permits.tryAcquire(blockTimeout, TimeUnit.MILLISECONDS)) {
+						enqueue(event);
+						return;
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				drop(event);
+				break;
+			case DROP_OLDEST:
+				PendingEvent oldest = queue.poll();
+				if (oldest != null) {
+					//The new event takes over the permit of the dropped one
+					drop(oldest);
+					enqueue(event);
+				} else if (permits.tryAcquire()) {
+					enqueue(event);
+				} else {
+					drop(event);
+				}
+				break;
+			default:
+				throw new IllegalStateException("Unexpected overflow policy " + overflowPolicy);
+		}
+	}
+	
+	/**
+	 * Queues the event unless the queue is full or the spool holds events, the queued events are then
+	 * spilled before the event so the events are sent in the order they were offered
+	 */
+	private void offerOrSpill(PendingEvent event) {
+		synchronized (spoolLock) {
+			if (spool.isEmpty() && permits.tryAcquire()) {
+				enqueue(event);
+				return;
+			}
+			for (PendingEvent queued = queue.poll(); queued != null; queued = queue.poll()) {
+				permits.release();
+				spill(queued);
+			}
+			spill(event);
+		}
+	}
+	
+	private void enqueue(PendingEvent event) {
+		queue.add(event);
+		Thread t = thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+	
+	private void drop(PendingEvent event) {
+		long dropped = droppedCount.incrementAndGet();
+		log.warn("The event publish queue is full, dropped the {} event (dropped so far: {})", event.topicName, dropped);
+		event.fail(new IllegalStateException("The event publish queue is full, the event was dropped"));
+	}
+	
+	private void spill(PendingEvent event) {
+		try {
+			spool.write(event.topicName, event.eventMessage);
+			spilledCount.incrementAndGet();
+			event.complete();
+		}
+		catch (IOException e) {
+			droppedCount.incrementAndGet();
+			log.error("Failed to spool the " + event.topicName + " event, the event is lost", e);
+			event.fail(e);
+		}
+	}
+	
+	private void run() {
+		List<PendingEvent> batch = new ArrayList<>();
+		while (!stopping || (!batch.isEmpty() || !queue.isEmpty()) && System.currentTimeMillis() < stopDeadline) {
+			if (spool != null && !spool.isEmpty()) {
+				//The batch was taken off the queue before the spooled events were written
+				spillQueued(batch);
+				if (circuitBreaker.allowRequest()) {
+					replaySpool();
+				} else {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+				continue;
+			}
+			
+			if (batch.isEmpty()) {
+				int size = batchSize;
+				drain(batch, size);
+				if (batch.isEmpty()) {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+					continue;
+				}
+				if (batch.size() < size) {
+					LockSupport.parkNanos(LINGER_NANOS);
+					drain(batch, size);
+				}
+			}
+			
+			if (!circuitBreaker.allowRequest()) {
+				if (spool != null) {
+					spillQueued(batch);
+				} else {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+				continue;
+			}
+			
+			try {
+				sender.send(batch);
+				circuitBreaker.recordSuccess();
+				sentCount.addAndGet(batch.size());
+				batchCount.incrementAndGet();
+				permits.release(batch.size());
+				adaptBatchSize(batch.size());
+				batch.forEach(PendingEvent::complete);
+				batch.clear();
+			}
+			catch (Exception e) {
+				circuitBreaker.recordFailure();
+				failedCount.incrementAndGet();
+				log.warn("Failed to send a batch of " + batch.size() + " events, will retry", e);
+				LockSupport.parkNanos(RETRY_PARK_NANOS);
+			}
+		}
+		
+		if (spool != null) {
+			spillQueued(batch);
+			spool.close();
+			return;
+		}
+		int lost = batch.size();
+		for (PendingEvent event : batch) {
+			permits.release();
+			event.fail(new IllegalStateException("The event publish queue was stopped before the event was sent"));
+		}
+		for (PendingEvent event = queue.poll(); event != null; event = queue.poll()) {
+			permits.release();
+			lost++;
+			event.fail(new IllegalStateException("The event publish queue was stopped before the event was sent"));
+		}
+		if (lost > 0) {
+			droppedCount.addAndGet(lost);
+			log.warn("Stopped the event publish queue with {} unsent events, they are lost", lost);
+		}
+	}
+	
+	private void drain(List<PendingEvent> batch, int size) {
+		if (spool != null) {
+			synchronized (spoolLock) {
+				if (spool.isEmpty()) {
+					drainQueue(batch, size);
+				}
+			}
+		} else {
+			drainQueue(batch, size);
+		}
+	}
+	
+	private void drainQueue(List<PendingEvent> batch, int size) {
+		while (batch.size() < size) {
+			PendingEvent event = queue.poll();
+			if (event == null) {
+				return;
+			}
+			batch.add(event);
+		}
+	}
+	
+	/**
+	 * Doubles the batch size after a full batch and moves it halfway to the size of a smaller batch
+	 */
+	private void adaptBatchSize(int sent) {
+		int size = batchSize;
+		if (sent >= size) {
+			batchSize = Math.min(size * 2, maxBatchSize);
+		} else {
+			batchSize = Math.max(1, (size + sent) / 2);
+		}
+	}
+	
+	/**
+	 * Spills the batch before the spooled events, then the queued events after them
+	 */
+	private void spillQueued(List<PendingEvent> batch) {
+		if (!batch.isEmpty()) {
+			permits.release(batch.size());
+			try {
+				spool.prepend(batch);
+				spilledCount.addAndGet(batch.size());
+				batch.forEach(PendingEvent::complete);
+			}
+			catch (IOException e) {
+				droppedCount.addAndGet(batch.size());
+				log.error("Failed to spool a batch of " + batch.size() + " events, the events are lost", e);
+				batch.forEach(event -> event.fail(e));
+			}
+			batch.clear();
+		}
+		synchronized (spoolLock) {
+			for (PendingEvent event = queue.poll(); event != null; event = queue.poll()) {
+				permits.release();
+				spill(event);
+			}
+		}
+	}
+	
+	private void replaySpool() {
+		try {
+			long sent = spool.replay(
+			    (topicName, eventMessage) -> sender.send(Collections.singletonList(new PendingEvent(topicName, eventMessage))));
+			circuitBreaker.recordSuccess();
+			sentCount.addAndGet(sent);
+			if (sent > 0) {
+				log.info("Sent {} spooled events", sent);
+			}
+		}
+		catch (Exception e) {
+			circuitBreaker.recordFailure();
+			failedCount.incrementAndGet();
+			log.warn("Failed to send the spooled events, will retry", e);
+			LockSupport.parkNanos(RETRY_PARK_NANOS);
+		}
+	}
+	
+	/**
+	 * @return the number of queued events including the one being sent
+	 */
+	public int getDepth() {
+		return capacity - permits.availablePermits();
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+	
+	public long getSentCount() {
+		return sentCount.get();
+	}
+	
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+	
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+	
+	/**
+	 * @return the number of batches sent
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+	
+	/**
+	 * @return the current target batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * @return the size in bytes of the spooled events
+	 */
+	public long getSpoolSize() {
+		return spool != null ? spool.getSize() : 0;
+	}
+	
+	/**
+	 * @return the metrics of the queue by name
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("depth", getDepth());
+		statistics.put("capacity", capacity);
+		statistics.put("overflowPolicy", overflowPolicy.name());
+		statistics.put("sent", getSentCount());
+		statistics.put("dropped", getDroppedCount());
+		statistics.put("spilled", getSpilledCount());
+		statistics.put("failed", getFailedCount());
+		statistics.put("batches", getBatchCount());
+		statistics.put("batchSize", getBatchSize());
+		statistics.put("spoolSize", getSpoolSize());
+		statistics.put("circuitBreaker", circuitBreaker.getState().name());
+		return statistics;
+	}
+}
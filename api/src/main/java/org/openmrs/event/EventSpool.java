@@ -0,0 +1,214 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores events on disk while they can't be sent to the broker. Events are appended to the current
+ * segment file, {@link #replay(EventSender)} closes the current segment and sends the events of the
+ * closed segments in the order they were written, a segment is deleted once all its events are
+ * sent. If sending fails part way through a segment, the segment is kept and the events of it that
+ * were already sent are sent again by the next replay.
+ */
+public class EventSpool {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventSpool.class);
+	
+	private static final String SEGMENT_PREFIX = "events-";
+	
+	private static final String SEGMENT_SUFFIX = ".spool";
+	
+	private final File directory;
+	
+	private DataOutputStream out;
+	
+	private long segment;
+	
+	private final AtomicLong size = new AtomicLong();
+	
+	/**
+	 * Sends an event read from the spool
+	 */
+	public interface EventSender {
+		
+		void send(String topicName, EventMessage eventMessage) throws Exception;
+	}
+	
+	public EventSpool(File directory) {
+		this.directory = directory;
+		if (!directory.exists() && !directory.mkdirs()) {
+			log.warn("Failed to create the event spool directory {}", directory);
+		}
+		for (File file : getSegments()) {
+			size.addAndGet(file.length());
+		}
+		segment = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Appends the event to the current segment
+	 */
+	public synchronized void write(String topicName, EventMessage eventMessage) throws IOException {
+		if (out == null) {
+			out = openSegment(segment++);
+		}
+		writeEvent(out, topicName, eventMessage);
+	}
+	
+	/**
+	 * Writes the events to a new segment that is replayed before the existing ones, for events that
+	 * were taken off the publish queue before the spooled events were written
+	 * 
+	 * @param events the events to write in order
+	 */
+	public synchronized void prepend(List<EventPublishQueue.PendingEvent> events) throws IOException {
+		if (events.isEmpty()) {
+			return;
+		}
+		File[] segments = getSegments();
+		long number;
+		if (segments.length > 0) {
+			String name = segments[0].getName();
+			number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())) - 1;
+		} else {
+			number = segment++;
+		}
+		try (DataOutputStream segmentOut = openSegment(number)) {
+			for (EventPublishQueue.PendingEvent event : events) {
+				writeEvent(segmentOut, event.getTopicName(), event.getEventMessage());
+			}
+		}
+	}
+	
+	private DataOutputStream openSegment(long number) throws IOException {
+		File file = new File(directory, SEGMENT_PREFIX + String.format("%020d", number) + SEGMENT_SUFFIX);
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	}
+	
+	private void writeEvent(DataOutputStream segmentOut, String topicName, EventMessage eventMessage)
+	        throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+			objectOut.writeObject(eventMessage);
+		}
+		int before = segmentOut.size();
+		segmentOut.writeUTF(topicName);
+		segmentOut.writeInt(bytes.size());
+		bytes.writeTo(segmentOut);
+		segmentOut.flush();
+		size.addAndGet(segmentOut.size() - before);
+	}
+	
+	/**
+	 * Sends the spooled events in order and stops at the first event that fails to be sent, events
+	 * written while replaying are sent by the next replay. Must not be called concurrently.
+	 * 
+	 * @param sender used to send the events
+	 * @return the number of events sent
+	 * @throws Exception the exception thrown by the sender
+	 */
+	public long replay(EventSender sender) throws Exception {
+		File[] segments;
+		synchronized (this) {
+			closeSegment();
+			segments = getSegments();
+		}
+		
+		long sent = 0;
+		for (File file : segments) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				while (true) {
+					String topicName;
+					try {
+						topicName = in.readUTF();
+					}
+					catch (EOFException e) {
+						break;
+					}
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+						sender.send(topicName, (EventMessage) objectIn.readObject());
+					}
+					sent++;
+				}
+			}
+			catch (EOFException e) {
+				log.warn("Ignoring the truncated end of the event spool segment {}", file);
+			}
+			long length = file.length();
+			if (file.delete()) {
+				size.addAndGet(-length);
+			} else {
+				log.warn("Failed to delete the event spool segment {}", file);
+			}
+		}
+		return sent;
+	}
+	
+	/**
+	 * @return true if there are no spooled events
+	 */
+	public boolean isEmpty() {
+		return size.get() <= 0;
+	}
+	
+	/**
+	 * @return the size in bytes of the spooled events
+	 */
+	public long getSize() {
+		return size.get();
+	}
+	
+	public synchronized void close() {
+		closeSegment();
+	}
+	
+	private void closeSegment() {
+		if (out != null) {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				log.warn("Failed to close the event spool segment", e);
+			}
+			out = null;
+		}
+	}
+	
+	private File[] getSegments() {
+		File[] files = directory
+		        .listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.PrivilegeConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Utility methods used by the event module
+ */
+public final class EventUtil {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventUtil.class);
+	
+	private EventUtil() {
+	}
+	
+	/**
+	 * Gets the value of the specified global property
+	 * 
+	 * @param property the name of the global property
+	 * @return the value or null if the property doesn't exist or can't be read yet
+	 */
+	public static String getGlobalProperty(String property) {
+		try {
+			Context.addProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+			return Context.getRegisteredComponent("adminService", AdministrationService.class).getGlobalProperty(property);
+		}
+		catch (NullPointerException ex) {
+			log.error("AdministrationService not yet initialized to get the " + property + " setting", ex);
+		}
+		finally {
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_GLOBAL_PROPERTIES);
+		}
+		return null;
+	}
+	
+	/**
+	 * @param property the name of the global property
+	 * @param defaultValue the value to return if the property is blank or not a valid integer
+	 * @return the integer value of the global property
+	 */
+	public static int getGlobalProperty(String property, int defaultValue) {
+		String value = getGlobalProperty(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value {} for {}, using the default {}", value, property, defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * @param property the name of the global property
+	 * @param defaultValue the value to return if the property is blank or not a valid long
+	 * @return the long value of the global property
+	 */
+	public static long getGlobalProperty(String property, long defaultValue) {
+		String value = getGlobalProperty(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value {} for {}, using the default {}", value, property, defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * @param property the name of the global property
+	 * @param defaultValue the value to return if the property is blank
+	 * @return the boolean value of the global property
+	 */
+	public static boolean getGlobalProperty(String property, boolean defaultValue) {
+		String value = getGlobalProperty(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value.trim());
+	}
+}
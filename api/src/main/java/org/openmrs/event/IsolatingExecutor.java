@@ -0,0 +1,297 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link OrderedExecutor} that isolates a listener from the others sharing the connection: the
+ * session threads only queue the messages in a bounded queue, never waiting, and a dedicated worker
+ * handles them in order. The messages are shed when the queue is full. A circuit breaker opens when
+ * the share of the recent deliveries that failed or were slower than the slow threshold reaches the
+ * error rate threshold, while it is open the messages are shed or parked in the queue until the
+ * breaker lets a trial delivery through.
+ */
+public class IsolatingExecutor implements OrderedExecutor {
+	
+	/**
+	 * A task told when it is shed instead of run, e.g. to run again later
+	 */
+	public interface SheddableTask extends Runnable {
+		
+		void shed();
+	}
+	
+	private static final Logger log = LoggerFactory.getLogger(IsolatingExecutor.class);
+	
+	private static final long POLL_INTERVAL = 100;
+	
+	/**
+	 * The number of recent deliveries the error rate is measured over
+	 */
+	static final int WINDOW = 20;
+	
+	private final String name;
+	
+	private final int capacity;
+	
+	private final long slowThreshold;
+	
+	private final double errorRateThreshold;
+	
+	private final boolean parkWhenOpen;
+	
+	private final BlockingQueue<Runnable> queue;
+	
+	private final CircuitBreaker circuitBreaker;
+	
+	//The outcomes of the recent deliveries, only accessed by the worker
+	private final boolean[] window = new boolean[WINDOW];
+	
+	private int windowSize;
+	
+	private int windowIndex;
+	
+	private final AtomicLong executed = new AtomicLong();
+	
+	private final AtomicLong failed = new AtomicLong();
+	
+	private final AtomicLong slow = new AtomicLong();
+	
+	private final AtomicLong shed = new AtomicLong();
+	
+	private volatile long averageNanos;
+	
+	private volatile boolean running;
+	
+	private Thread worker;
+	
+	/**
+	 * @param name the name of the worker thread
+	 * @param capacity the maximum number of queued messages
+	 * @param slowThreshold the time in milliseconds above which a delivery counts as failed
+	 * @param errorRateThreshold the share of failed recent deliveries that opens the breaker
+	 * @param openDuration the time in milliseconds the breaker stays open before a trial delivery
+	 * @param parkWhenOpen whether to keep the messages while the breaker is open instead of shedding
+	 *            them
+	 */
+	public IsolatingExecutor(String name, int capacity, long slowThreshold, double errorRateThreshold, long openDuration,
+	    boolean parkWhenOpen) {
+		this.name = name;
+		this.capacity = Math.max(1, capacity);
+		this.slowThreshold = slowThreshold;
+		this.errorRateThreshold = errorRateThreshold;
+		this.parkWhenOpen = parkWhenOpen;
+		queue = new ArrayBlockingQueue<>(this.capacity);
+		//Opened by the measured error rate instead of consecutive failures
+		circuitBreaker = new CircuitBreaker(Integer.MAX_VALUE, openDuration);
+	}
+	
+	@Override
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		worker = new Thread(this::work, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Queues the task without waiting, sheds it if the queue is full
+	 * 
+	 * @see OrderedExecutor#execute(Object, Runnable)
+	 */
+	@Override
+	public void execute(Object key, Runnable task) {
+		if (!running) {
+			throw new RejectedExecutionException(name + " is stopped");
+		}
+		if (!queue.offer(task)) {
+			long count = shed(task);
+			if (count == 1 || count % 1000 == 0) {
+				log.warn("{} is saturated, {} messages shed so far", name, count);
+			}
+		}
+	}
+	
+	private long shed(Runnable task) {
+		long count = shed.incrementAndGet();
+		if (task instanceof SheddableTask) {
+			((SheddableTask) task).shed();
+		}
+		return count;
+	}
+	
+	private void work() {
+		Runnable parked = null;
+		while (running || parked != null || !queue.isEmpty()) {
+			Runnable task = parked;
+			parked = null;
+			if (task == null) {
+				try {
+					task = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (task == null) {
+					continue;
+				}
+			}
+			
+			if (!circuitBreaker.allowRequest()) {
+				if (parkWhenOpen && running) {
+					parked = task;
+					try {
+						TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				} else {
+					shed(task);
+				}
+				continue;
+			}
+			
+			run(task);
+		}
+	}
+	
+	private void run(Runnable task) {
+		boolean trial = circuitBreaker.getState() == CircuitBreaker.State.HALF_OPEN;
+		boolean failure = false;
+		long start = System.nanoTime();
+		try {
+			task.run();
+		}
+		catch (RuntimeException e) {
+			failure = true;
+			failed.incrementAndGet();
+			log.error("Failed to handle a message in " + name, e);
+		}
+		finally {
+			executed.incrementAndGet();
+		}
+		long nanos = System.nanoTime() - start;
+		averageNanos = averageNanos == 0 ? nanos : averageNanos + (nanos - averageNanos) / 16;
+		if (!failure && slowThreshold > 0 && TimeUnit.NANOSECONDS.toMillis(nanos) > slowThreshold) {
+			failure = true;
+			slow.incrementAndGet();
+		}
+		
+		if (trial) {
+			windowSize = 0;
+			windowIndex = 0;
+			if (failure) {
+				circuitBreaker.recordFailure();
+			} else {
+				circuitBreaker.recordSuccess();
+			}
+			return;
+		}
+		
+		window[windowIndex] = failure;
+		windowIndex = (windowIndex + 1) % WINDOW;
+		windowSize = Math.min(windowSize + 1, WINDOW);
+		if (windowSize == WINDOW && getErrorRate() >= errorRateThreshold) {
+			log.warn("Opening the circuit breaker of {}, {} of the last {} deliveries failed or were slow", name,
+			    Math.round(getErrorRate() * WINDOW), WINDOW);
+			circuitBreaker.trip();
+			windowSize = 0;
+			windowIndex = 0;
+		}
+	}
+	
+	private double getErrorRate() {
+		int failures = 0;
+		for (int i = 0; i < windowSize; i++) {
+			if (window[i]) {
+				failures++;
+			}
+		}
+		return windowSize == 0 ? 0 : (double) failures / windowSize;
+	}
+	
+	/**
+	 * @see OrderedExecutor#stop(long)
+	 */
+	@Override
+	public boolean stop(long timeout) {
+		Thread thread;
+		synchronized (this) {
+			running = false;
+			thread = worker;
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(Math.max(1, timeout));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		boolean stopped = thread == null || !thread.isAlive();
+		if (!stopped) {
+			log.warn("Timed out after {}ms waiting for the {} queued messages of {}", timeout, queue.size(), name);
+		}
+		return stopped;
+	}
+	
+	public int getDepth() {
+		return queue.size();
+	}
+	
+	public long getShedCount() {
+		return shed.get();
+	}
+	
+	/**
+	 * @return true while the circuit breaker sheds or parks the messages, until it lets a trial
+	 *         delivery through and during the trial
+	 */
+	public boolean isCircuitBreakerOpen() {
+		return circuitBreaker.isRefusing();
+	}
+	
+	public CircuitBreaker.State getCircuitBreakerState() {
+		return circuitBreaker.getState();
+	}
+	
+	@Override
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("depth", getDepth());
+		statistics.put("capacity", capacity);
+		statistics.put("saturation", (double) getDepth() / capacity);
+		statistics.put("executed", executed.get());
+		statistics.put("failed", failed.get());
+		statistics.put("slow", slow.get());
+		statistics.put("shed", getShedCount());
+		statistics.put("averageMillis", averageNanos / 1000000.0);
+		statistics.put("circuitBreaker", getCircuitBreakerState().name());
+		statistics.put("circuitBreakerOpened", circuitBreaker.getOpenedCount());
+		return statistics;
+	}
+	
+}
@@ -9,11 +9,20 @@
  */
 package org.openmrs.event;
 
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
 import org.openmrs.event.api.db.hibernate.HibernateEventInterceptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Application listener that publishes all changes after they are committed to an asynchronous JMS
  * topic
@@ -23,11 +32,98 @@ public class JmsEventPublisher extends TransactionEventListener {
 	
 	private static final Logger log = LoggerFactory.getLogger(HibernateEventInterceptor.class);
 	
+	/**
+	 * Optional stage that folds child events into their parent events before they are fired
+	 */
+	@Getter
+	@Setter
+	private volatile EventAggregator aggregator;
+	
+	/**
+	 * When true the events are written to the outbox in the same transaction as the changes and fired
+	 * by the {@link EventOutboxRelay} instead of being fired after the transaction is committed
+	 */
+	@Getter
+	@Setter
+	private volatile boolean outboxEnabled;
+	
+	/**
+	 * Optional stage that collapses repeated UPDATED events of an entity across transactions, applied
+	 * by the {@link EventOutboxRelay} when the outbox is enabled
+	 */
+	@Getter
+	@Setter
+	private volatile EventCoalescer coalescer;
+	
 	@Override
 	public void transactionCommitted(TransactionCommittedEvent transactionEvent) {
-		for (EntityEvent entityEvent : transactionEvent.getEvents()) {
+		if (outboxEnabled) {
+			log.trace("Events were written to the outbox, the relay fires and coalesces them");
+			return;
+		}
+		
+		EventCoalescer eventCoalescer = coalescer;
+		for (Map.Entry<EntityEvent, EventMessage> entry : getEventsToFire(transactionEvent.getEvents()).entrySet()) {
+			EntityEvent entityEvent = entry.getKey();
+			if (eventCoalescer != null && coalesce(eventCoalescer, entityEvent, entry.getValue())) {
+				log.trace("Coalescing event {}: ", entityEvent);
+				continue;
+			}
 			log.trace("Firing event {}: ", entityEvent);
-			Event.fireAction(entityEvent.getAction().name(), entityEvent.getEntity());
+			Event.fireAction(entityEvent.getAction().name(), entityEvent.getEntity(), entry.getValue());
+		}
+	}
+	
+	private boolean coalesce(EventCoalescer eventCoalescer, EntityEvent entityEvent, EventMessage properties) {
+		String action = entityEvent.getAction().name();
+		String classname = entityEvent.getEntity().getClass().getName();
+		String uuid = entityEvent.getEntity().getUuid();
+		return eventCoalescer.coalesce(action + EventEngine.DELIMITER + classname, classname, uuid,
+		    EventEngine.createEventMessage(uuid, classname, action, properties));
+	}
+	
+	/**
+	 * Applies the aggregator if any to the specified events
+	 * 
+	 * @param events the events of a transaction
+	 * @return the events to fire in order mapped to the properties to add to their messages
+	 */
+	public Map<EntityEvent, EventMessage> getEventsToFire(Collection<EntityEvent> events) {
+		Map<EntityEvent, EventMessage> eventsToFire = new LinkedHashMap<>();
+		EventAggregator eventAggregator = aggregator;
+		if (eventAggregator == null || eventAggregator.isEmpty()) {
+			for (EntityEvent entityEvent : events) {
+				eventsToFire.put(entityEvent, getMessageProperties(entityEvent, Collections.emptyList()));
+			}
+		} else {
+			for (Map.Entry<EntityEvent, List<EntityEvent>> entry : eventAggregator.aggregate(events).entrySet()) {
+				eventsToFire.put(entry.getKey(), getMessageProperties(entry.getKey(), entry.getValue()));
+			}
+		}
+		return eventsToFire;
+	}
+	
+	/**
+	 * @param entityEvent the entity event
+	 * @param childEvents the child events folded into the entity event
+	 * @return the properties to add to the message fired for the entity event
+	 */
+	protected EventMessage getMessageProperties(EntityEvent entityEvent, List<EntityEvent> childEvents) {
+		EventMessage properties = new EventMessage();
+		if (!entityEvent.getChangedCollections().isEmpty()) {
+			properties.put(EventMessage.CHANGED_COLLECTIONS, StringUtils.join(entityEvent.getChangedCollections(), ','));
+		}
+		if (!childEvents.isEmpty()) {
+			StringBuilder children = new StringBuilder();
+			for (EntityEvent childEvent : childEvents) {
+				if (children.length() > 0) {
+					children.append(',');
+				}
+				children.append(childEvent.getAction()).append(':').append(childEvent.getEntity().getClass().getName())
+				        .append(':').append(childEvent.getEntity().getUuid());
+			}
+			properties.put(EventMessage.CHILD_EVENTS, children.toString());
 		}
+		return properties;
 	}
 }
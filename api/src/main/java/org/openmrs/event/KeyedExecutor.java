@@ -0,0 +1,224 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a fixed number of workers, each with its own bounded queue. The tasks with the same
+ * key always go to the same worker so they run in the order they were submitted, the tasks with
+ * different keys can run in parallel. Submitting blocks while the queue of the worker is full.
+ */
+public class KeyedExecutor implements OrderedExecutor {
+	
+	private static final Logger log = LoggerFactory.getLogger(KeyedExecutor.class);
+	
+	private static final long POLL_INTERVAL = 100;
+	
+	private class Worker implements Runnable {
+		
+		private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueCapacity);
+		
+		private final AtomicLong executed = new AtomicLong();
+		
+		private volatile int maxDepth;
+		
+		private Thread thread;
+		
+		@Override
+		public void run() {
+			while (running || !queue.isEmpty()) {
+				Runnable task;
+				try {
+					task = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (task == null) {
+					continue;
+				}
+				try {
+					task.run();
+				}
+				catch (RuntimeException e) {
+					log.error("Failed to run a task in " + name, e);
+				}
+				finally {
+					executed.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	private final String name;
+	
+	private final int queueCapacity;
+	
+	private final Worker[] workers;
+	
+	private final AtomicInteger nextWorker = new AtomicInteger();
+	
+	private volatile boolean running;
+	
+	/**
+	 * @param name the name of the worker threads
+	 * @param workerCount the number of workers
+	 * @param queueCapacity the maximum number of tasks waiting for each worker
+	 */
+	public KeyedExecutor(String name, int workerCount, int queueCapacity) {
+		this.name = name;
+		this.queueCapacity = Math.max(1, queueCapacity);
+		workers = new Worker[Math.max(1, workerCount)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker();
+		}
+	}
+	
+	@Override
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < workers.length; i++) {
+			Thread thread = new Thread(workers[i], name + "-" + i);
+			thread.setDaemon(true);
+			workers[i].thread = thread;
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Queues the task on the worker of the key, waits for room in its queue if it is full
+	 * 
+	 * @see OrderedExecutor#execute(Object, Runnable)
+	 */
+	@Override
+	public void execute(Object key, Runnable task) {
+		if (!running) {
+			throw new RejectedExecutionException(name + " is stopped");
+		}
+		int index = key != null ? Math.floorMod(key.hashCode(), workers.length)
+		        : Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+		Worker worker = workers[index];
+		try {
+			worker.queue.put(task);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for room in " + name, e);
+		}
+		int depth = worker.queue.size();
+		if (depth > worker.maxDepth) {
+			worker.maxDepth = depth;
+		}
+	}
+	
+	/**
+	 * @see OrderedExecutor#stop(long)
+	 */
+	@Override
+	public boolean stop(long timeout) {
+		synchronized (this) {
+			running = false;
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean stopped = true;
+		for (Worker worker : workers) {
+			Thread thread = worker.thread;
+			if (thread == null || thread == Thread.currentThread()) {
+				continue;
+			}
+			try {
+				thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (thread.isAlive()) {
+				stopped = false;
+			}
+		}
+		if (!stopped) {
+			log.warn("Timed out after {}ms waiting for the queued tasks of {}", timeout, name);
+		}
+		return stopped;
+	}
+	
+	public int getWorkerCount() {
+		return workers.length;
+	}
+	
+	/**
+	 * @return the number of queued tasks
+	 */
+	public int getDepth() {
+		int depth = 0;
+		for (Worker worker : workers) {
+			depth += worker.queue.size();
+		}
+		return depth;
+	}
+	
+	public long getExecutedCount() {
+		long executed = 0;
+		for (Worker worker : workers) {
+			executed += worker.executed.get();
+		}
+		return executed;
+	}
+	
+	/**
+	 * @return the ratio of the tasks run by the busiest worker to the average per worker, 1 when the
+	 *         keys are evenly spread
+	 */
+	public double getSkew() {
+		long max = 0;
+		long total = 0;
+		for (Worker worker : workers) {
+			long executed = worker.executed.get();
+			max = Math.max(max, executed);
+			total += executed;
+		}
+		return total == 0 ? 1 : (double) max * workers.length / total;
+	}
+	
+	@Override
+	public Map<String, Object> getStatistics() {
+		int maxDepth = 0;
+		int maxDepthEver = 0;
+		for (Worker worker : workers) {
+			maxDepth = Math.max(maxDepth, worker.queue.size());
+			maxDepthEver = Math.max(maxDepthEver, worker.maxDepth);
+		}
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("workers", workers.length);
+		statistics.put("queueCapacity", queueCapacity);
+		statistics.put("depth", getDepth());
+		statistics.put("maxWorkerDepth", maxDepth);
+		statistics.put("highWaterMark", maxDepthEver);
+		statistics.put("executed", getExecutedCount());
+		statistics.put("skew", getSkew());
+		return statistics;
+	}
+	
+}
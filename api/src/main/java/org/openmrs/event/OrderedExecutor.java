@@ -0,0 +1,44 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import java.util.Map;
+
+/**
+ * Runs tasks so that the tasks with the same key run in the order they were submitted while the
+ * tasks with different keys can run in parallel
+ */
+public interface OrderedExecutor {
+	
+	void start();
+	
+	/**
+	 * Queues the task, waits for room if the executor is full
+	 * 
+	 * @param key the key, the tasks with a null key can run in any order
+	 * @param task the task to run
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor is stopped
+	 */
+	void execute(Object key, Runnable task);
+	
+	/**
+	 * Stops accepting tasks and waits for the queued ones to run
+	 * 
+	 * @param timeout the time in milliseconds to wait for the queued tasks
+	 * @return true if all the queued tasks ran within the timeout
+	 */
+	boolean stop(long timeout);
+	
+	/**
+	 * @return the metrics of the executor by name
+	 */
+	Map<String, Object> getStatistics();
+	
+}
@@ -0,0 +1,183 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jms.JMSException;
+import javax.jms.Session;
+import javax.jms.TopicSubscriber;
+
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.ActiveMQSession;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ConsumerControl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the time a listener takes to handle the messages of a subscription and, in adaptive mode,
+ * tunes the prefetch of its consumer so that the messages buffered by the consumer take about
+ * {@link #TARGET_BUFFER_MILLIS} to handle by the threads of the listener. The prefetch drops to the
+ * minimum while the heap is nearly full. The new prefetch is sent to the broker with a
+ * {@link ConsumerControl} command.
+ */
+class PrefetchController {
+	
+	private static final Logger log = LoggerFactory.getLogger(PrefetchController.class);
+	
+	static final long TARGET_BUFFER_MILLIS = 1000;
+	
+	static final long ADJUST_INTERVAL = 5000;
+	
+	static final double HEAP_PRESSURE = 0.8;
+	
+	private final Session session;
+	
+	private final TopicSubscriber subscriber;
+	
+	private final boolean adaptive;
+	
+	private final int minPrefetch;
+	
+	private final int maxPrefetch;
+	
+	/**
+	 * The number of messages of the subscription that can be handled at the same time
+	 */
+	private final int parallelism;
+	
+	private final long adjustInterval;
+	
+	private volatile int prefetch;
+	
+	private volatile long averageNanos;
+	
+	//Guarded by this
+	private long lastAdjusted = System.currentTimeMillis();
+	
+	PrefetchController(Session session, TopicSubscriber subscriber, SubscriptionOptions options) {
+		this(session, subscriber, options, ADJUST_INTERVAL);
+	}
+	
+	/**
+	 * @param adjustInterval the minimum time in milliseconds between two adjustments of the prefetch
+	 */
+	PrefetchController(Session session, TopicSubscriber subscriber, SubscriptionOptions options, long adjustInterval) {
+		this.session = session;
+		this.subscriber = subscriber;
+		this.adjustInterval = adjustInterval;
+		adaptive = options.isAdaptivePrefetch();
+		minPrefetch = Math.max(1, options.getMinPrefetch());
+		maxPrefetch = Math.max(minPrefetch, options.getMaxPrefetch());
+		prefetch = getInitialPrefetch(options);
+		parallelism = getParallelism(options);
+	}
+	
+	/**
+	 * @return the number of messages of a subscription with the options that can be handled at the
+	 *         same time
+	 */
+	static int getParallelism(SubscriptionOptions options) {
+		if (options.isIsolated()) {
+			return 1;
+		}
+		if (options.isVirtualThreads()) {
+			return options.getMaxInFlight();
+		}
+		return Math.max(1, Math.max(options.getConcurrency(), options.getMaxConcurrency()));
+	}
+	
+	/**
+	 * @return the prefetch to create the consumer with, 0 for the default
+	 */
+	static int getInitialPrefetch(SubscriptionOptions options) {
+		if (options.getPrefetch() > 0) {
+			return options.getPrefetch();
+		}
+		return options.isAdaptivePrefetch() ? Math.max(1, options.getMaxPrefetch()) : 0;
+	}
+	
+	/**
+	 * Records the time it took the listener to handle a message, called by the threads handling the
+	 * messages
+	 * 
+	 * @param nanos the time in nanoseconds
+	 */
+	synchronized void record(long nanos) {
+		averageNanos = averageNanos == 0 ? nanos : averageNanos + (nanos - averageNanos) / 16;
+		long now = System.currentTimeMillis();
+		if (adaptive && now - lastAdjusted >= adjustInterval) {
+			lastAdjusted = now;
+			adjust();
+		}
+	}
+	
+	private void adjust() {
+		int target;
+		if (getHeapUsage() > HEAP_PRESSURE) {
+			target = minPrefetch;
+		} else {
+			double averageMillis = averageNanos / 1000000.0;
+			target = averageMillis > 0
+			        ? (int) Math.min(maxPrefetch, TARGET_BUFFER_MILLIS * parallelism / averageMillis) : maxPrefetch;
+		}
+		target = Math.max(minPrefetch, Math.min(maxPrefetch, target));
+		//Avoid sending a command for small changes
+		if (Math.abs(target - prefetch) > prefetch / 4) {
+			setPrefetch(target);
+		}
+	}
+	
+	private void setPrefetch(int newPrefetch) {
+		if (!(session instanceof ActiveMQSession) || !(subscriber instanceof ActiveMQMessageConsumer)) {
+			return;
+		}
+		try {
+			ConsumerControl control = new ConsumerControl();
+			control.setConsumerId(((ActiveMQMessageConsumer) subscriber).getConsumerId());
+			control.setDestination(ActiveMQDestination.transform(subscriber.getTopic()));
+			control.setPrefetch(newPrefetch);
+			((ActiveMQSession) session).getConnection().asyncSendPacket(control);
+			log.debug("Changed the prefetch of the subscription to {} from {} to {}", subscriber.getTopic(), prefetch,
+			    newPrefetch);
+			prefetch = newPrefetch;
+		}
+		catch (JMSException e) {
+			log.warn("Failed to change the prefetch of a subscription", e);
+		}
+	}
+	
+	private static double getHeapUsage() {
+		Runtime runtime = Runtime.getRuntime();
+		return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+	}
+	
+	int getPrefetch() {
+		return prefetch;
+	}
+	
+	/**
+	 * @return the number of messages received by the consumer and not handed to the listener yet
+	 */
+	int getBuffered() {
+		return subscriber instanceof ActiveMQMessageConsumer ? ((ActiveMQMessageConsumer) subscriber).getMessageSize() : 0;
+	}
+	
+	Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("prefetch", getPrefetch());
+		statistics.put("inFlight", getBuffered());
+		statistics.put("averageMillis", averageNanos / 1000000.0);
+		return statistics;
+	}
+	
+}
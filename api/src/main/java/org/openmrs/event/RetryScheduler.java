@@ -0,0 +1,429 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers messages to listeners and retries the failed deliveries later with an exponential backoff
+ * and jitter, so the thread of the session moves on to the next message. The retries run on the
+ * executor of the subscription if any, with the key of the message, otherwise on the threads of the
+ * scheduler holding the lock of the listener that the sessions deliver under too, so a listener
+ * without an executor is never called concurrently for its retries. A message still failing after
+ * the maximum number of retries, or failing while the maximum number of retries are pending, is sent
+ * to the dead letter queue of the listener. The retries of an isolated subscription wait while the
+ * circuit breaker of its executor is open and their failures are rethrown to the executor so that
+ * the breaker counts them.
+ */
+public class RetryScheduler {
+	
+	private static final Logger log = LoggerFactory.getLogger(RetryScheduler.class);
+	
+	private static final int THREADS = 2;
+	
+	/**
+	 * Sends the messages that could not be delivered to the dead letter queue of a listener
+	 */
+	public interface DeadLetterSender {
+		
+		void send(String listenerId, Message message, int attempts, Throwable error) throws Exception;
+	}
+	
+	private class Retry implements Runnable {
+		
+		private final EventListener listener;
+		
+		private final String listenerId;
+		
+		private final Message message;
+		
+		private final SubscriptionOptions options;
+		
+		private final OrderedExecutor listenerExecutor;
+		
+		private final Object key;
+		
+		private int attempts = 1;
+		
+		private Throwable error;
+		
+		private final int generation;
+		
+		private volatile ScheduledFuture<?> future;
+		
+		private Retry(EventListener listener, String listenerId, Message message, SubscriptionOptions options,
+		    OrderedExecutor listenerExecutor, Object key) {
+			this.listener = listener;
+			this.listenerId = listenerId;
+			this.message = message;
+			this.options = options;
+			this.listenerExecutor = listenerExecutor;
+			this.key = key;
+			generation = getGeneration(listener);
+		}
+		
+		private boolean isCancelled() {
+			return generation != getGeneration(listener);
+		}
+		
+		@Override
+		public void run() {
+			pending.remove(this);
+			if (listenerExecutor == null) {
+				attempt();
+				return;
+			}
+			if (listenerExecutor instanceof IsolatingExecutor) {
+				if (((IsolatingExecutor) listenerExecutor).isCircuitBreakerOpen()) {
+					postpone();
+					return;
+				}
+				executeIsolated();
+				return;
+			}
+			try {
+				listenerExecutor.execute(key, this::attempt);
+			}
+			catch (RejectedExecutionException e) {
+				//The subscription is closed
+				deadLetter(this);
+			}
+		}
+		
+		/**
+		 * Hands the retry to the worker of an isolated subscription, postponed again if shed
+		 */
+		private void executeIsolated() {
+			try {
+				listenerExecutor.execute(key, new IsolatingExecutor.SheddableTask() {
+					
+					@Override
+					public void run() {
+						attempt();
+					}
+					
+					@Override
+					public void shed() {
+						postpone();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				//The subscription is closed
+				deadLetter(this);
+			}
+		}
+		
+		/**
+		 * Retries later without counting an attempt while the circuit breaker of an isolated
+		 * subscription refuses the deliveries
+		 */
+		private void postpone() {
+			if (!running || isCancelled()) {
+				deadLetter(this);
+				return;
+			}
+			schedule(this, getDelay(this));
+		}
+		
+		private void attempt() {
+			if (isCancelled()) {
+				deadLetter(this);
+				return;
+			}
+			attempts++;
+			try {
+				if (listenerExecutor != null) {
+					listener.onMessage(message);
+				} else {
+					synchronized (getLock(listener)) {
+						listener.onMessage(message);
+					}
+				}
+				succeeded.incrementAndGet();
+			}
+			catch (RuntimeException e) {
+				error = e;
+				onFailure(this);
+				if (options.isIsolated()) {
+					throw e;
+				}
+			}
+		}
+	}
+	
+	private final DeadLetterSender deadLetterSender;
+	
+	private final ScheduledThreadPoolExecutor executor;
+	
+	private final Set<Retry> pending = ConcurrentHashMap.newKeySet();
+	
+	private final int maxPending;
+	
+	/**
+	 * The locks by class name the listeners without an executor are delivered under
+	 */
+	private final Map<String, Object> locks = new ConcurrentHashMap<>();
+	
+	/**
+	 * Incremented by class name when the retries of a listener are cancelled, the retries created
+	 * before are dead lettered instead of delivered
+	 */
+	private final Map<String, AtomicInteger> generations = new ConcurrentHashMap<>();
+	
+	private final AtomicLong scheduled = new AtomicLong();
+	
+	private final AtomicLong succeeded = new AtomicLong();
+	
+	private final AtomicLong overflowed = new AtomicLong();
+	
+	private final Map<String, AtomicLong> deadLettered = new ConcurrentHashMap<>();
+	
+	private volatile boolean running = true;
+	
+	public RetryScheduler(DeadLetterSender deadLetterSender) {
+		this(deadLetterSender, EventConstants.DEFAULT_MAX_PENDING_RETRIES);
+	}
+	
+	/**
+	 * @param deadLetterSender sends the messages that could not be delivered
+	 * @param maxPending the maximum number of pending retries, the messages failing beyond it are sent
+	 *            to the dead letter queue right away
+	 */
+	public RetryScheduler(DeadLetterSender deadLetterSender, int maxPending) {
+		this.deadLetterSender = deadLetterSender;
+		this.maxPending = maxPending;
+		AtomicInteger number = new AtomicInteger();
+		executor = new ScheduledThreadPoolExecutor(THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "Event Retry-" + number.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+	}
+	
+	/**
+	 * Delivers the message to the listener and schedules a retry on the threads of the scheduler if it
+	 * fails
+	 * 
+	 * @param listener the listener
+	 * @param listenerId the id of the listener the dead letter queue is named after
+	 * @param message the message
+	 * @param options the retry options of the subscription
+	 */
+	public void deliver(EventListener listener, String listenerId, Message message, SubscriptionOptions options) {
+		deliver(listener, listenerId, message, options, null, null);
+	}
+	
+	/**
+	 * Delivers the message to the listener and schedules a retry on the executor if it fails, the
+	 * failure is rethrown once the retry is scheduled if the subscription is isolated
+	 * 
+	 * @param listener the listener
+	 * @param listenerId the id of the listener the dead letter queue is named after
+	 * @param message the message
+	 * @param options the retry options of the subscription
+	 * @param executor the executor of the subscription, null to retry on the threads of the scheduler
+	 * @param key the key of the message on the executor
+	 */
+	public void deliver(EventListener listener, String listenerId, Message message, SubscriptionOptions options,
+	        OrderedExecutor executor, Object key) {
+		try {
+			if (executor != null) {
+				listener.onMessage(message);
+			} else {
+				synchronized (getLock(listener)) {
+					listener.onMessage(message);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			Retry retry = new Retry(listener, listenerId, message, options, executor, key);
+			retry.error = e;
+			onFailure(retry);
+			if (executor != null && options.isIsolated()) {
+				throw e;
+			}
+		}
+	}
+	
+	private void onFailure(Retry retry) {
+		if (retry.attempts > retry.options.getMaxRetries() || !running || retry.isCancelled()) {
+			deadLetter(retry);
+			return;
+		}
+		if (pending.size() >= maxPending) {
+			overflowed.incrementAndGet();
+			log.warn("{} retries are pending, not retrying a message to {}", maxPending, retry.listenerId);
+			deadLetter(retry);
+			return;
+		}
+		long delay = getDelay(retry);
+		log.debug("Delivery {} of a message to {} failed, retrying in {}ms", retry.attempts, retry.listenerId, delay);
+		scheduled.incrementAndGet();
+		schedule(retry, delay);
+	}
+	
+	private static long getDelay(Retry retry) {
+		return getDelay(retry.attempts, retry.options.getRetryDelay(), retry.options.getMaxRetryDelay());
+	}
+	
+	private void schedule(Retry retry, long delay) {
+		pending.add(retry);
+		try {
+			retry.future = executor.schedule(retry, delay, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			//The scheduler is stopping
+			pending.remove(retry);
+			deadLetter(retry);
+		}
+	}
+	
+	/**
+	 * @param attempts the number of failed attempts so far
+	 * @param delay the delay after the first failure
+	 * @param maxDelay the maximum delay
+	 * @return the delay doubled for each failed attempt after the first, capped by the max delay, with
+	 *         a random half of it as jitter so the retries of messages that failed together spread out
+	 */
+	static long getDelay(int attempts, long delay, long maxDelay) {
+		long backoff = delay << Math.min(attempts - 1, 30);
+		if (backoff <= 0 || backoff > maxDelay) {
+			backoff = maxDelay;
+		}
+		long half = backoff / 2;
+		return half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+	
+	private void deadLetter(Retry retry) {
+		deadLettered.computeIfAbsent(retry.listenerId, id -> new AtomicLong()).incrementAndGet();
+		log.error("Failed to deliver a message to " + retry.listenerId + " after " + retry.attempts
+		        + " attempts, sending it to the dead letter queue",
+		    retry.error);
+		try {
+			deadLetterSender.send(retry.listenerId, retry.message, retry.attempts, retry.error);
+		}
+		catch (Exception e) {
+			log.error("Failed to send a message to the dead letter queue of " + retry.listenerId, e);
+		}
+	}
+	
+	/**
+	 * Cancels the pending retries of a listener that has no more subscriptions and sends their
+	 * messages to its dead letter queue, the retries being delivered go there too if they fail
+	 * 
+	 * @param listenerClassName the class name of the listener
+	 */
+	public void cancel(String listenerClassName) {
+		generations.computeIfAbsent(listenerClassName, name -> new AtomicInteger()).incrementAndGet();
+		List<Retry> cancelled = new ArrayList<>();
+		for (Retry retry : pending) {
+			if (retry.listener.getClass().getName().equals(listenerClassName)) {
+				ScheduledFuture<?> future = retry.future;
+				if (future != null && future.cancel(false)) {
+					cancelled.add(retry);
+				}
+			}
+		}
+		pending.removeAll(cancelled);
+		for (Retry retry : cancelled) {
+			deadLetter(retry);
+		}
+	}
+	
+	/**
+	 * Cancels the pending retries and sends their messages to the dead letter queues
+	 * 
+	 * @param timeout the time in milliseconds to wait for the running retries
+	 */
+	public void stop(long timeout) {
+		running = false;
+		List<Retry> cancelled = new ArrayList<>();
+		for (Retry retry : pending) {
+			ScheduledFuture<?> future = retry.future;
+			if (future != null && future.cancel(false)) {
+				cancelled.add(retry);
+			}
+		}
+		pending.removeAll(cancelled);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Retry retry : cancelled) {
+			deadLetter(retry);
+		}
+	}
+	
+	private Object getLock(EventListener listener) {
+		return locks.computeIfAbsent(listener.getClass().getName(), name -> new Object());
+	}
+	
+	private int getGeneration(EventListener listener) {
+		AtomicInteger generation = generations.get(listener.getClass().getName());
+		return generation != null ? generation.get() : 0;
+	}
+	
+	public int getPendingCount() {
+		return pending.size();
+	}
+	
+	public long getScheduledCount() {
+		return scheduled.get();
+	}
+	
+	public long getSucceededCount() {
+		return succeeded.get();
+	}
+	
+	public long getOverflowedCount() {
+		return overflowed.get();
+	}
+	
+	public long getDeadLetteredCount() {
+		long count = 0;
+		for (AtomicLong value : deadLettered.values()) {
+			count += value.get();
+		}
+		return count;
+	}
+	
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("pending", getPendingCount());
+		statistics.put("scheduled", getScheduledCount());
+		statistics.put("succeeded", getSucceededCount());
+		statistics.put("overflowed", getOverflowedCount());
+		statistics.put("deadLettered", getDeadLetteredCount());
+		deadLettered.forEach((listenerId, count) -> statistics.put("deadLettered." + listenerId, count.get()));
+		return statistics;
+	}
+	
+}
@@ -0,0 +1,317 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link OrderedExecutor} backed by a pool of threads that grows from the minimum to the maximum
+ * number of threads while there are tasks waiting and no idle thread, and shrinks back when threads
+ * stay idle. The tasks of a key are chained, a single thread runs them at a time in the order they
+ * were submitted, so the ordering does not depend on the number of threads.
+ */
+public class ScalingExecutor implements OrderedExecutor {
+	
+	private static final Logger log = LoggerFactory.getLogger(ScalingExecutor.class);
+	
+	private static final long POLL_INTERVAL = 100;
+	
+	/**
+	 * The tasks of a key waiting to run
+	 */
+	private static class KeyTasks {
+		
+		private final Object key;
+		
+		private final Queue<Runnable> tasks = new ArrayDeque<>();
+		
+		private KeyTasks(Object key) {
+			this.key = key;
+		}
+	}
+	
+	private final String name;
+	
+	private final int minThreads;
+	
+	private final int maxThreads;
+	
+	private final long idleTimeout;
+	
+	private final int capacity;
+	
+	private final Semaphore permits;
+	
+	private final BlockingQueue<KeyTasks> ready = new LinkedBlockingQueue<>();
+	
+	private final Map<Object, KeyTasks> pending = new HashMap<>();
+	
+	private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+	
+	private final AtomicInteger threadCount = new AtomicInteger();
+	
+	private final AtomicInteger idleCount = new AtomicInteger();
+	
+	private final AtomicInteger threadNumber = new AtomicInteger();
+	
+	private final AtomicLong executed = new AtomicLong();
+	
+	private final AtomicLong scaledUp = new AtomicLong();
+	
+	private final AtomicLong scaledDown = new AtomicLong();
+	
+	private volatile int peakThreads;
+	
+	private volatile long averageNanos;
+	
+	private volatile boolean running;
+	
+	/**
+	 * @param name the name of the threads
+	 * @param minThreads the number of threads kept even when idle
+	 * @param maxThreads the maximum number of threads
+	 * @param idleTimeout the time in milliseconds after which an idle thread above the minimum stops
+	 * @param capacity the maximum number of tasks waiting to run
+	 */
+	public ScalingExecutor(String name, int minThreads, int maxThreads, long idleTimeout, int capacity) {
+		this.name = name;
+		this.minThreads = Math.max(1, minThreads);
+		this.maxThreads = Math.max(this.minThreads, maxThreads);
+		this.idleTimeout = Math.max(POLL_INTERVAL, idleTimeout);
+		this.capacity = Math.max(1, capacity);
+		permits = new Semaphore(this.capacity);
+	}
+	
+	@Override
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < minThreads; i++) {
+			addThread();
+		}
+	}
+	
+	/**
+	 * Queues the task behind the waiting tasks of its key, waits for room if there are too many tasks
+	 * waiting and adds a thread if none is idle
+	 * 
+	 * @see OrderedExecutor#execute(Object, Runnable)
+	 */
+	@Override
+	public void execute(Object key, Runnable task) {
+		if (!running) {
+			throw new RejectedExecutionException(name + " is stopped");
+		}
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for room in " + name, e);
+		}
+		
+		KeyTasks keyTasks;
+		synchronized (pending) {
+			keyTasks = key != null ? pending.get(key) : null;
+			if (keyTasks != null) {
+				//A thread is already running or about to run the tasks of the key
+				keyTasks.tasks.add(task);
+				return;
+			}
+			keyTasks = new KeyTasks(key);
+			keyTasks.tasks.add(task);
+			if (key != null) {
+				pending.put(key, keyTasks);
+			}
+		}
+		ready.add(keyTasks);
+		if (idleCount.get() == 0 && addThread()) {
+			scaledUp.incrementAndGet();
+		}
+	}
+	
+	private boolean addThread() {
+		int count;
+		do {
+			count = threadCount.get();
+			if (count >= maxThreads) {
+				return false;
+			}
+		} while (!threadCount.compareAndSet(count, count + 1));
+		peakThreads = Math.max(peakThreads, count + 1);
+		
+		Thread thread = new Thread(this::work, name + "-" + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		threads.add(thread);
+		thread.start();
+		return true;
+	}
+	
+	private boolean removeThread() {
+		int count;
+		do {
+			count = threadCount.get();
+			if (count <= minThreads && running) {
+				return false;
+			}
+		} while (!threadCount.compareAndSet(count, count - 1));
+		threads.remove(Thread.currentThread());
+		return true;
+	}
+	
+	private void work() {
+		long idleSince = System.currentTimeMillis();
+		while (true) {
+			KeyTasks keyTasks;
+			idleCount.incrementAndGet();
+			try {
+				keyTasks = ready.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				threadCount.decrementAndGet();
+				threads.remove(Thread.currentThread());
+				return;
+			}
+			finally {
+				idleCount.decrementAndGet();
+			}
+			
+			if (keyTasks != null) {
+				//More tasks may have been queued while this thread was counted as idle
+				if (!ready.isEmpty() && idleCount.get() == 0 && addThread()) {
+					scaledUp.incrementAndGet();
+				}
+				run(keyTasks);
+				idleSince = System.currentTimeMillis();
+			} else if (!running) {
+				if (ready.isEmpty() && removeThread()) {
+					return;
+				}
+			} else if (System.currentTimeMillis() - idleSince >= idleTimeout) {
+				if (removeThread()) {
+					scaledDown.incrementAndGet();
+					return;
+				}
+				idleSince = System.currentTimeMillis();
+			}
+		}
+	}
+	
+	private void run(KeyTasks keyTasks) {
+		while (true) {
+			Runnable task;
+			synchronized (pending) {
+				task = keyTasks.tasks.poll();
+				if (task == null) {
+					if (keyTasks.key != null) {
+						pending.remove(keyTasks.key);
+					}
+					return;
+				}
+			}
+			long start = System.nanoTime();
+			try {
+				task.run();
+			}
+			catch (RuntimeException e) {
+				log.error("Failed to run a task in " + name, e);
+			}
+			finally {
+				long nanos = System.nanoTime() - start;
+				averageNanos = averageNanos == 0 ? nanos : averageNanos + (nanos - averageNanos) / 8;
+				executed.incrementAndGet();
+				permits.release();
+			}
+		}
+	}
+	
+	/**
+	 * @see OrderedExecutor#stop(long)
+	 */
+	@Override
+	public boolean stop(long timeout) {
+		synchronized (this) {
+			running = false;
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		for (Thread thread : threads) {
+			if (thread == Thread.currentThread()) {
+				continue;
+			}
+			try {
+				thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		boolean stopped = threadCount.get() == 0;
+		if (!stopped) {
+			log.warn("Timed out after {}ms waiting for the queued tasks of {}", timeout, name);
+		}
+		return stopped;
+	}
+	
+	public int getThreadCount() {
+		return threadCount.get();
+	}
+	
+	public int getPeakThreadCount() {
+		return peakThreads;
+	}
+	
+	/**
+	 * @return the number of tasks waiting or running
+	 */
+	public int getDepth() {
+		return capacity - permits.availablePermits();
+	}
+	
+	public long getExecutedCount() {
+		return executed.get();
+	}
+	
+	@Override
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("minThreads", minThreads);
+		statistics.put("maxThreads", maxThreads);
+		statistics.put("threads", getThreadCount());
+		statistics.put("idleThreads", idleCount.get());
+		statistics.put("peakThreads", getPeakThreadCount());
+		statistics.put("capacity", capacity);
+		statistics.put("depth", getDepth());
+		statistics.put("executed", getExecutedCount());
+		statistics.put("scaledUp", scaledUp.get());
+		statistics.put("scaledDown", scaledDown.get());
+		statistics.put("averageMillis", averageNanos / 1000000.0);
+		return statistics;
+	}
+	
+}
@@ -0,0 +1,55 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.apache.activemq.thread.TaskRunnerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the dispatch of the sessions of a connection on a fixed number of threads. The ActiveMQ
+ * default pool hands the sessions to its threads without a queue so once they are all busy a session
+ * is rejected, the sessions wait in a queue instead. A session queues at most one dispatch at a time
+ * so the queue is bounded by the number of sessions.
+ */
+class SessionTaskRunnerFactory extends TaskRunnerFactory {
+	
+	static final String THREAD_NAME = "ActiveMQ Session Task";
+	
+	private static final int MAX_ITERATIONS_PER_RUN = 1000;
+	
+	private static final long KEEP_ALIVE_SECONDS = 30;
+	
+	/**
+	 * @param poolSize the maximum number of threads
+	 */
+	SessionTaskRunnerFactory(int poolSize) {
+		super(THREAD_NAME, Thread.NORM_PRIORITY, true, MAX_ITERATIONS_PER_RUN, false, poolSize);
+	}
+	
+	@Override
+	protected ExecutorService createDefaultExecutor() {
+		AtomicInteger number = new AtomicInteger();
+		int poolSize = getMaxThreadPoolSize();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+		        new LinkedBlockingQueue<>(), runnable -> {
+			        Thread thread = new Thread(runnable, THREAD_NAME + "-" + number.incrementAndGet());
+			        thread.setDaemon(true);
+			        return thread;
+		        });
+		//Idle threads end like those of the ActiveMQ pool
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
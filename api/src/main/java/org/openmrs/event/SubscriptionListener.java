@@ -0,0 +1,394 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.openmrs.event.SubscriptionOptions.AcknowledgeMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the messages of a subscription to an {@link EventListener} on the thread of the session,
+ * directly or through the executor of the listener, and acknowledges them as configured by the
+ * {@link AcknowledgeMode} of the subscription. A partial batch is acknowledged by the next message
+ * once the ack interval has elapsed, or by the timer if no message arrives. The timer first stops
+ * the consumer, which waits for the message being dispatched, so that it only uses the session
+ * while the session thread doesn't and no message is acknowledged before it is handed to the
+ * listener.
+ * While catching up the consumer is paused between the messages rather than the session thread, the
+ * broker then stops sending messages once the prefetch is buffered.
+ */
+class SubscriptionListener implements MessageListener {
+	
+	private static final Logger log = LoggerFactory.getLogger(SubscriptionListener.class);
+	
+	private final EventListener listener;
+	
+	private final Session session;
+	
+	private final AcknowledgeMode acknowledgeMode;
+	
+	private final int ackBatchSize;
+	
+	private final long ackInterval;
+	
+	private final OrderedExecutor executor;
+	
+	private final String keyProperty;
+	
+	private final boolean readOnlyMessages;
+	
+	private final PrefetchController prefetchController;
+	
+	private final RetryScheduler retryScheduler;
+	
+	private final SubscriptionOptions options;
+	
+	private final int catchUpRate;
+	
+	private final long subscribedAt = System.currentTimeMillis();
+	
+	private final ActiveMQMessageConsumer consumer;
+	
+	private final ScheduledExecutorService timer;
+	
+	//Only accessed by the session thread
+	private long nextCatchUpNanos;
+	
+	/**
+	 * Guards pausing and resuming the consumer between catching up and flushing
+	 */
+	private final Object pauseLock = new Object();
+	
+	//Guarded by the pause lock
+	private boolean pausedForCatchUp;
+	
+	private boolean flushing;
+	
+	private volatile ScheduledFuture<?> resumeTask;
+	
+	/**
+	 * Held while a message is handled or the messages are acknowledged
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	//Guarded by the lock
+	private int unacknowledged;
+	
+	private long lastAcknowledged = System.currentTimeMillis();
+	
+	private Message lastUnacknowledged;
+	
+	private boolean closed;
+	
+	private final ScheduledFuture<?> flushTask;
+	
+	/**
+	 * @param consumer the consumer paused while catching up or flushing, can be null if the
+	 *            subscription has no catch up rate, the partial batches are then only acknowledged
+	 *            by the next message
+	 * @param timer acknowledges the partial batches and resumes the consumer while catching up, can be
+	 *            null if the subscription neither acknowledges the messages in batches nor has a
+	 *            catch up rate
+	 */
+	SubscriptionListener(EventListener listener, Session session, SubscriptionOptions options, OrderedExecutor executor,
+	    PrefetchController prefetchController, RetryScheduler retryScheduler, boolean readOnlyMessages,
+	    ActiveMQMessageConsumer consumer, ScheduledExecutorService timer) {
+		this.listener = listener;
+		this.options = options;
+		this.retryScheduler = retryScheduler;
+		this.session = session;
+		this.executor = executor;
+		this.prefetchController = prefetchController;
+		this.readOnlyMessages = readOnlyMessages;
+		if (options != null && options.getAcknowledgeMode() != null) {
+			acknowledgeMode = options.getAcknowledgeMode();
+			ackBatchSize = Math.max(1, options.getAckBatchSize());
+			ackInterval = options.getAckInterval();
+			keyProperty = options.getKeyProperty();
+		} else {
+			acknowledgeMode = AcknowledgeMode.AUTO;
+			ackBatchSize = 1;
+			ackInterval = 0;
+			keyProperty = options != null ? options.getKeyProperty() : null;
+		}
+		catchUpRate = options != null && consumer != null && timer != null ? options.getCatchUpRate() : 0;
+		this.consumer = consumer;
+		this.timer = timer;
+		if (timer != null && consumer != null && isBatched() && ackInterval > 0) {
+			flushTask = timer.scheduleWithFixedDelay(this::flush, ackInterval, ackInterval, TimeUnit.MILLISECONDS);
+		} else {
+			flushTask = null;
+		}
+	}
+	
+	/**
+	 * @return true if the messages are acknowledged in batches
+	 */
+	boolean isBatched() {
+		return acknowledgeMode == AcknowledgeMode.CLIENT || acknowledgeMode == AcknowledgeMode.TRANSACTED;
+	}
+	
+	@Override
+	public void onMessage(final Message message) {
+		if (readOnlyMessages && message instanceof ActiveMQMessage) {
+			//The message can be shared with other listeners so they must not be able to modify it
+			((ActiveMQMessage) message).setReadOnlyBody(true);
+			((ActiveMQMessage) message).setReadOnlyProperties(true);
+		}
+		
+		lock.lock();
+		try {
+			handle(message);
+		}
+		finally {
+			lock.unlock();
+		}
+		
+		if (catchUpRate > 0) {
+			throttleCatchUp(message);
+		}
+	}
+	
+	private void handle(Message message) {
+		try {
+			if (executor != null) {
+				executor.execute(getKey(message), () -> deliver(message));
+			} else {
+				deliver(message);
+			}
+		}
+		catch (RuntimeException e) {
+			if (acknowledgeMode == AcknowledgeMode.AUTO || acknowledgeMode == AcknowledgeMode.DUPS_OK) {
+				throw e;
+			}
+			log.error("Failed to handle a message, the unacknowledged messages will be redelivered", e);
+			recover();
+			return;
+		}
+		
+		if (isBatched()) {
+			unacknowledged++;
+			lastUnacknowledged = message;
+			if (closed || unacknowledged >= ackBatchSize
+			        || (ackInterval > 0 && System.currentTimeMillis() - lastAcknowledged >= ackInterval)) {
+				acknowledgeHandled();
+			}
+		}
+	}
+	
+	/**
+	 * Acknowledges the last partial batch if the ack interval has elapsed without a new message. The
+	 * consumer is stopped meanwhile, stopping it waits for the message being dispatched so the session
+	 * is not in use and no message is acknowledged before it is handed to the listener.
+	 */
+	void flush() {
+		if (!isFlushDue()) {
+			return;
+		}
+		synchronized (pauseLock) {
+			flushing = true;
+		}
+		try {
+			consumer.stop();
+			lock.lock();
+			try {
+				if (isFlushDue()) {
+					acknowledgeHandled();
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		finally {
+			synchronized (pauseLock) {
+				flushing = false;
+				if (!pausedForCatchUp) {
+					startConsumer();
+				}
+			}
+		}
+	}
+	
+	private boolean isFlushDue() {
+		lock.lock();
+		try {
+			return !closed && unacknowledged > 0 && System.currentTimeMillis() - lastAcknowledged >= ackInterval;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Acknowledges the handled messages before the subscription is closed, the messages received
+	 * until it is closed are acknowledged one by one
+	 */
+	void close() {
+		if (flushTask != null) {
+			flushTask.cancel(false);
+		}
+		ScheduledFuture<?> resume = resumeTask;
+		if (resume != null) {
+			resume.cancel(false);
+		}
+		lock.lock();
+		try {
+			closed = true;
+			if (unacknowledged > 0) {
+				acknowledgeHandled();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void acknowledgeHandled() {
+		acknowledge(lastUnacknowledged);
+		unacknowledged = 0;
+		lastUnacknowledged = null;
+		lastAcknowledged = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Delivers the message to the listener, timed here rather than around the handoff to the executor
+	 * so that the prefetch controller sees the time the listener takes
+	 */
+	private void deliver(Message message) {
+		long start = System.nanoTime();
+		try {
+			if (retryScheduler != null) {
+				retryScheduler.deliver(listener, options.getListenerId(listener), message, options, executor,
+				    executor != null ? getKey(message) : null);
+			} else {
+				listener.onMessage(message);
+			}
+		}
+		finally {
+			if (prefetchController != null) {
+				prefetchController.record(System.nanoTime() - start);
+			}
+		}
+	}
+	
+	/**
+	 * Paces the messages sent before the subscription was made, i.e. retained by the broker for a
+	 * durable subscription, to the catch up rate by pausing the consumer until the next message is
+	 * due. The session thread is free meanwhile and the messages dispatched by the broker are kept by
+	 * the consumer until it is resumed.
+	 */
+	private void throttleCatchUp(Message message) {
+		try {
+			if (message.getJMSTimestamp() >= subscribedAt) {
+				return;
+			}
+		}
+		catch (JMSException e) {
+			return;
+		}
+		long now = System.nanoTime();
+		nextCatchUpNanos = Math.max(now, nextCatchUpNanos) + TimeUnit.SECONDS.toNanos(1) / catchUpRate;
+		synchronized (pauseLock) {
+			pausedForCatchUp = true;
+		}
+		consumer.stop();
+		try {
+			resumeTask = timer.schedule(this::resume, nextCatchUpNanos - now, TimeUnit.NANOSECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			//The engine is shutting down
+			resume();
+		}
+	}
+	
+	private void resume() {
+		synchronized (pauseLock) {
+			pausedForCatchUp = false;
+			//Resumed by the flush once it completes
+			if (!flushing) {
+				startConsumer();
+			}
+		}
+	}
+	
+	/**
+	 * Called with the pause lock held while no message is being dispatched since the consumer is
+	 * stopped, so the session thread doesn't wait for the lock while holding the consumer
+	 */
+	private void startConsumer() {
+		try {
+			consumer.start();
+		}
+		catch (JMSException e) {
+			log.warn("Failed to resume the subscription of " + listener.getClass(), e);
+		}
+	}
+	
+	private void acknowledge(Message message) {
+		try {
+			if (acknowledgeMode == AcknowledgeMode.TRANSACTED) {
+				session.commit();
+			} else {
+				//Acknowledges all the messages received by the session so far
+				message.acknowledge();
+			}
+		}
+		catch (JMSException e) {
+			log.error("Failed to acknowledge the messages for " + listener.getClass(), e);
+		}
+	}
+	
+	private void recover() {
+		unacknowledged = 0;
+		lastUnacknowledged = null;
+		lastAcknowledged = System.currentTimeMillis();
+		try {
+			if (acknowledgeMode == AcknowledgeMode.TRANSACTED) {
+				session.rollback();
+			} else {
+				session.recover();
+			}
+		}
+		catch (JMSException e) {
+			log.error("Failed to recover the messages for " + listener.getClass(), e);
+		}
+	}
+	
+	/**
+	 * Gets the key to order the message by
+	 */
+	private Object getKey(Message message) {
+		if (keyProperty != null && message instanceof MapMessage) {
+			try {
+				return ((MapMessage) message).getString(keyProperty);
+			}
+			catch (JMSException e) {
+				log.debug("Failed to read the key of the message", e);
+			}
+		}
+		return null;
+	}
+	
+}
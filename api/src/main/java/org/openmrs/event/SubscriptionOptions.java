@@ -0,0 +1,275 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import lombok.Data;
+
+import javax.jms.Session;
+
+/**
+ * The options of the subscriptions of an {@link EventListener}, returned by
+ * {@link EventListener#getSubscriptionOptions()} or passed when subscribing
+ */
+@Data
+public class SubscriptionOptions {
+	
+	/**
+	 * How the messages of a subscription are acknowledged
+	 */
+	public enum AcknowledgeMode {
+		
+		/**
+		 * Each message is acknowledged once handled
+		 */
+		AUTO(Session.AUTO_ACKNOWLEDGE),
+		
+		/**
+		 * The messages are acknowledged lazily in batches, a message can be delivered again after a
+		 * failure so the listener must be idempotent
+		 */
+		DUPS_OK(Session.DUPS_OK_ACKNOWLEDGE),
+		
+		/**
+		 * The messages are acknowledged together once the ack batch size is handled, all the
+		 * unacknowledged messages are redelivered if the listener throws an exception
+		 */
+		CLIENT(Session.CLIENT_ACKNOWLEDGE),
+		
+		/**
+		 * Like {@link #CLIENT} but the messages are received in a local transaction committed once
+		 * the ack batch size is handled and rolled back if the listener throws an exception
+		 */
+		TRANSACTED(Session.SESSION_TRANSACTED);
+		
+		private final int sessionMode;
+		
+		AcknowledgeMode(int sessionMode) {
+			this.sessionMode = sessionMode;
+		}
+		
+		public int getSessionMode() {
+			return sessionMode;
+		}
+	}
+	
+	public static final int DEFAULT_ACK_BATCH_SIZE = 100;
+	
+	public static final long DEFAULT_ACK_INTERVAL = 1000;
+	
+	public static final int DEFAULT_MAX_PREFETCH = 1000;
+	
+	public static final long DEFAULT_RETRY_DELAY = 1000;
+	
+	public static final long DEFAULT_MAX_RETRY_DELAY = 60000;
+	
+	public static final int DEFAULT_ISOLATION_QUEUE_CAPACITY = 10000;
+	
+	public static final long DEFAULT_SLOW_THRESHOLD = 5000;
+	
+	public static final double DEFAULT_ERROR_RATE_THRESHOLD = 0.5;
+	
+	public static final long DEFAULT_BREAKER_OPEN_DURATION = 30000;
+	
+	public static final String DEFAULT_KEY_PROPERTY = "uuid";
+	
+	public static final int DEFAULT_MAX_QUEUED_PER_WORKER = 1000;
+	
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+	
+	/**
+	 * The number of threads the messages are dispatched to, with more than one thread the messages
+	 * with the same key are still handled in the order they were received but the messages with
+	 * different keys can be handled in parallel. The order only holds within a topic, the messages of
+	 * each topic are received by a separate session so e.g. the UPDATED message of an entity can be
+	 * handled before its CREATED message
+	 */
+	private int concurrency = 1;
+	
+	/**
+	 * The name of the property of the map messages to use as key for the ordering of the messages
+	 */
+	private String keyProperty = DEFAULT_KEY_PROPERTY;
+	
+	/**
+	 * The maximum number of messages waiting for a thread, when reached the delivery of the messages
+	 * of the subscriptions blocks until there is room
+	 */
+	private int maxQueuedPerWorker = DEFAULT_MAX_QUEUED_PER_WORKER;
+	
+	/**
+	 * The maximum number of threads, when greater than the concurrency threads are added while
+	 * messages are waiting and none is idle and removed once idle for the idle timeout, 0 for a fixed
+	 * number of threads
+	 */
+	private int maxConcurrency;
+	
+	/**
+	 * The time in milliseconds after which an idle thread above the concurrency is removed
+	 */
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	
+	/**
+	 * Whether to handle each message on a virtual thread, on JVMs without virtual threads a pool of
+	 * {@link #getConcurrency()} platform threads is used instead. At most {@link #getMaxInFlight()}
+	 * messages are waiting or being handled at a time, the messages with the same key are still
+	 * handled in order
+	 */
+	private boolean virtualThreads;
+	
+	/**
+	 * How the messages are acknowledged, with concurrent dispatch a message is acknowledged once handed
+	 * to the threads of the listener
+	 */
+	private AcknowledgeMode acknowledgeMode = AcknowledgeMode.AUTO;
+	
+	/**
+	 * The number of messages acknowledged together in the {@link AcknowledgeMode#CLIENT} and
+	 * {@link AcknowledgeMode#TRANSACTED} modes
+	 */
+	private int ackBatchSize = DEFAULT_ACK_BATCH_SIZE;
+	
+	/**
+	 * The time in milliseconds after which the handled messages are acknowledged even if the ack batch
+	 * size is not reached, with the next message or by a timer when no message arrives, 0 to only
+	 * acknowledge full batches
+	 */
+	private long ackInterval = DEFAULT_ACK_INTERVAL;
+	
+	/**
+	 * The number of messages the broker sends to the consumer ahead of the listener, 0 for the
+	 * ActiveMQ default
+	 */
+	private int prefetch;
+	
+	/**
+	 * Whether to tune the prefetch between the min and max prefetch from the time the listener takes
+	 * to handle the messages and the heap usage, starting from the prefetch if set otherwise the max
+	 * prefetch
+	 */
+	private boolean adaptivePrefetch;
+	
+	private int minPrefetch = 1;
+	
+	private int maxPrefetch = DEFAULT_MAX_PREFETCH;
+	
+	/**
+	 * Whether the broker keeps the messages for the subscription while the listener is not subscribed,
+	 * requires a client ID on the connection
+	 */
+	private boolean durable;
+	
+	/**
+	 * The stable id of the listener the durable subscriptions are named after, null for the class name
+	 * of the listener
+	 */
+	private String listenerId;
+	
+	/**
+	 * The maximum number of messages per second handled while catching up with the messages sent
+	 * before the subscription was made, 0 for no limit. The consumer is paused between the messages
+	 * without holding up the session thread
+	 */
+	private int catchUpRate;
+	
+	/**
+	 * The number of times a message is delivered again after the listener throws an exception, later,
+	 * before it is sent to the dead letter queue of the listener, 0 to disable the retries. The retried
+	 * messages are delivered out of order. Without concurrency the retries run on the threads of the
+	 * retry scheduler, never at the same time as the other deliveries to the listener. With
+	 * concurrency they run on the threads of the listener with the key of the message. The pending
+	 * retries are sent to the dead letter queue when the last subscription of the listener is closed,
+	 * and the failed messages too while {@link EventConstants#GP_MAX_PENDING_RETRIES} are pending
+	 */
+	private int maxRetries;
+	
+	/**
+	 * The time in milliseconds before the first retry, doubled for each retry after it
+	 */
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+	
+	private long maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+	
+	/**
+	 * Whether the messages are queued for a dedicated worker of the listener without ever blocking the
+	 * session threads shared with the other listeners, the messages are shed when the queue is full.
+	 * Takes precedence over the other concurrency options
+	 */
+	private boolean isolated;
+	
+	private int isolationQueueCapacity = DEFAULT_ISOLATION_QUEUE_CAPACITY;
+	
+	/**
+	 * The time in milliseconds above which an isolated delivery counts as failed, 0 to ignore the time
+	 */
+	private long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+	
+	/**
+	 * The share of the recent isolated deliveries that failed or were slow that opens the circuit
+	 * breaker of the listener. The failed deliveries count even when they are retried, the retries
+	 * then wait while the breaker is open
+	 */
+	private double errorRateThreshold = DEFAULT_ERROR_RATE_THRESHOLD;
+	
+	private long breakerOpenDuration = DEFAULT_BREAKER_OPEN_DURATION;
+	
+	/**
+	 * Whether to keep the messages queued while the circuit breaker is open instead of shedding them
+	 */
+	private boolean parkWhenOpen;
+	
+	/**
+	 * @param listener the listener
+	 * @return the listener id or the class name of the listener if not set
+	 */
+	public String getListenerId(EventListener listener) {
+		return listenerId != null && !listenerId.trim().isEmpty() ? listenerId : listener.getClass().getName();
+	}
+	
+	/**
+	 * @return true if the messages are handed from the session threads to the threads of the listener
+	 */
+	public boolean isConcurrent() {
+		return concurrency > 1 || isScaling() || virtualThreads || isolated;
+	}
+	
+	/**
+	 * @return the maximum number of messages waiting or being handled with virtual threads, the
+	 *         maximum concurrency if set otherwise the concurrency, times the max queued per worker
+	 */
+	public int getMaxInFlight() {
+		return Math.max(1, Math.max(concurrency, maxConcurrency)) * maxQueuedPerWorker;
+	}
+	
+	/**
+	 * @return true if the number of threads varies with the load
+	 */
+	public boolean isScaling() {
+		return maxConcurrency > Math.max(1, concurrency);
+	}
+	
+	/**
+	 * @return the settings of the executor handling the messages concurrently, the subscriptions of a
+	 *         listener share its executor so they must have the same settings
+	 */
+	public String getExecutorSettings() {
+		if (isolated) {
+			return "isolated with isolationQueueCapacity=" + isolationQueueCapacity + ", slowThreshold="
+			        + slowThreshold + ", errorRateThreshold=" + errorRateThreshold + ", breakerOpenDuration="
+			        + breakerOpenDuration + ", parkWhenOpen=" + parkWhenOpen;
+		} else if (virtualThreads) {
+			return "virtualThreads with maxInFlight=" + getMaxInFlight() + ", concurrency=" + concurrency;
+		} else if (isScaling()) {
+			return "scaling with concurrency=" + concurrency + ", maxConcurrency=" + maxConcurrency + ", idleTimeout="
+			        + idleTimeout + ", maxQueuedPerWorker=" + maxQueuedPerWorker;
+		}
+		return "concurrency=" + concurrency + ", maxQueuedPerWorker=" + maxQueuedPerWorker;
+	}
+	
+}
@@ -9,6 +9,7 @@
  */
 package org.openmrs.event;
 
+import lombok.Getter;
 import lombok.Setter;
 import org.openmrs.api.context.Daemon;
 import org.openmrs.module.DaemonToken;
@@ -21,6 +22,7 @@ import org.springframework.context.ApplicationListener;
  */
 public abstract class TransactionEventListener implements ApplicationListener<TransactionEvent> {
 	
+	@Getter
 	@Setter
 	private static DaemonToken daemonToken = null;
 	
@@ -0,0 +1,295 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link OrderedExecutor} that starts a virtual thread for each key with tasks to run, the thread
+ * runs the tasks of the key in order and ends once there are none left. When the JVM doesn't
+ * support virtual threads (before Java 21) the keys take turns on a fixed pool of platform threads
+ * instead. The number of tasks waiting or running is bounded, submitting waits while it is reached.
+ */
+public class VirtualThreadExecutor implements OrderedExecutor {
+	
+	private static final Logger log = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+	
+	private static final long POLL_INTERVAL = 10;
+	
+	private static class KeyTasks {
+		
+		private final Object key;
+		
+		private final Queue<Runnable> tasks = new ArrayDeque<>();
+		
+		private KeyTasks(Object key) {
+			this.key = key;
+		}
+	}
+	
+	private final String name;
+	
+	private final int maxInFlight;
+	
+	private final Semaphore permits;
+	
+	private final ThreadFactory threadFactory;
+	
+	private final boolean virtual;
+	
+	/**
+	 * Runs the tasks when virtual threads are not supported, null otherwise
+	 */
+	private final ExecutorService platformPool;
+	
+	private final Map<Object, KeyTasks> pending = new HashMap<>();
+	
+	private final AtomicInteger threadCount = new AtomicInteger();
+	
+	private final AtomicLong executed = new AtomicLong();
+	
+	private final AtomicLong threadsStarted = new AtomicLong();
+	
+	private volatile int peakThreads;
+	
+	private volatile boolean running;
+	
+	/**
+	 * @param name the name of the threads
+	 * @param maxInFlight the maximum number of tasks waiting or running
+	 * @param platformThreads the number of platform threads used when virtual threads are not
+	 *            supported
+	 */
+	public VirtualThreadExecutor(String name, int maxInFlight, int platformThreads) {
+		this(name, maxInFlight, platformThreads, createVirtualThreadFactory(name));
+	}
+	
+	/**
+	 * @param virtualThreadFactory the factory of virtual threads, null to use platform threads
+	 */
+	VirtualThreadExecutor(String name, int maxInFlight, int platformThreads, ThreadFactory virtualThreadFactory) {
+		this.name = name;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		permits = new Semaphore(this.maxInFlight);
+		threadFactory = virtualThreadFactory;
+		virtual = virtualThreadFactory != null;
+		if (virtual) {
+			platformPool = null;
+		} else {
+			int poolSize = Math.max(1, platformThreads);
+			log.info("Virtual threads are not supported by this JVM, {} will use {} platform threads", name, poolSize);
+			AtomicInteger number = new AtomicInteger();
+			//The queue is bounded by the tasks in flight since each waiting key holds at least one
+			platformPool = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+			        new LinkedBlockingQueue<>(), runnable -> {
+				        Thread thread = new Thread(runnable, name + "-" + number.incrementAndGet());
+				        thread.setDaemon(true);
+				        return thread;
+			        });
+		}
+	}
+	
+	/**
+	 * Looks up the virtual thread builder by reflection since the module is built for older JVMs
+	 * 
+	 * @return the factory of virtual threads or null if not supported
+	 */
+	private static ThreadFactory createVirtualThreadFactory(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			//Not available or a preview feature
+			return null;
+		}
+	}
+	
+	/**
+	 * @return true if virtual threads are supported by the JVM
+	 */
+	public static boolean isSupported() {
+		return createVirtualThreadFactory("test") != null;
+	}
+	
+	@Override
+	public synchronized void start() {
+		running = true;
+	}
+	
+	/**
+	 * Queues the task behind the waiting tasks of its key or starts a thread for it, with platform
+	 * threads the key waits for a thread of the pool
+	 * 
+	 * @see OrderedExecutor#execute(Object, Runnable)
+	 */
+	@Override
+	public void execute(Object key, Runnable task) {
+		if (!running) {
+			throw new RejectedExecutionException(name + " is stopped");
+		}
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for room in " + name, e);
+		}
+		
+		KeyTasks keyTasks;
+		synchronized (pending) {
+			keyTasks = key != null ? pending.get(key) : null;
+			if (keyTasks != null) {
+				keyTasks.tasks.add(task);
+				return;
+			}
+			keyTasks = new KeyTasks(key);
+			keyTasks.tasks.add(task);
+			if (key != null) {
+				pending.put(key, keyTasks);
+			}
+		}
+		
+		final KeyTasks toRun = keyTasks;
+		int count = threadCount.incrementAndGet();
+		peakThreads = Math.max(peakThreads, count);
+		threadsStarted.incrementAndGet();
+		try {
+			if (platformPool != null) {
+				platformPool.execute(() -> run(toRun));
+			} else {
+				threadFactory.newThread(() -> run(toRun)).start();
+			}
+		}
+		catch (RuntimeException | OutOfMemoryError e) {
+			synchronized (pending) {
+				permits.release(toRun.tasks.size());
+				pending.remove(key);
+			}
+			threadCount.decrementAndGet();
+			throw new RejectedExecutionException("Failed to start a thread in " + name, e);
+		}
+	}
+	
+	private void run(KeyTasks keyTasks) {
+		try {
+			while (true) {
+				Runnable task;
+				synchronized (pending) {
+					task = keyTasks.tasks.poll();
+					if (task == null) {
+						if (keyTasks.key != null) {
+							pending.remove(keyTasks.key);
+						}
+						return;
+					}
+				}
+				try {
+					task.run();
+				}
+				catch (RuntimeException e) {
+					log.error("Failed to run a task in " + name, e);
+				}
+				finally {
+					executed.incrementAndGet();
+					permits.release();
+				}
+			}
+		}
+		finally {
+			threadCount.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * @see OrderedExecutor#stop(long)
+	 */
+	@Override
+	public boolean stop(long timeout) {
+		synchronized (this) {
+			running = false;
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while (threadCount.get() > 0 && System.currentTimeMillis() < deadline) {
+				TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		boolean stopped = threadCount.get() == 0;
+		if (!stopped) {
+			log.warn("Timed out after {}ms waiting for the queued tasks of {}", timeout, name);
+		}
+		if (platformPool != null) {
+			platformPool.shutdown();
+		}
+		return stopped;
+	}
+	
+	/**
+	 * @return true if the tasks run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+	
+	/**
+	 * @return the number of threads running tasks, with platform threads the keys waiting for a thread
+	 *         of the pool are counted too
+	 */
+	public int getThreadCount() {
+		return threadCount.get();
+	}
+	
+	/**
+	 * @return the number of tasks waiting or running
+	 */
+	public int getDepth() {
+		return maxInFlight - permits.availablePermits();
+	}
+	
+	public long getExecutedCount() {
+		return executed.get();
+	}
+	
+	@Override
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("virtualThreads", virtual);
+		statistics.put("maxInFlight", maxInFlight);
+		statistics.put("depth", getDepth());
+		statistics.put("threads", getThreadCount());
+		statistics.put("peakThreads", peakThreads);
+		statistics.put("threadsStarted", threadsStarted.get());
+		statistics.put("executed", getExecutedCount());
+		return statistics;
+	}
+	
+}
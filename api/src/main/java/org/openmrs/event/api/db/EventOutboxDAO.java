@@ -0,0 +1,37 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event.api.db;
+
+import org.openmrs.event.EventOutboxEntry;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Database access for the event outbox, all methods operate in the current transaction
+ */
+public interface EventOutboxDAO {
+	
+	/**
+	 * @param entries the entries to add to the outbox
+	 */
+	void addEntries(Collection<EventOutboxEntry> entries);
+	
+	/**
+	 * @param max the maximum number of entries to return
+	 * @return the oldest entries in the order they were added
+	 */
+	List<EventOutboxEntry> getEntries(int max);
+	
+	/**
+	 * @param ids the ids of the entries to delete
+	 */
+	void deleteEntries(Collection<Long> ids);
+}
@@ -9,6 +9,7 @@
  */
 package org.openmrs.event.api.db.hibernate;
 
+import lombok.Getter;
 import lombok.Setter;
 import org.apache.commons.lang.BooleanUtils;
 import org.hibernate.CallbackException;
@@ -23,6 +24,7 @@ import org.openmrs.Voidable;
 import org.openmrs.event.EntityEvent;
 import org.openmrs.event.Event;
 import org.openmrs.event.Event.Action;
+import org.openmrs.event.EventConstants;
 import org.openmrs.event.TransactionAfterBeginEvent;
 import org.openmrs.event.TransactionBeforeCompletionEvent;
 import org.openmrs.event.TransactionCommittedEvent;
@@ -39,7 +41,10 @@ import javax.transaction.Synchronization;
 import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.LinkedHashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -58,7 +63,82 @@ public class HibernateEventInterceptor extends EmptyInterceptor implements Appli
 	@Setter
 	private ApplicationEventPublisher applicationEventPublisher;
 	
-	private final ThreadLocal<Deque<Set<EntityEvent>>> events = new ThreadLocal<>();
+	private final ThreadLocal<Deque<EventFrame>> events = new ThreadLocal<>();
+	
+	/**
+	 * When true, the events of a committed nested transaction are merged into the enclosing
+	 * transaction and published once with the events of the outermost transaction instead of being
+	 * published on their own, see {@link EventConstants#GP_MERGE_NESTED_TRANSACTIONS}
+	 */
+	@Getter
+	@Setter
+	private volatile boolean mergeNestedTransactions = false;
+	
+	/**
+	 * Holds the entity events recorded in a single transaction. Collection changes are tracked per
+	 * owner so that an owner with several dirty collections results in a single UPDATED event that
+	 * records the roles of all the changed collections
+	 */
+	private static class EventFrame {
+		
+		private final Map<EntityEvent, EntityEvent> events = new LinkedHashMap<>();
+		
+		private final Map<Object, EntityEvent> collectionOwners = new IdentityHashMap<>();
+		
+		/**
+		 * The events of the committed nested transactions merged into this one
+		 */
+		private final Map<EntityEvent, EntityEvent> nestedEvents = new LinkedHashMap<>();
+		
+		/**
+		 * @param event the event to add
+		 * @return the event already recorded in this frame if any otherwise the specified event
+		 */
+		EntityEvent add(EntityEvent event) {
+			return add(events, event);
+		}
+		
+		Set<EntityEvent> getEvents() {
+			return events.keySet();
+		}
+		
+		Set<EntityEvent> getNestedEvents() {
+			return nestedEvents.keySet();
+		}
+		
+		void addNestedEvents(Set<EntityEvent> committedEvents) {
+			for (EntityEvent event : committedEvents) {
+				add(nestedEvents, event);
+			}
+		}
+		
+		/**
+		 * @return the events of this transaction and of the nested transactions merged into it
+		 */
+		Set<EntityEvent> getCommittedEvents() {
+			if (nestedEvents.isEmpty()) {
+				return getEvents();
+			}
+			Map<EntityEvent, EntityEvent> committedEvents = new LinkedHashMap<>(nestedEvents);
+			for (EntityEvent event : events.keySet()) {
+				add(committedEvents, event);
+			}
+			return committedEvents.keySet();
+		}
+		
+		private static EntityEvent add(Map<EntityEvent, EntityEvent> events, EntityEvent event) {
+			EntityEvent existing = events.putIfAbsent(event, event);
+			if (existing == null) {
+				return event;
+			}
+			if (existing != event) {
+				for (String role : event.getChangedCollections()) {
+					existing.addChangedCollection(role);
+				}
+			}
+			return existing;
+		}
+	}
 	
 	/**
 	 * @param event the event to publish
@@ -81,27 +161,40 @@ public class HibernateEventInterceptor extends EmptyInterceptor implements Appli
 		if (events.get() == null) {
 			events.set(new ArrayDeque<>());
 		}
-		events.get().push(new LinkedHashSet<>());
+		events.get().push(new EventFrame());
 		tx.registerSynchronization(new Synchronization() {
 			
 			@Override
 			public void beforeCompletion() {
 				log.trace("beforeTransactionCompletion");
-				publishEvent(new TransactionBeforeCompletionEvent(this, events.get().peek()));
+				publishEvent(new TransactionBeforeCompletionEvent(this, events.get().peek().getEvents()));
 			}
 			
 			@Override
 			public void afterCompletion(int status) {
 				log.trace("afterTransactionCompletion");
+				Deque<EventFrame> eventStack = events.get();
+				EventFrame frame = eventStack.peek();
+				EventFrame parentFrame = mergeNestedTransactions ? getParentFrame(eventStack) : null;
 				try {
 					if (status == Status.STATUS_COMMITTED) {
-						publishEvent(new TransactionCommittedEvent(this, events.get().peek()));
+						if (parentFrame != null) {
+							log.trace("Merging events into the enclosing transaction");
+							parentFrame.addNestedEvents(frame.getCommittedEvents());
+						} else {
+							publishEvent(new TransactionCommittedEvent(this, frame.getCommittedEvents()));
+						}
 					} else {
-						publishEvent(new TransactionNotCommittedEvent(this, events.get().peek(), status));
+						publishEvent(new TransactionNotCommittedEvent(this, frame.getEvents(), status));
+						// the nested transactions merged into this one were committed regardless
+						if (parentFrame != null) {
+							parentFrame.addNestedEvents(frame.getNestedEvents());
+						} else if (!frame.getNestedEvents().isEmpty()) {
+							publishEvent(new TransactionCommittedEvent(this, frame.getNestedEvents()));
+						}
 					}
 				}
 				finally {
-					Deque<Set<EntityEvent>> eventStack = events.get();
 					eventStack.pop();
 					if (eventStack.isEmpty()) {
 						events.remove();
@@ -109,7 +202,17 @@ public class HibernateEventInterceptor extends EmptyInterceptor implements Appli
 				}
 			}
 		});
-		publishEvent(new TransactionAfterBeginEvent(this, events.get().peek()));
+		publishEvent(new TransactionAfterBeginEvent(this, events.get().peek().getEvents()));
+	}
+	
+	/**
+	 * @param eventStack the event stack of the current thread
+	 * @return the frame of the transaction enclosing the current one or null if there is none
+	 */
+	private EventFrame getParentFrame(Deque<EventFrame> eventStack) {
+		Iterator<EventFrame> frames = eventStack.iterator();
+		frames.next();
+		return frames.hasNext() ? frames.next() : null;
 	}
 	
 	/**
@@ -162,12 +265,7 @@ public class HibernateEventInterceptor extends EmptyInterceptor implements Appli
 	@Override
 	public void onCollectionRemove(Object collection, Serializable key) throws CallbackException {
 		log.trace("onCollectionRemove");
-		if (collection instanceof PersistentCollection) {
-			PersistentCollection persistentCollection = (PersistentCollection) collection;
-			handleEntity(persistentCollection.getOwner(), Action.UPDATED);
-		} else {
-			log.trace("collection is not a PersistentCollection");
-		}
+		handleCollection(collection);
 	}
 	
 	/**
@@ -177,12 +275,7 @@ public class HibernateEventInterceptor extends EmptyInterceptor implements Appli
 	@Override
 	public void onCollectionRecreate(Object collection, Serializable key) throws CallbackException {
 		log.trace("onCollectionRecreate");
-		if (collection instanceof PersistentCollection) {
-			PersistentCollection persistentCollection = (PersistentCollection) collection;
-			handleEntity(persistentCollection.getOwner(), Action.UPDATED);
-		} else {
-			log.trace("collection is not a PersistentCollection");
-		}
+		handleCollection(collection);
 	}
 	
 	/**
@@ -192,12 +285,7 @@ public class HibernateEventInterceptor extends EmptyInterceptor implements Appli
 	@Override
 	public void onCollectionUpdate(Object collection, Serializable key) throws CallbackException {
 		log.trace("onCollectionUpdate");
-		if (collection instanceof PersistentCollection) {
-			PersistentCollection persistentCollection = (PersistentCollection) collection;
-			handleEntity(persistentCollection.getOwner(), Action.UPDATED);
-		} else {
-			log.trace("collection is not a PersistentCollection");
-		}
+		handleCollection(collection);
 	}
 	
 	/**
@@ -215,11 +303,41 @@ public class HibernateEventInterceptor extends EmptyInterceptor implements Appli
 	protected void handleEntity(Object entity, Event.Action action) {
 		if (entity instanceof OpenmrsObject) {
 			OpenmrsObject openmrsObject = (OpenmrsObject) entity;
-			EntityEvent event = new EntityEvent(openmrsObject, action);
-			events.get().peek().add(event);
+			EntityEvent event = events.get().peek().add(new EntityEvent(openmrsObject, action));
 			log.trace("{}", event);
 		} else {
 			log.trace("{} is not an openmrsObject", action);
 		}
 	}
+	
+	/**
+	 * Called when a collection is removed, recreated or updated, the owner of the collection is
+	 * considered as updated and the role of the collection is recorded on its UPDATED event. Owners
+	 * are looked up by identity so that only the first change to any of the collections of an owner
+	 * in a transaction creates an event
+	 */
+	protected void handleCollection(Object collection) {
+		if (!(collection instanceof PersistentCollection)) {
+			log.trace("collection is not a PersistentCollection");
+			return;
+		}
+		
+		PersistentCollection persistentCollection = (PersistentCollection) collection;
+		Object owner = persistentCollection.getOwner();
+		if (!(owner instanceof OpenmrsObject)) {
+			log.trace("{} is not an openmrsObject", Action.UPDATED);
+			return;
+		}
+		
+		EventFrame frame = events.get().peek();
+		EntityEvent event = frame.collectionOwners.get(owner);
+		if (event == null) {
+			event = frame.add(new EntityEvent((OpenmrsObject) owner, Action.UPDATED));
+			frame.collectionOwners.put(owner, event);
+			log.trace("{}", event);
+		}
+		if (persistentCollection.getRole() != null) {
+			event.addChangedCollection(persistentCollection.getRole());
+		}
+	}
 }
@@ -0,0 +1,201 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event.api.db.hibernate;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.SessionFactory;
+import org.openmrs.event.EventMessage;
+import org.openmrs.event.EventOutboxEntry;
+import org.openmrs.event.api.db.EventOutboxDAO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the outbox entries in the event_outbox table using plain JDBC on the connection of the
+ * current hibernate session so that the entries are written in the same transaction as the changes
+ */
+@Component
+public class HibernateEventOutboxDAO implements EventOutboxDAO {
+	
+	private static final String INSERT = "insert into event_outbox (action, classname, uuid, properties, date_created) "
+	        + "values (?, ?, ?, ?, ?)";
+	
+	/**
+	 * Locks the selected rows until the end of the transaction, the relays of other nodes sharing the
+	 * database wait instead of reading the same entries
+	 */
+	private static final String SELECT = "select outbox_id, action, classname, uuid, properties, date_created "
+	        + "from event_outbox order by outbox_id limit ? for update";
+	
+	private static final String TYPE_SEPARATOR = ":";
+	
+	private static final String DELETE = "delete from event_outbox where outbox_id = ?";
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	/**
+	 * @see EventOutboxDAO#addEntries(Collection)
+	 */
+	@Override
+	public void addEntries(Collection<EventOutboxEntry> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		sessionFactory.getCurrentSession().doWork(connection -> {
+			try (PreparedStatement statement = connection.prepareStatement(INSERT)) {
+				for (EventOutboxEntry entry : entries) {
+					statement.setString(1, entry.getAction());
+					statement.setString(2, entry.getClassname());
+					statement.setString(3, entry.getUuid());
+					statement.setString(4, encode(entry.getProperties()));
+					statement.setTimestamp(5, new Timestamp(entry.getDateCreated().getTime()));
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+		});
+	}
+	
+	/**
+	 * @see EventOutboxDAO#getEntries(int)
+	 */
+	@Override
+	public List<EventOutboxEntry> getEntries(int max) {
+		return sessionFactory.getCurrentSession().doReturningWork(connection -> {
+			List<EventOutboxEntry> entries = new ArrayList<>();
+			try (PreparedStatement statement = connection.prepareStatement(SELECT)) {
+				statement.setInt(1, max);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					while (resultSet.next()) {
+						entries.add(new EventOutboxEntry(resultSet.getLong(1), resultSet.getString(2),
+						        resultSet.getString(3), resultSet.getString(4), decode(resultSet.getString(5)),
+						        resultSet.getTimestamp(6)));
+					}
+				}
+			}
+			return entries;
+		});
+	}
+	
+	/**
+	 * @see EventOutboxDAO#deleteEntries(Collection)
+	 */
+	@Override
+	public void deleteEntries(Collection<Long> ids) {
+		if (ids.isEmpty()) {
+			return;
+		}
+		sessionFactory.getCurrentSession().doWork(connection -> {
+			try (PreparedStatement statement = connection.prepareStatement(DELETE)) {
+				for (Long id : ids) {
+					statement.setLong(1, id);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+		});
+	}
+	
+	/**
+	 * Encodes the properties as a url encoded query string, each key carries the type code of its
+	 * value so that the strings, booleans and numbers come back with their type, any other value is
+	 * stored as its string
+	 */
+	private String encode(EventMessage properties) {
+		if (properties == null || properties.isEmpty()) {
+			return null;
+		}
+		List<String> pairs = new ArrayList<>(properties.size());
+		try {
+			for (Map.Entry<String, Serializable> entry : properties.entrySet()) {
+				pairs.add(URLEncoder.encode(entry.getKey(), "UTF-8") + TYPE_SEPARATOR + getTypeCode(entry.getValue())
+				        + "=" + URLEncoder.encode(String.valueOf(entry.getValue()), "UTF-8"));
+			}
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return StringUtils.join(pairs, '&');
+	}
+	
+	private EventMessage decode(String encoded) {
+		EventMessage properties = new EventMessage();
+		if (StringUtils.isBlank(encoded)) {
+			return properties;
+		}
+		try {
+			for (String pair : StringUtils.split(encoded, '&')) {
+				String[] keyValue = StringUtils.split(pair, "=", 2);
+				String value = keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "";
+				//The separator is url encoded in the key, entries written without a type are strings
+				String[] keyType = StringUtils.split(keyValue[0], TYPE_SEPARATOR, 2);
+				char typeCode = keyType.length > 1 ? keyType[1].charAt(0) : 's';
+				properties.put(URLDecoder.decode(keyType[0], "UTF-8"), toValue(typeCode, value));
+			}
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return properties;
+	}
+	
+	private static char getTypeCode(Serializable value) {
+		if (value instanceof Boolean) {
+			return 'z';
+		} else if (value instanceof Byte) {
+			return 'b';
+		} else if (value instanceof Short) {
+			return 'h';
+		} else if (value instanceof Integer) {
+			return 'i';
+		} else if (value instanceof Long) {
+			return 'j';
+		} else if (value instanceof Float) {
+			return 'f';
+		} else if (value instanceof Double) {
+			return 'd';
+		}
+		return 's';
+	}
+	
+	private static Serializable toValue(char typeCode, String value) {
+		switch (typeCode) {
+			case 'z':
+				return Boolean.valueOf(value);
+			case 'b':
+				return Byte.valueOf(value);
+			case 'h':
+				return Short.valueOf(value);
+			case 'i':
+				return Integer.valueOf(value);
+			case 'j':
+				return Long.valueOf(value);
+			case 'f':
+				return Float.valueOf(value);
+			case 'd':
+				return Double.valueOf(value);
+			default:
+				return value;
+		}
+	}
+}
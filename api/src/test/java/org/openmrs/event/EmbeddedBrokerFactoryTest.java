@@ -0,0 +1,146 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.ConstantPendingMessageLimitStrategy;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.apache.activemq.usage.SystemUsage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.jms.JMSException;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EmbeddedBrokerFactoryTest extends BaseEventTest {
+	
+	@TempDir
+	File dataDirectory;
+	
+	@Test
+	public void createBroker_shouldCreateAKahaDBBrokerSyncingEveryWriteByDefault() throws Exception {
+		BrokerService broker = EmbeddedBrokerFactory.createBroker(dataDirectory);
+		
+		assertEquals(EmbeddedBrokerFactory.BROKER_NAME, broker.getBrokerName());
+		assertTrue(broker.isPersistent());
+		KahaDBPersistenceAdapter kahaDB = (KahaDBPersistenceAdapter) broker.getPersistenceAdapter();
+		assertTrue(kahaDB.isEnableJournalDiskSyncs());
+		assertEquals(getDefaultStoreDirectory(), kahaDB.getDirectory());
+	}
+	
+	@Test
+	public void createBroker_shouldCreateANonPersistentBrokerWithTheMemoryProfile() throws Exception {
+		setGlobalProperty(EventConstants.GP_BROKER_PROFILE, "MEMORY");
+		
+		BrokerService broker = EmbeddedBrokerFactory.createBroker(dataDirectory);
+		
+		assertFalse(broker.isPersistent());
+	}
+	
+	@Test
+	public void createBroker_shouldNotSyncTheJournalWithTheAsyncKahaDBProfile() throws Exception {
+		setGlobalProperty(EventConstants.GP_BROKER_PROFILE, "ASYNC_KAHADB");
+		setGlobalProperty(EventConstants.GP_BROKER_INDEX_CACHE_SIZE, "5000");
+		
+		BrokerService broker = EmbeddedBrokerFactory.createBroker(dataDirectory);
+		
+		assertTrue(broker.isPersistent());
+		KahaDBPersistenceAdapter kahaDB = (KahaDBPersistenceAdapter) broker.getPersistenceAdapter();
+		assertFalse(kahaDB.isEnableJournalDiskSyncs());
+		assertTrue(kahaDB.isEnableIndexWriteAsync());
+		assertEquals(EmbeddedBrokerFactory.ASYNC_KAHADB_JOURNAL_MAX_FILE_LENGTH, kahaDB.getJournalMaxFileLength());
+		assertEquals(5000, kahaDB.getIndexCacheSize());
+		//Switching profiles keeps the undelivered events
+		assertEquals(getDefaultStoreDirectory(), kahaDB.getDirectory());
+	}
+	
+	@Test
+	public void createBroker_shouldApplyTheUsageLimitsAndTheTopicPolicy() throws Exception {
+		setGlobalProperty(EventConstants.GP_BROKER_PROFILE, "MEMORY");
+		setGlobalProperty(EventConstants.GP_BROKER_MEMORY_LIMIT, "33554432");
+		setGlobalProperty(EventConstants.GP_BROKER_STORE_LIMIT, "1073741824");
+		setGlobalProperty(EventConstants.GP_BROKER_TEMP_LIMIT, "536870912");
+		setGlobalProperty(EventConstants.GP_BROKER_PRODUCER_FLOW_CONTROL, "false");
+		setGlobalProperty(EventConstants.GP_BROKER_DESTINATION_MEMORY_LIMIT, "1048576");
+		setGlobalProperty(EventConstants.GP_BROKER_PENDING_MESSAGE_LIMIT, "100");
+		setGlobalProperty(EventConstants.GP_BROKER_EXPIRE_MESSAGES_PERIOD, "60000");
+		
+		BrokerService broker = EmbeddedBrokerFactory.createBroker(dataDirectory);
+		
+		SystemUsage usage = broker.getSystemUsage();
+		assertEquals(33554432L, usage.getMemoryUsage().getLimit());
+		assertEquals(1073741824L, usage.getStoreUsage().getLimit());
+		assertEquals(536870912L, usage.getTempUsage().getLimit());
+		PolicyEntry policy = broker.getDestinationPolicy().getEntryFor(new ActiveMQTopic("org.openmrs.test"));
+		assertFalse(policy.isProducerFlowControl());
+		assertEquals(1048576L, policy.getMemoryLimit());
+		assertEquals(100, ((ConstantPendingMessageLimitStrategy) policy.getPendingMessageLimitStrategy()).getLimit());
+		assertEquals(60000L, policy.getExpireMessagesPeriod());
+	}
+	
+	/**
+	 * @see EventConstants#GP_BROKER_MESSAGE_TIME_TO_LIVE
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void createBroker_shouldGiveTheEventsAnExpirationWhenATimeToLiveIsSet() throws Exception {
+		AdministrationService as = Context.getAdministrationService();
+		as.saveGlobalProperty(new GlobalProperty(EventConstants.GP_BROKER_MESSAGE_TIME_TO_LIVE, "60000"));
+		Event.shutdown();
+		final String dest = "org.openmrs.test.timeToLive";
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<Long> expirations = new CopyOnWriteArrayList<>();
+		EventListener listener = message -> {
+			try {
+				expirations.add(message.getJMSExpiration());
+			}
+			catch (JMSException e) {
+				throw new IllegalStateException(e);
+			}
+			latch.countDown();
+		};
+		try {
+			long start = System.currentTimeMillis();
+			Event.subscribe(dest, listener);
+			Event.fireEvent(dest, new EventMessage());
+			
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertTrue(expirations.get(0) >= start + 60000);
+		}
+		finally {
+			Event.unsubscribe(dest, listener);
+			as.purgeGlobalProperty(as.getGlobalPropertyObject(EventConstants.GP_BROKER_MESSAGE_TIME_TO_LIVE));
+			Event.shutdown();
+		}
+	}
+	
+	private File getDefaultStoreDirectory() {
+		return new File(new File(dataDirectory, EmbeddedBrokerFactory.BROKER_NAME), "KahaDB");
+	}
+	
+	private void setGlobalProperty(String property, String value) {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(property, value));
+	}
+}
@@ -126,6 +126,25 @@ public class EventActivatorTest extends BaseModuleContextSensitiveTest {
 		Assert.assertEquals(0, listener.getDeletedCount());
 	}
 	
+	/**
+	 * @see {@link EventActivator#started()}
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	@Verifies(value = "should send the events fired while the listeners are subscribed once they are", method = "started()")
+	public void started_shouldSendTheEventsFiredWhileTheListenersAreSubscribedOnceTheyAre() throws Exception {
+		listener.setExpectedEventsCount(1);
+		EventActivator activator = new EventActivator();
+		
+		//The listeners are subscribed in the background
+		activator.started();
+		Event.fireAction(Action.CREATED.name(), randomConcept());
+		activator.awaitSubscriptions();
+		
+		listener.waitForEvents();
+		Assert.assertEquals(1, listener.getCreatedCount());
+	}
+	
 	@Handler
 	public static class TestSubscribableEventListener extends MockEventListener implements SubscribableEventListener {
 		
@@ -0,0 +1,155 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.junit.jupiter.api.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Visit;
+import org.openmrs.event.Event.Action;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EventAggregatorTest {
+	
+	private final EventAggregator aggregator = new EventAggregator(
+	        Collections.singletonList(new EventAggregator.Rule(Obs.class, "encounter")));
+	
+	@Test
+	public void aggregate_shouldFoldChildEventsIntoTheCreatedEventOfTheParent() {
+		Encounter encounter = new Encounter();
+		Obs obs1 = obs(encounter);
+		Obs obs2 = obs(encounter);
+		EntityEvent encounterCreated = new EntityEvent(encounter, Action.CREATED);
+		
+		Map<EntityEvent, List<EntityEvent>> aggregated = aggregator.aggregate(Arrays.asList(encounterCreated,
+		    new EntityEvent(obs1, Action.CREATED), new EntityEvent(obs2, Action.CREATED)));
+		
+		assertEquals(1, aggregated.size());
+		assertEquals(Action.CREATED, aggregated.keySet().iterator().next().getAction());
+		assertEquals(Arrays.asList(new EntityEvent(obs1, Action.CREATED), new EntityEvent(obs2, Action.CREATED)),
+		    aggregated.get(encounterCreated));
+	}
+	
+	@Test
+	public void aggregate_shouldAddAnUpdatedEventForTheParentIfItHasNone() {
+		Encounter encounter = new Encounter();
+		Obs obs = obs(encounter);
+		
+		Map<EntityEvent, List<EntityEvent>> aggregated = aggregator
+		        .aggregate(Collections.singletonList(new EntityEvent(obs, Action.VOIDED)));
+		
+		assertEquals(1, aggregated.size());
+		assertEquals(Collections.singletonList(new EntityEvent(obs, Action.VOIDED)),
+		    aggregated.get(new EntityEvent(encounter, Action.UPDATED)));
+	}
+	
+	@Test
+	public void aggregate_shouldFoldChildEventsIntoTheVoidedEventOfTheParent() {
+		Encounter encounter = new Encounter();
+		Obs obs = obs(encounter);
+		EntityEvent encounterVoided = new EntityEvent(encounter, Action.VOIDED);
+		
+		Map<EntityEvent, List<EntityEvent>> aggregated = aggregator
+		        .aggregate(Arrays.asList(encounterVoided, new EntityEvent(obs, Action.VOIDED)));
+		
+		assertEquals(Collections.singletonList(encounterVoided), new ArrayList<>(aggregated.keySet()));
+		assertEquals(Collections.singletonList(new EntityEvent(obs, Action.VOIDED)), aggregated.get(encounterVoided));
+	}
+	
+	@Test
+	public void aggregate_shouldAddTheEventForTheRealParentRatherThanItsProxy() {
+		Encounter encounter = new Encounter();
+		LazyInitializer initializer = mock(LazyInitializer.class);
+		when(initializer.getImplementation()).thenReturn(encounter);
+		Obs obs = obs(new EncounterProxy(initializer));
+		
+		Map<EntityEvent, List<EntityEvent>> aggregated = aggregator
+		        .aggregate(Collections.singletonList(new EntityEvent(obs, Action.CREATED)));
+		
+		EntityEvent parentEvent = aggregated.keySet().iterator().next();
+		assertSame(encounter, parentEvent.getEntity());
+		assertEquals(Action.UPDATED, parentEvent.getAction());
+	}
+	
+	@Test
+	public void aggregate_shouldNotChangeEventsThatMatchNoRule() {
+		Obs obsWithoutEncounter = new Obs();
+		List<EntityEvent> events = new ArrayList<>();
+		events.add(new EntityEvent(new Location(), Action.UPDATED));
+		events.add(new EntityEvent(obsWithoutEncounter, Action.CREATED));
+		
+		Map<EntityEvent, List<EntityEvent>> aggregated = aggregator.aggregate(events);
+		
+		assertEquals(events, new ArrayList<>(aggregated.keySet()));
+		assertTrue(aggregated.values().stream().allMatch(List::isEmpty));
+	}
+	
+	@Test
+	public void aggregate_shouldFoldChainedChildEventsIntoTheEventOfTheTopLevelAncestor() {
+		EventAggregator chained = new EventAggregator(Arrays.asList(new EventAggregator.Rule(Obs.class, "encounter"),
+		    new EventAggregator.Rule(Encounter.class, "visit")));
+		Visit visit = new Visit();
+		Encounter encounter = new Encounter();
+		encounter.setVisit(visit);
+		EntityEvent visitCreated = new EntityEvent(visit, Action.CREATED);
+		EntityEvent encounterCreated = new EntityEvent(encounter, Action.CREATED);
+		EntityEvent obsCreated = new EntityEvent(obs(encounter), Action.CREATED);
+		
+		Map<EntityEvent, List<EntityEvent>> aggregated = chained
+		        .aggregate(Arrays.asList(visitCreated, encounterCreated, obsCreated));
+		
+		assertEquals(Collections.singletonList(visitCreated), new ArrayList<>(aggregated.keySet()));
+		assertEquals(Arrays.asList(encounterCreated, obsCreated), aggregated.get(visitCreated));
+		
+		aggregated = chained.aggregate(Arrays.asList(obsCreated, encounterCreated, visitCreated));
+		
+		assertEquals(Collections.singletonList(visitCreated), new ArrayList<>(aggregated.keySet()));
+		assertEquals(Arrays.asList(obsCreated, encounterCreated), aggregated.get(visitCreated));
+	}
+	
+	private static class EncounterProxy extends Encounter implements HibernateProxy {
+		
+		private final LazyInitializer initializer;
+		
+		EncounterProxy(LazyInitializer initializer) {
+			this.initializer = initializer;
+		}
+		
+		@Override
+		public Object writeReplace() {
+			return this;
+		}
+		
+		@Override
+		public LazyInitializer getHibernateLazyInitializer() {
+			return initializer;
+		}
+	}
+	
+	private Obs obs(Encounter encounter) {
+		Obs obs = new Obs();
+		obs.setEncounter(encounter);
+		return obs;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EventCoalescerTest {
+	
+	private static final String PATIENT = "org.openmrs.Patient";
+	
+	private static final String UPDATED = "UPDATED:" + PATIENT;
+	
+	private final List<String> sentTopics = new CopyOnWriteArrayList<>();
+	
+	private final List<EventMessage> sentMessages = new CopyOnWriteArrayList<>();
+	
+	private final EventCoalescer coalescer = new EventCoalescer(50, 1000, Collections.singletonList(PATIENT),
+	        (topicName, eventMessage) -> {
+		        sentTopics.add(topicName);
+		        sentMessages.add(eventMessage);
+	        });
+	
+	@Test
+	public void coalesce_shouldCollapseRepeatedUpdatesIntoOneEventCarryingTheCount() throws Exception {
+		coalescer.start();
+		try {
+			assertTrue(coalescer.coalesce(UPDATED, PATIENT, "uuid1", message("uuid1", "names")));
+			assertTrue(coalescer.coalesce(UPDATED, PATIENT, "uuid1", message("uuid1", "addresses")));
+			assertTrue(coalescer.coalesce(UPDATED, PATIENT, "uuid1", message("uuid1", "names")));
+			
+			long deadline = System.currentTimeMillis() + 5000;
+			while (sentMessages.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		}
+		finally {
+			coalescer.stop();
+		}
+		
+		assertEquals(Collections.singletonList(UPDATED), sentTopics);
+		assertEquals(3, sentMessages.get(0).get(EventMessage.COALESCED_COUNT));
+		assertEquals("names,addresses", sentMessages.get(0).get(EventMessage.CHANGED_COLLECTIONS));
+	}
+	
+	@Test
+	public void coalesce_shouldDiscardThePendingUpdateWhenTheEntityIsPurged() {
+		coalescer.coalesce(UPDATED, PATIENT, "uuid1", message("uuid1", "names"));
+		
+		assertFalse(coalescer.coalesce("PURGED:" + PATIENT, PATIENT, "uuid1", message("uuid1", null)));
+		coalescer.stop();
+		
+		assertTrue(sentTopics.isEmpty());
+	}
+	
+	@Test
+	public void coalesce_shouldSendThePendingUpdateBeforeAnotherActionOfTheEntity() {
+		coalescer.coalesce(UPDATED, PATIENT, "uuid1", message("uuid1", "names"));
+		coalescer.coalesce(UPDATED, PATIENT, "uuid2", message("uuid2", "names"));
+		
+		assertFalse(coalescer.coalesce("VOIDED:" + PATIENT, PATIENT, "uuid1", message("uuid1", null)));
+		
+		assertEquals(Collections.singletonList(UPDATED), sentTopics);
+		assertEquals("uuid1", sentMessages.get(0).get("uuid"));
+		assertEquals(1, coalescer.getPendingCount());
+	}
+	
+	@Test
+	public void coalesce_shouldNotHoldTheEventsOfOtherClasses() {
+		assertFalse(coalescer.coalesce("UPDATED:org.openmrs.Visit", "org.openmrs.Visit", "uuid1", message("uuid1", null)));
+		assertEquals(0, coalescer.getPendingCount());
+	}
+	
+	private EventMessage message(String uuid, String changedCollection) {
+		EventMessage eventMessage = new EventMessage();
+		eventMessage.put("uuid", uuid);
+		if (changedCollection != null) {
+			eventMessage.put(EventMessage.CHANGED_COLLECTIONS, changedCollection);
+		}
+		return eventMessage;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures firing 5000 events to a subscriber of the embedded broker with different global
+ * properties: the throughput until they are all delivered and the time the firing thread waits for
+ * each send, which is how long the events hold up the commit of the transaction firing them, the
+ * time from firing an event to its delivery and the bytes allocated by all the threads meanwhile.
+ * Run it manually, the timings depend on the machine and its disk.
+ */
+@Disabled("Benchmark, run manually")
+public class EventEngineBenchmarkTest extends BaseEventTest {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventEngineBenchmarkTest.class);
+	
+	private static final int EVENTS = 5000;
+	
+	private static final int WARM_UP_EVENTS = 500;
+	
+	private static final String TOPIC = "org.openmrs.benchmark";
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void fireEvent_shouldDeliverTheEventsWithEachConnectionSetting() throws Exception {
+		run("Defaults", Collections.emptyMap());
+		run("useAsyncSend", Collections.singletonMap(EventConstants.GP_CONNECTION_USE_ASYNC_SEND, "true"));
+		run("useAsyncSend with a 1MB producer window",
+		    properties(EventConstants.GP_CONNECTION_USE_ASYNC_SEND, "true",
+		        EventConstants.GP_CONNECTION_PRODUCER_WINDOW_SIZE, "1048576"));
+		run("optimizeAcknowledge", Collections.singletonMap(EventConstants.GP_CONNECTION_OPTIMIZE_ACKNOWLEDGE, "true"));
+		run("dispatchAsync off", Collections.singletonMap(EventConstants.GP_CONNECTION_DISPATCH_ASYNC, "false"));
+		run("copyMessageOnSend off", Collections.singletonMap(EventConstants.GP_CONNECTION_COPY_MESSAGE_ON_SEND, "false"));
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void fireEvent_shouldDeliverTheEventsWithEachConnectionProfile() throws Exception {
+		for (EventEngine.ConnectionProfile profile : EventEngine.ConnectionProfile.values()) {
+			run(profile + " connection profile",
+			    Collections.singletonMap(EventConstants.GP_CONNECTION_PROFILE, profile.name()));
+		}
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void fireEvent_shouldDeliverTheEventsWithEachBrokerProfile() throws Exception {
+		for (EmbeddedBrokerFactory.Profile profile : EmbeddedBrokerFactory.Profile.values()) {
+			run(profile + " broker profile", Collections.singletonMap(EventConstants.GP_BROKER_PROFILE, profile.name()));
+		}
+	}
+	
+	private void run(String description, Map<String, String> globalProperties) throws Exception {
+		AdministrationService as = Context.getAdministrationService();
+		globalProperties.forEach((property, value) -> as.saveGlobalProperty(new GlobalProperty(property, value)));
+		Event.shutdown();
+		CountDownLatch warmedUp = new CountDownLatch(WARM_UP_EVENTS);
+		CountDownLatch delivered = new CountDownLatch(WARM_UP_EVENTS + EVENTS);
+		long[] deliverNanos = new long[EVENTS];
+		EventListener listener = message -> {
+			try {
+				MapMessage mapMessage = (MapMessage) message;
+				if (mapMessage.getBoolean("measured")) {
+					deliverNanos[mapMessage.getInt("index")] = System.nanoTime() - mapMessage.getLong("firedAt");
+				}
+			}
+			catch (JMSException e) {
+				throw new IllegalStateException(e);
+			}
+			warmedUp.countDown();
+			delivered.countDown();
+		};
+		try {
+			Event.subscribe(TOPIC, listener);
+			fire(WARM_UP_EVENTS, false);
+			assertTrue(warmedUp.await(1, TimeUnit.MINUTES));
+			
+			long allocated = getAllocatedBytes();
+			long start = System.nanoTime();
+			long[] sendNanos = fire(EVENTS, true);
+			assertTrue(delivered.await(5, TimeUnit.MINUTES));
+			long elapsed = System.nanoTime() - start;
+			allocated = getAllocatedBytes() - allocated;
+			
+			//The latch orders the writes of the listener before the reads
+			Arrays.sort(sendNanos);
+			Arrays.sort(deliverNanos);
+			log.info("{}: {} events/s, send p50 {}us, p99 {}us, fire to deliver p50 {}us, p99 {}us, "
+			        + "{} bytes allocated per event",
+			    description, EVENTS * TimeUnit.SECONDS.toNanos(1) / elapsed, toMicros(sendNanos, 50),
+			    toMicros(sendNanos, 99), toMicros(deliverNanos, 50), toMicros(deliverNanos, 99), allocated / EVENTS);
+		}
+		finally {
+			Event.unsubscribe(TOPIC, listener);
+			for (String property : globalProperties.keySet()) {
+				as.purgeGlobalProperty(as.getGlobalPropertyObject(property));
+			}
+			Event.shutdown();
+		}
+	}
+	
+	/**
+	 * @param measured true if the listener records the time to deliver the events
+	 * @return the time each send took in nanoseconds
+	 */
+	private long[] fire(int count, boolean measured) {
+		long[] sendNanos = new long[count];
+		for (int i = 0; i < count; i++) {
+			EventMessage eventMessage = new EventMessage();
+			eventMessage.put("index", i);
+			eventMessage.put("measured", measured);
+			long start = System.nanoTime();
+			eventMessage.put("firedAt", start);
+			Event.fireEvent(TOPIC, eventMessage);
+			sendNanos[i] = System.nanoTime() - start;
+		}
+		return sendNanos;
+	}
+	
+	private long toMicros(long[] sortedNanos, int percentile) {
+		return TimeUnit.NANOSECONDS.toMicros(sortedNanos[sortedNanos.length * percentile / 100]);
+	}
+	
+	/**
+	 * @return the bytes allocated so far by the live threads, the broker and session threads outlive a
+	 *         run
+	 */
+	private long getAllocatedBytes() {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return Arrays.stream(threads.getThreadAllocatedBytes(threads.getAllThreadIds())).filter(bytes -> bytes > 0)
+		        .sum();
+	}
+	
+	private Map<String, String> properties(String... propertiesAndValues) {
+		Map<String, String> properties = new LinkedHashMap<>();
+		for (int i = 0; i < propertiesAndValues.length; i += 2) {
+			properties.put(propertiesAndValues[i], propertiesAndValues[i + 1]);
+		}
+		return properties;
+	}
+}
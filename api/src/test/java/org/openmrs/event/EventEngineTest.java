@@ -0,0 +1,717 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.jupiter.api.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptNumeric;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageNotWriteableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.event.EventTestUtil.waitFor;
+
+public class EventEngineTest extends BaseEventTest {
+	
+	/**
+	 * @see EventEngine#configureConnectionFactory(ActiveMQConnectionFactory, boolean)
+	 */
+	@Test
+	public void configureConnectionFactory_shouldApplyTheConnectionGlobalProperties() {
+		ActiveMQConnectionFactory defaults = new ActiveMQConnectionFactory();
+		setGlobalProperty(EventConstants.GP_CONNECTION_USE_ASYNC_SEND, "true");
+		setGlobalProperty(EventConstants.GP_CONNECTION_PRODUCER_WINDOW_SIZE, "1048576");
+		setGlobalProperty(EventConstants.GP_CONNECTION_OPTIMIZE_ACKNOWLEDGE, "true");
+		setGlobalProperty(EventConstants.GP_CONNECTION_DISPATCH_ASYNC, "false");
+		ActiveMQConnectionFactory cf = new ActiveMQConnectionFactory();
+		
+		new EventEngine().configureConnectionFactory(cf, false);
+		
+		assertTrue(cf.isUseAsyncSend());
+		assertEquals(1048576, cf.getProducerWindowSize());
+		assertTrue(cf.isOptimizeAcknowledge());
+		assertFalse(cf.isDispatchAsync());
+		//A property that is not set keeps the default
+		assertEquals(defaults.isCopyMessageOnSend(), cf.isCopyMessageOnSend());
+	}
+	
+	/**
+	 * @see EventEngine#configureConnectionFactory(ActiveMQConnectionFactory, boolean)
+	 */
+	@Test
+	public void configureConnectionFactory_shouldLeaveTheClientIdToTheConnectionOfTheDurableSubscriptions()
+	        throws Exception {
+		ActiveMQConnectionFactory cf = new ActiveMQConnectionFactory("vm://clientIdTest?broker.persistent=false");
+		EventEngine engine = new EventEngine();
+		
+		engine.configureConnectionFactory(cf, true);
+		
+		assertEquals(EventConstants.DEFAULT_EMBEDDED_CLIENT_ID, engine.clientId);
+		assertNull(cf.getClientID());
+		//Other connections to the broker can be made alongside the one with the client ID
+		Connection durable = cf.createConnection();
+		Connection other = cf.createConnection();
+		try {
+			durable.setClientID(engine.clientId);
+			other.start();
+			assertNotNull(other.getClientID());
+		}
+		finally {
+			other.close();
+			durable.close();
+		}
+	}
+	
+	/**
+	 * @see EventConstants#GP_CONNECTION_USE_ASYNC_SEND
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void fireEvent_shouldDeliverTheEventsSentAsynchronously() throws Exception {
+		AdministrationService as = Context.getAdministrationService();
+		as.saveGlobalProperty(new GlobalProperty(EventConstants.GP_CONNECTION_USE_ASYNC_SEND, "true"));
+		Event.shutdown();
+		final String dest = "org.openmrs.test.asyncSend";
+		final CountDownLatch latch = new CountDownLatch(3);
+		final List<String> cities = new CopyOnWriteArrayList<>();
+		EventListener listener = message -> {
+			try {
+				cities.add(((MapMessage) message).getString("city"));
+			}
+			catch (JMSException e) {
+				throw new IllegalStateException(e);
+			}
+			latch.countDown();
+		};
+		try {
+			Event.subscribe(dest, listener);
+			for (int i = 0; i < 3; i++) {
+				EventMessage eventMessage = new EventMessage();
+				eventMessage.put("city", "city" + i);
+				Event.fireEvent(dest, eventMessage);
+			}
+			
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(3, cities.size());
+		}
+		finally {
+			Event.unsubscribe(dest, listener);
+			as.purgeGlobalProperty(as.getGlobalPropertyObject(EventConstants.GP_CONNECTION_USE_ASYNC_SEND));
+			Event.shutdown();
+		}
+	}
+	
+	/**
+	 * @see EventEngine.ConnectionProfile#IN_VM
+	 */
+	@Test
+	public void configureConnectionFactory_shouldPassMessagesByReferenceWithTheInVmProfileOnlyToTheEmbeddedBroker() {
+		setGlobalProperty(EventConstants.GP_CONNECTION_PROFILE, "in_vm");
+		EventEngine engine = new EventEngine();
+		ActiveMQConnectionFactory embedded = new ActiveMQConnectionFactory();
+		ActiveMQConnectionFactory external = new ActiveMQConnectionFactory();
+		
+		engine.configureConnectionFactory(embedded, true);
+		
+		assertFalse(embedded.isCopyMessageOnSend());
+		assertFalse(embedded.isAlwaysSessionAsync());
+		assertTrue(engine.readOnlyMessages);
+		
+		engine.configureConnectionFactory(external, false);
+		
+		assertTrue(external.isCopyMessageOnSend());
+		assertFalse(engine.readOnlyMessages);
+	}
+	
+	/**
+	 * @see EventEngine.ConnectionProfile#IN_VM
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void subscribe_shouldDeliverReadOnlyMessagesWithTheInVmProfile() throws Exception {
+		AdministrationService as = Context.getAdministrationService();
+		as.saveGlobalProperty(new GlobalProperty(EventConstants.GP_CONNECTION_PROFILE, "IN_VM"));
+		Event.shutdown();
+		final String dest = "org.openmrs.test.inVm";
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<String> rejected = new CopyOnWriteArrayList<>();
+		final List<String> cities = new CopyOnWriteArrayList<>();
+		EventListener listener = message -> {
+			MapMessage mapMessage = (MapMessage) message;
+			try {
+				try {
+					mapMessage.setString("city", "changed");
+				}
+				catch (MessageNotWriteableException e) {
+					rejected.add("body");
+				}
+				try {
+					mapMessage.setStringProperty("changed", "true");
+				}
+				catch (MessageNotWriteableException e) {
+					rejected.add("properties");
+				}
+				cities.add(mapMessage.getString("city"));
+			}
+			catch (JMSException e) {
+				throw new IllegalStateException(e);
+			}
+			latch.countDown();
+		};
+		try {
+			Event.subscribe(dest, listener);
+			EventMessage eventMessage = new EventMessage();
+			eventMessage.put("city", "kampala");
+			Event.fireEvent(dest, eventMessage);
+			
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("body", "properties"), rejected);
+			assertEquals(Collections.singletonList("kampala"), cities);
+		}
+		finally {
+			Event.unsubscribe(dest, listener);
+			as.purgeGlobalProperty(as.getGlobalPropertyObject(EventConstants.GP_CONNECTION_PROFILE));
+			Event.shutdown();
+		}
+	}
+	
+	/**
+	 * @see EventEngine#shutdown()
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shutdown_shouldStopTheEmbeddedBrokerWhichIsStartedAgainWhenTheEngineIsUsed() throws Exception {
+		final String dest = "org.openmrs.test.restart";
+		Event.fireEvent(dest, new EventMessage());
+		assertNotNull(Event.getStatistics().get("broker.startMillis"));
+		
+		Event.shutdown();
+		
+		//The engine connects with create=false so the vm transport doesn't recreate a stopped broker
+		ActiveMQConnectionFactory cf = new ActiveMQConnectionFactory(
+		        "vm://" + EmbeddedBrokerFactory.BROKER_NAME + "?create=false");
+		assertThrows(JMSException.class, () -> cf.createConnection().close());
+		
+		final CountDownLatch latch = new CountDownLatch(1);
+		EventListener listener = message -> latch.countDown();
+		try {
+			Event.subscribe(dest, listener);
+			Event.fireEvent(dest, new EventMessage());
+			
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+		}
+		finally {
+			Event.unsubscribe(dest, listener);
+		}
+	}
+	
+	/**
+	 * @see EventEngine#warmUp()
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void warmUp_shouldStartTheEngineInTheBackgroundAndReportTheStartupTimes() throws Exception {
+		Event.shutdown();
+		assertNull(Event.getStatistics().get("engine.initializationMillis"));
+		
+		Event.warmUp();
+		
+		Map<String, Object> statistics = waitForInitialization();
+		long brokerStartMillis = (Long) statistics.get("broker.startMillis");
+		assertTrue(brokerStartMillis >= 0);
+		//The initialization includes the start of the broker
+		assertTrue((Long) statistics.get("engine.initializationMillis") >= brokerStartMillis);
+	}
+	
+	/**
+	 * @see EventConstants#GP_WARM_UP_TIMEOUT
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void fireEvent_shouldHoldTheEventsFiredAfterTheWarmUpTimeoutAndSendThemOnceTheEngineHasStarted()
+	        throws Exception {
+		final String dest = "org.openmrs.test.warmUp";
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setDurable(true);
+		options.setListenerId("warmUpTestListener");
+		final CountDownLatch latch = new CountDownLatch(3);
+		final List<String> cities = new CopyOnWriteArrayList<>();
+		EventListener listener = newCityListener(cities, latch);
+		AdministrationService as = Context.getAdministrationService();
+		try {
+			//The durable subscription retains the events sent before the listener subscribes again
+			Event.subscribe(dest, listener, options);
+			Event.unsubscribe(dest, listener);
+			as.saveGlobalProperty(new GlobalProperty(EventConstants.GP_WARM_UP_TIMEOUT, "1"));
+			Event.shutdown();
+			
+			Event.warmUp();
+			fireCityEvents(dest, 0, 3);
+			
+			waitForInitialization();
+			Event.subscribe(dest, listener, options);
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("city0", "city1", "city2"), cities);
+		}
+		finally {
+			Event.unsubscribe(dest, listener);
+			Event.removeDurableSubscription(dest, options.getListenerId());
+			GlobalProperty gp = as.getGlobalPropertyObject(EventConstants.GP_WARM_UP_TIMEOUT);
+			if (gp != null) {
+				as.purgeGlobalProperty(gp);
+			}
+			Event.shutdown();
+		}
+	}
+	
+	/**
+	 * @see EventEngine#fireEvents(String, java.util.Collection)
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void fireEventAsync_shouldNotWaitForTheWarmUpAndSendTheEventsInOrderOnceTheEngineHasStarted()
+	        throws Exception {
+		final String dest = "org.openmrs.test.asyncWarmUp";
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setDurable(true);
+		options.setListenerId("asyncWarmUpTestListener");
+		final CountDownLatch latch = new CountDownLatch(3);
+		final List<String> cities = new CopyOnWriteArrayList<>();
+		EventListener listener = newCityListener(cities, latch);
+		EventEngine engine = EventEngineUtil.getEventEngine();
+		CountDownLatch holding = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		//Holding the monitor of the engine blocks its initialization by the warm up
+		Runnable blocker = () -> {
+			synchronized (engine) {
+				Event.warmUp();
+				holding.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		Thread blockerThread = null;
+		try {
+			//The durable subscription retains the events sent before the listener subscribes again
+			Event.subscribe(dest, listener, options);
+			Event.unsubscribe(dest, listener);
+			Event.shutdown();
+			blockerThread = Daemon.runInDaemonThread(blocker, TransactionEventListener.getDaemonToken());
+			assertTrue(holding.await(10, TimeUnit.SECONDS));
+			
+			long start = System.currentTimeMillis();
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				EventMessage eventMessage = new EventMessage();
+				eventMessage.put("city", "city" + i);
+				futures.add(Event.fireEventAsync(dest, eventMessage));
+			}
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			assertFalse(futures.get(0).isDone());
+			
+			release.countDown();
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+			waitForInitialization();
+			Event.subscribe(dest, listener, options);
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("city0", "city1", "city2"), cities);
+		}
+		finally {
+			release.countDown();
+			if (blockerThread != null) {
+				blockerThread.join(10000);
+			}
+			Event.unsubscribe(dest, listener);
+			Event.removeDurableSubscription(dest, options.getListenerId());
+			Event.shutdown();
+		}
+	}
+	
+	/**
+	 * @see EventConstants#GP_WARM_UP_TIMEOUT
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void subscribe_shouldWaitForTheWarmUpBeyondTheWarmUpTimeout() throws Exception {
+		final String dest = "org.openmrs.test.subscribeWarmUp";
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<String> cities = new CopyOnWriteArrayList<>();
+		EventListener listener = newCityListener(cities, latch);
+		EventEngine engine = EventEngineUtil.getEventEngine();
+		CountDownLatch holding = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		//Holding the monitor of the engine blocks its initialization by the warm up, like a slow recovery
+		Runnable blocker = () -> {
+			synchronized (engine) {
+				Event.warmUp();
+				holding.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		List<Throwable> failures = new CopyOnWriteArrayList<>();
+		CountDownLatch subscribed = new CountDownLatch(1);
+		Runnable subscriber = () -> {
+			try {
+				Event.subscribe(dest, listener);
+				subscribed.countDown();
+			}
+			catch (RuntimeException e) {
+				failures.add(e);
+			}
+		};
+		AdministrationService as = Context.getAdministrationService();
+		Thread blockerThread = null;
+		try {
+			as.saveGlobalProperty(new GlobalProperty(EventConstants.GP_WARM_UP_TIMEOUT, "1"));
+			Event.shutdown();
+			blockerThread = Daemon.runInDaemonThread(blocker, TransactionEventListener.getDaemonToken());
+			assertTrue(holding.await(10, TimeUnit.SECONDS));
+			
+			Daemon.runInDaemonThread(subscriber, TransactionEventListener.getDaemonToken());
+			
+			//Still waiting well past the warm up timeout
+			assertFalse(subscribed.await(500, TimeUnit.MILLISECONDS));
+			release.countDown();
+			assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+			assertTrue(failures.isEmpty());
+			fireCityEvents(dest, 0, 1);
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(Collections.singletonList("city0"), cities);
+		}
+		finally {
+			release.countDown();
+			if (blockerThread != null) {
+				blockerThread.join(10000);
+			}
+			Event.unsubscribe(dest, listener);
+			GlobalProperty gp = as.getGlobalPropertyObject(EventConstants.GP_WARM_UP_TIMEOUT);
+			if (gp != null) {
+				as.purgeGlobalProperty(gp);
+			}
+			Event.shutdown();
+		}
+	}
+	
+	/**
+	 * @see EventEngine#stopBuffering()
+	 */
+	@Test
+	public void stopBuffering_shouldSendTheEventsFiredWhileBufferingInOrder() throws Exception {
+		final String dest = "org.openmrs.test.buffering";
+		final CountDownLatch latch = new CountDownLatch(3);
+		final List<String> cities = new CopyOnWriteArrayList<>();
+		EventListener listener = newCityListener(cities, latch);
+		try {
+			Event.startBuffering(10);
+			fireCityEvents(dest, 0, 3);
+			//The listener subscribes after the events are fired
+			Event.subscribe(dest, listener);
+			
+			Event.stopBuffering();
+			
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("city0", "city1", "city2"), cities);
+		}
+		finally {
+			Event.stopBuffering();
+			Event.unsubscribe(dest, listener);
+		}
+	}
+	
+	/**
+	 * @see EventEngine#startBuffering(int)
+	 */
+	@Test
+	public void fireEvent_shouldWaitForTheBufferToBeSentWhenItIsFull() throws Exception {
+		final String dest = "org.openmrs.test.fullBuffer";
+		final CountDownLatch latch = new CountDownLatch(3);
+		final List<String> cities = new CopyOnWriteArrayList<>();
+		EventListener listener = newCityListener(cities, latch);
+		try {
+			Event.startBuffering(2);
+			fireCityEvents(dest, 0, 2);
+			Thread firing = new Thread(() -> fireCityEvents(dest, 2, 3));
+			firing.start();
+			firing.join(200);
+			assertTrue(firing.isAlive());
+			Event.subscribe(dest, listener);
+			
+			Event.stopBuffering();
+			
+			firing.join(10000);
+			assertFalse(firing.isAlive());
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			//The event fired when the buffer was full doesn't overtake the buffered ones
+			assertEquals(Arrays.asList("city0", "city1", "city2"), cities);
+		}
+		finally {
+			Event.stopBuffering();
+			Event.unsubscribe(dest, listener);
+		}
+	}
+	
+	/**
+	 * @see EventEngine#startBuffering(int)
+	 */
+	@Test
+	public void fireEvent_shouldSendTheEventAheadOfTheFullBufferAfterTheWarmUpTimeout() throws Exception {
+		final String dest = "org.openmrs.test.fullBufferTimeout";
+		final CountDownLatch latch = new CountDownLatch(3);
+		final List<String> cities = new CopyOnWriteArrayList<>();
+		EventListener listener = newCityListener(cities, latch);
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(EventConstants.GP_WARM_UP_TIMEOUT, "200"));
+		try {
+			Event.subscribe(dest, listener);
+			Event.startBuffering(2);
+			fireCityEvents(dest, 0, 2);
+			
+			long start = System.currentTimeMillis();
+			fireCityEvents(dest, 2, 3);
+			
+			long waited = System.currentTimeMillis() - start;
+			assertTrue(waited >= 200 && waited < 5000, "Waited " + waited + "ms");
+			waitFor(() -> cities.size() == 1);
+			Event.stopBuffering();
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			//The event is sent ahead of the buffered ones
+			assertEquals(Arrays.asList("city2", "city0", "city1"), cities);
+		}
+		finally {
+			Event.stopBuffering();
+			Event.unsubscribe(dest, listener);
+		}
+	}
+	
+	/**
+	 * @see EventEngine#subscribeAll(java.util.Collection)
+	 */
+	@Test
+	public void subscribeAll_shouldSubscribeEachListenerToTheTopicsOfItsClassesAndActions() throws Exception {
+		LocationListener locationListener = new LocationListener();
+		ConceptListener conceptListener = new ConceptListener();
+		try {
+			//The listeners are subscribed in parallel
+			Event.subscribeAll(Arrays.asList(locationListener, conceptListener));
+			
+			Event.fireAction(Event.Action.UPDATED.name(), new Location());
+			Event.fireAction(Event.Action.CREATED.name(), new Location());
+			//A subclass of a class a listener subscribes to
+			Event.fireAction(Event.Action.RETIRED.name(), new ConceptNumeric());
+			
+			assertTrue(locationListener.latch.await(10, TimeUnit.SECONDS));
+			assertTrue(conceptListener.latch.await(10, TimeUnit.SECONDS));
+			assertEquals(Collections.singletonList("CREATED:" + Location.class.getName()), locationListener.events);
+			assertEquals(Collections.singletonList("RETIRED:" + ConceptNumeric.class.getName()), conceptListener.events);
+		}
+		finally {
+			Event.unsubscribeAll(locationListener);
+			Event.unsubscribeAll(conceptListener);
+		}
+	}
+	
+	/**
+	 * @see SubscriptionOptions#setConcurrency(int)
+	 */
+	@Test
+	public void subscribe_shouldHandleTheMessagesWithTheSameKeyInOrderOnSeveralThreads() throws Exception {
+		final String dest = "org.openmrs.test.concurrency";
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setConcurrency(4);
+		final CountDownLatch latch = new CountDownLatch(100);
+		final Map<String, List<Integer>> sequences = new ConcurrentHashMap<>();
+		final Set<String> threads = ConcurrentHashMap.newKeySet();
+		EventListener listener = message -> {
+			try {
+				MapMessage mapMessage = (MapMessage) message;
+				sequences.computeIfAbsent(mapMessage.getString("uuid"), uuid -> new CopyOnWriteArrayList<>())
+				        .add(mapMessage.getInt("sequence"));
+			}
+			catch (JMSException e) {
+				throw new IllegalStateException(e);
+			}
+			threads.add(Thread.currentThread().getName());
+			latch.countDown();
+		};
+		try {
+			Event.subscribe(dest, listener, options);
+			for (int i = 0; i < 100; i++) {
+				EventMessage eventMessage = new EventMessage();
+				eventMessage.put("uuid", "uuid" + (i % 5));
+				eventMessage.put("sequence", i);
+				Event.fireEvent(dest, eventMessage);
+			}
+			
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertTrue(threads.size() > 1);
+			assertEquals(5, sequences.size());
+			for (int k = 0; k < 5; k++) {
+				List<Integer> sequence = sequences.get("uuid" + k);
+				assertEquals(20, sequence.size());
+				for (int i = 0; i < sequence.size(); i++) {
+					assertEquals(k + i * 5, sequence.get(i).intValue());
+				}
+			}
+		}
+		finally {
+			Event.unsubscribe(dest, listener);
+		}
+	}
+	
+	/**
+	 * @see SubscriptionOptions#getExecutorSettings()
+	 */
+	@Test
+	public void subscribe_shouldRejectASubscriptionWithOtherExecutorSettingsThanTheOtherSubscriptionsOfTheListener() {
+		final String dest = "org.openmrs.test.executorSettings";
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setConcurrency(2);
+		SubscriptionOptions otherOptions = new SubscriptionOptions();
+		otherOptions.setConcurrency(4);
+		SubscriptionOptions sameOptions = new SubscriptionOptions();
+		sameOptions.setConcurrency(2);
+		sameOptions.setKeyProperty("patientUuid");
+		EventListener listener = message -> {};
+		try {
+			Event.subscribe(dest + "1", listener, options);
+			
+			assertThrows(APIException.class, () -> Event.subscribe(dest + "2", listener, otherOptions));
+			//The key property is applied by the subscription, not the executor
+			Event.subscribe(dest + "3", listener, sameOptions);
+			//The only subscription of the listener can change its settings
+			Event.unsubscribe(dest + "3", listener);
+			Event.unsubscribe(dest + "1", listener);
+			Event.subscribe(dest + "2", listener, otherOptions);
+		}
+		finally {
+			Event.unsubscribeAll(listener);
+		}
+	}
+	
+	private static class RecordingListener implements SubscribableEventListener {
+		
+		final List<String> events = new CopyOnWriteArrayList<>();
+		
+		final CountDownLatch latch = new CountDownLatch(1);
+		
+		private final Class<? extends OpenmrsObject> clazz;
+		
+		private final List<String> actions;
+		
+		RecordingListener(Class<? extends OpenmrsObject> clazz, List<String> actions) {
+			this.clazz = clazz;
+			this.actions = actions;
+		}
+		
+		@Override
+		public List<Class<? extends OpenmrsObject>> subscribeToObjects() {
+			return Collections.singletonList(clazz);
+		}
+		
+		@Override
+		public List<String> subscribeToActions() {
+			return actions;
+		}
+		
+		@Override
+		public void onMessage(Message message) {
+			try {
+				MapMessage mapMessage = (MapMessage) message;
+				events.add(mapMessage.getString("action") + ":" + mapMessage.getString("classname"));
+			}
+			catch (JMSException e) {
+				throw new IllegalStateException(e);
+			}
+			latch.countDown();
+		}
+	}
+	
+	private static class LocationListener extends RecordingListener {
+		
+		LocationListener() {
+			super(Location.class, Collections.singletonList(Event.Action.CREATED.name()));
+		}
+	}
+	
+	private static class ConceptListener extends RecordingListener {
+		
+		ConceptListener() {
+			//All the actions
+			super(Concept.class, null);
+		}
+	}
+	
+	private EventListener newCityListener(List<String> cities, CountDownLatch latch) {
+		return message -> {
+			try {
+				cities.add(((MapMessage) message).getString("city"));
+			}
+			catch (JMSException e) {
+				throw new IllegalStateException(e);
+			}
+			latch.countDown();
+		};
+	}
+	
+	private void fireCityEvents(String dest, int from, int to) {
+		for (int i = from; i < to; i++) {
+			EventMessage eventMessage = new EventMessage();
+			eventMessage.put("city", "city" + i);
+			Event.fireEvent(dest, eventMessage);
+		}
+	}
+	
+	private Map<String, Object> waitForInitialization() throws InterruptedException {
+		waitFor(() -> Event.getStatistics().containsKey("engine.initializationMillis"));
+		return Event.getStatistics();
+	}
+	
+	private void setGlobalProperty(String property, String value) {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(property, value));
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.event.api.db.EventOutboxDAO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EventOutboxTest extends BaseEventTest {
+	
+	//The liquibase changesets of the module are not run against the test database
+	private static final String CREATE_TABLE = "create table if not exists event_outbox ("
+	        + "outbox_id bigint auto_increment primary key, action varchar(50) not null, "
+	        + "classname varchar(255) not null, uuid char(38), properties text, date_created datetime not null)";
+	
+	@Autowired
+	private JmsEventPublisher publisher;
+	
+	@Autowired
+	private EventOutboxDAO outboxDAO;
+	
+	@Autowired
+	private EventOutboxRelay relay;
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	private TransactionTemplate transactionTemplate;
+	
+	@BeforeEach
+	public void enableOutbox() {
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		executeUpdate(CREATE_TABLE);
+		executeUpdate("delete from event_outbox");
+		publisher.setOutboxEnabled(true);
+	}
+	
+	@AfterEach
+	public void disableOutbox() {
+		publisher.setOutboxEnabled(false);
+		publisher.setCoalescer(null);
+		executeUpdate("delete from event_outbox");
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldWriteTheEventsToTheOutboxInTheTransactionOfTheChanges() throws Exception {
+		MockEventListener listener = new MockEventListener(1);
+		Event.subscribe(GlobalProperty.class, Event.Action.CREATED.name(), listener);
+		GlobalProperty gp = new GlobalProperty("outbox.committed", "value");
+		
+		transactionTemplate.execute(status -> {
+			Context.getAdministrationService().saveGlobalProperty(gp);
+			//The events are written when the transaction completes
+			assertTrue(getEntries(gp).isEmpty());
+			return null;
+		});
+		
+		List<EventOutboxEntry> entries = getEntries(gp);
+		assertEquals(1, entries.size());
+		assertEquals(Event.Action.CREATED.name(), entries.get(0).getAction());
+		assertEquals(GlobalProperty.class.getName(), entries.get(0).getClassname());
+		//The event is only fired by the relay
+		listener.waitForEvents(500, TimeUnit.MILLISECONDS);
+		assertEquals(0, listener.getCreatedCount());
+		Event.unsubscribe(GlobalProperty.class, Event.Action.CREATED, listener);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldNotKeepTheEventsInTheOutboxIfTheTransactionIsRolledBack() {
+		GlobalProperty gp = new GlobalProperty("outbox.rolledBack", "value");
+		
+		transactionTemplate.execute(status -> {
+			Context.getAdministrationService().saveGlobalProperty(gp);
+			Context.flushSession();
+			status.setRollbackOnly();
+			return null;
+		});
+		
+		assertTrue(getEntries(gp).isEmpty());
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldRelayTheEventsInBatchesAndDeleteThem() throws Exception {
+		MockEventListener listener = new MockEventListener(3);
+		Event.subscribe(GlobalProperty.class, Event.Action.CREATED.name(), listener);
+		List<GlobalProperty> gps = Arrays.asList(new GlobalProperty("outbox.relayed1", "value"),
+		    new GlobalProperty("outbox.relayed2", "value"), new GlobalProperty("outbox.relayed3", "value"));
+		transactionTemplate.execute(status -> Context.getAdministrationService().saveGlobalProperties(gps));
+		long relayedCount = relay.getRelayedCount();
+		
+		relay.relay(2);
+		
+		listener.waitForEvents();
+		assertEquals(3, listener.getCreatedCount());
+		assertEquals(relayedCount + 3, relay.getRelayedCount());
+		assertTrue(transactionTemplate.execute(status -> outboxDAO.getEntries(10)).isEmpty());
+		Event.unsubscribe(GlobalProperty.class, Event.Action.CREATED, listener);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldCoalesceTheRelayedUpdatedEvents() {
+		List<EventMessage> sent = Collections.synchronizedList(new ArrayList<>());
+		EventCoalescer coalescer = new EventCoalescer(60000, 60000,
+		        Collections.singleton(GlobalProperty.class.getName()), (topicName, eventMessage) -> sent.add(eventMessage));
+		publisher.setCoalescer(coalescer);
+		String uuid = UUID.randomUUID().toString();
+		List<EventOutboxEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			entries.add(new EventOutboxEntry(null, Event.Action.UPDATED.name(), GlobalProperty.class.getName(), uuid,
+			        new EventMessage(), new Date()));
+		}
+		transactionTemplate.execute(status -> {
+			outboxDAO.addEntries(entries);
+			return null;
+		});
+		
+		relay.relay(10);
+		
+		assertTrue(transactionTemplate.execute(status -> outboxDAO.getEntries(10)).isEmpty());
+		assertEquals(1, coalescer.getPendingCount());
+		coalescer.stop();
+		assertEquals(1, sent.size());
+		assertEquals(3, sent.get(0).get(EventMessage.COALESCED_COUNT));
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldKeepTheTypesOfTheProperties() {
+		EventMessage properties = new EventMessage();
+		properties.put("string", "a=b&c:d");
+		properties.put("integer", 7);
+		properties.put("long", 8L);
+		properties.put("double", 1.5);
+		properties.put("boolean", true);
+		properties.put("date", new Date(0));
+		EventOutboxEntry entry = new EventOutboxEntry(null, Event.Action.UPDATED.name(), GlobalProperty.class.getName(),
+		        UUID.randomUUID().toString(), properties, new Date());
+		transactionTemplate.execute(status -> {
+			outboxDAO.addEntries(Collections.singletonList(entry));
+			return null;
+		});
+		
+		EventMessage read = transactionTemplate.execute(status -> outboxDAO.getEntries(10)).get(0).getProperties();
+		
+		assertEquals("a=b&c:d", read.get("string"));
+		assertEquals(7, read.get("integer"));
+		assertEquals(8L, read.get("long"));
+		assertEquals(1.5, read.get("double"));
+		assertEquals(true, read.get("boolean"));
+		//Other types are relayed as strings
+		assertEquals(String.valueOf(new Date(0)), read.get("date"));
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldPollOnTheRelayThreadAndExposeTheStatistics() throws Exception {
+		MockEventListener listener = new MockEventListener(1);
+		Event.subscribe(GlobalProperty.class, Event.Action.CREATED.name(), listener);
+		GlobalProperty gp = new GlobalProperty("outbox.polled", "value");
+		transactionTemplate.execute(status -> Context.getAdministrationService().saveGlobalProperty(gp));
+		long relayedCount = relay.getRelayedCount();
+		
+		relay.start(10, 50);
+		try {
+			listener.waitForEvents();
+			assertEquals(1, listener.getCreatedCount());
+			EventTestUtil.waitFor(() -> relay.getRelayedCount() == relayedCount + 1 && relay.getLastPollTime() > 0);
+			Map<String, Object> statistics = Event.getStatistics();
+			assertEquals(true, statistics.get("outbox.running"));
+			assertEquals(relayedCount + 1, statistics.get("outbox.relayed"));
+			assertTrue(statistics.containsKey("outbox.lagMillis"));
+			assertTrue((Long) statistics.get("outbox.lastPollTime") > 0);
+		}
+		finally {
+			relay.stop();
+			Event.unsubscribe(GlobalProperty.class, Event.Action.CREATED, listener);
+		}
+		assertEquals(false, Event.getStatistics().get("outbox.running"));
+	}
+	
+	private List<EventOutboxEntry> getEntries(GlobalProperty gp) {
+		return transactionTemplate.execute(status -> outboxDAO.getEntries(100)).stream()
+		        .filter(entry -> gp.getUuid().equals(entry.getUuid())).collect(Collectors.toList());
+	}
+	
+	private void executeUpdate(String sql) {
+		transactionTemplate.execute(status -> {
+			sessionFactory.getCurrentSession().doWork(connection -> {
+				try (Statement statement = connection.createStatement()) {
+					statement.executeUpdate(sql);
+				}
+			});
+			return null;
+		});
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.openmrs.event.EventPublishQueue.BatchSender;
+import org.openmrs.event.EventPublishQueue.OverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the throughput of 1 to 64 threads firing 2000 events each through the
+ * {@link EventPublishQueue} with adaptive batches, through the queue sending one event at a time and
+ * sending directly one at a time under a lock like the firing threads used to. The simulated broker
+ * takes 100 microseconds per send and 1 more per event. Run it manually, the throughput depends on
+ * the machine.
+ */
+@Disabled("Benchmark, run manually")
+public class EventPublishQueueBenchmarkTest {
+	
+	private static final Logger log = LoggerFactory.getLogger(EventPublishQueueBenchmarkTest.class);
+	
+	private static final int EVENTS = 2000;
+	
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+	
+	@Test
+	public void offer_shouldSendTheEventsOfTheConcurrentThreads() throws Exception {
+		for (int threads : THREADS) {
+			run("Adaptive batches", threads, EventPublishQueue.DEFAULT_MAX_BATCH_SIZE);
+			run("Single event batches", threads, 1);
+			runDirect(threads);
+		}
+	}
+	
+	private void run(String description, int threads, int maxBatchSize) throws Exception {
+		EventPublishQueue queue = new EventPublishQueue(EventPublishQueueBenchmarkTest::send, maxBatchSize, 10000,
+		        OverflowPolicy.BLOCK, 60000, null, new CircuitBreaker(5, 1000));
+		queue.start();
+		long start = System.nanoTime();
+		fire(threads, () -> queue.offer("benchmark", new EventMessage()));
+		while (queue.getSentCount() < (long) threads * EVENTS) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		long elapsed = System.nanoTime() - start;
+		queue.stop(1000);
+		log.info("{} with {} threads: {} events/s in {} batches", description, threads,
+		    (long) threads * EVENTS * TimeUnit.SECONDS.toNanos(1) / elapsed, queue.getBatchCount());
+	}
+	
+	private void runDirect(int threads) throws Exception {
+		Object lock = new Object();
+		long start = System.nanoTime();
+		fire(threads, () -> {
+			synchronized (lock) {
+				try {
+					send(new ArrayList<>(1));
+				}
+				catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		long elapsed = System.nanoTime() - start;
+		log.info("Direct sends with {} threads: {} events/s", threads,
+		    (long) threads * EVENTS * TimeUnit.SECONDS.toNanos(1) / elapsed);
+	}
+	
+	private void fire(int threads, Runnable fire) throws Exception {
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			new Thread(() -> {
+				for (int j = 0; j < EVENTS; j++) {
+					fire.run();
+				}
+				done.countDown();
+			}).start();
+		}
+		assertTrue(done.await(10, TimeUnit.MINUTES));
+	}
+	
+	/**
+	 * @see BatchSender#send(List)
+	 */
+	private static void send(List<EventPublishQueue.PendingEvent> events) {
+		long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(100 + Math.max(1, events.size()));
+		//The queue unparks the sender when events are offered
+		for (long remaining = deadline - System.nanoTime(); remaining > 0; remaining = deadline - System.nanoTime()) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+}
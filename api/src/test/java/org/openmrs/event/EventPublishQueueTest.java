@@ -0,0 +1,222 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openmrs.event.EventPublishQueue.OverflowPolicy;
+import org.openmrs.event.EventPublishQueue.PendingEvent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.event.EventTestUtil.waitFor;
+
+public class EventPublishQueueTest {
+	
+	private final List<String> sent = new CopyOnWriteArrayList<>();
+	
+	private volatile boolean brokerDown;
+	
+	private EventPublishQueue queue;
+	
+	@TempDir
+	File spoolDirectory;
+	
+	@AfterEach
+	public void stopQueue() {
+		if (queue != null) {
+			queue.stop(1000);
+		}
+	}
+	
+	@Test
+	public void offer_shouldDropTheOldestEventWhenTheQueueIsFull() throws Exception {
+		queue = newQueue(2, OverflowPolicy.DROP_OLDEST, null);
+		queue.offer("a", new EventMessage());
+		queue.offer("b", new EventMessage());
+		queue.offer("c", new EventMessage());
+		assertEquals(1, queue.getDroppedCount());
+		
+		queue.start();
+		
+		waitFor(() -> sent.size() == 2);
+		assertEquals(Arrays.asList("b", "c"), sent);
+		assertEquals(0, queue.getDepth());
+	}
+	
+	@Test
+	public void offer_shouldDropTheNewEventWhenTheQueueIsStillFullAfterTheBlockTimeout() {
+		queue = newQueue(1, OverflowPolicy.BLOCK, null);
+		queue.offer("a", new EventMessage());
+		queue.offer("b", new EventMessage());
+		
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(1, queue.getDepth());
+	}
+	
+	@Test
+	public void offer_shouldSpoolEventsWhileTheBrokerIsDownAndSendThemInOrderOnceItIsBack() throws Exception {
+		brokerDown = true;
+		queue = newQueue(10, OverflowPolicy.SPILL, new EventSpool(spoolDirectory));
+		queue.start();
+		queue.offer("a", new EventMessage());
+		queue.offer("b", new EventMessage());
+		
+		waitFor(() -> queue.getSpoolSize() > 0 && queue.getDepth() == 0);
+		assertTrue(queue.getCircuitBreaker().getOpenedCount() > 0);
+		queue.offer("c", new EventMessage());
+		
+		brokerDown = false;
+		
+		waitFor(() -> sent.size() == 3);
+		assertEquals(Arrays.asList("a", "b", "c"), sent);
+		assertEquals(0, queue.getSpoolSize());
+		assertEquals(0, queue.getDroppedCount());
+	}
+	
+	@Test
+	public void offer_shouldSpillTheQueuedEventsBeforeTheNewOneWhenTheQueueIsFull() throws Exception {
+		queue = newQueue(2, OverflowPolicy.SPILL, new EventSpool(spoolDirectory));
+		queue.offer("a", new EventMessage());
+		queue.offer("b", new EventMessage());
+		queue.offer("c", new EventMessage());
+		assertEquals(3, queue.getSpilledCount());
+		
+		queue.start();
+		
+		waitFor(() -> sent.size() == 3);
+		assertEquals(Arrays.asList("a", "b", "c"), sent);
+	}
+	
+	@Test
+	public void offer_shouldSpoolTheBatchBeingSentBeforeTheEventsSpooledMeanwhile() throws Exception {
+		CountDownLatch sending = new CountDownLatch(1);
+		CountDownLatch failing = new CountDownLatch(1);
+		queue = new EventPublishQueue(events -> {
+			if (brokerDown) {
+				sending.countDown();
+				failing.await();
+				throw new IllegalStateException("The broker is down");
+			}
+			events.forEach(event -> sent.add(event.getTopicName()));
+		}, 1, 1, OverflowPolicy.SPILL, 10, new EventSpool(spoolDirectory), new CircuitBreaker(1, 50));
+		brokerDown = true;
+		queue.start();
+		queue.offer("a", new EventMessage());
+		assertTrue(sending.await(5, TimeUnit.SECONDS));
+		queue.offer("b", new EventMessage());
+		
+		brokerDown = false;
+		failing.countDown();
+		
+		waitFor(() -> sent.size() == 2);
+		assertEquals(Arrays.asList("a", "b"), sent);
+		assertEquals(0, queue.getDroppedCount());
+	}
+	
+	@Test
+	public void start_shouldSendTheQueuedEventsInGrowingBatches() throws Exception {
+		List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+		queue = new EventPublishQueue(events -> batchSizes.add(events.size()), 4, 100, OverflowPolicy.BLOCK, 10, null,
+		        new CircuitBreaker(1, 50));
+		for (int i = 0; i < 10; i++) {
+			queue.offer("a", new EventMessage());
+		}
+		
+		queue.start();
+		
+		waitFor(() -> queue.getSentCount() == 10);
+		assertEquals(Arrays.asList(1, 2, 4, 3), batchSizes);
+	}
+	
+	@Test
+	public void start_shouldBatchTheEventsOfConcurrentPublishersInTheirOrderAndShrinkTheBatchesWhenTheLoadDrops()
+	        throws Exception {
+		final int publishers = 8;
+		final int events = 500;
+		List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+		Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+		queue = new EventPublishQueue(batch -> {
+			batchSizes.add(batch.size());
+			for (PendingEvent event : batch) {
+				received.computeIfAbsent(event.getTopicName(), topicName -> new CopyOnWriteArrayList<>())
+				        .add((Integer) event.getEventMessage().get("sequence"));
+			}
+			//A broker round trip, the publishers fill the queue meanwhile
+			TimeUnit.MILLISECONDS.sleep(1);
+		}, 64, 10000, OverflowPolicy.BLOCK, 1000, null, new CircuitBreaker(5, 50));
+		queue.start();
+		CountDownLatch go = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < publishers; i++) {
+			String topicName = "publisher" + i;
+			Thread thread = new Thread(() -> {
+				try {
+					go.await();
+					for (int sequence = 0; sequence < events; sequence++) {
+						EventMessage eventMessage = new EventMessage();
+						eventMessage.put("sequence", sequence);
+						queue.offer(topicName, eventMessage);
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		
+		go.countDown();
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+		
+		waitFor(() -> queue.getSentCount() == publishers * events);
+		List<Integer> expected = IntStream.range(0, events).boxed().collect(Collectors.toList());
+		for (int i = 0; i < publishers; i++) {
+			assertEquals(expected, received.get("publisher" + i));
+		}
+		int largest = batchSizes.stream().mapToInt(Integer::intValue).max().getAsInt();
+		assertTrue(largest > 1, "The batches did not grow under load");
+		assertTrue(largest <= 64);
+		assertTrue(queue.getBatchCount() < publishers * events);
+		
+		//One event at a time, the batch size halves towards each single event batch
+		for (int i = 0; i < 10; i++) {
+			long sentCount = queue.getSentCount();
+			queue.offer("single", new EventMessage());
+			waitFor(() -> queue.getSentCount() == sentCount + 1);
+		}
+		assertEquals(1, queue.getBatchSize());
+	}
+	
+	private EventPublishQueue newQueue(int capacity, OverflowPolicy policy, EventSpool spool) {
+		return new EventPublishQueue(events -> {
+			if (brokerDown) {
+				throw new IllegalStateException("The broker is down");
+			}
+			events.forEach(event -> sent.add(event.getTopicName()));
+		}, EventPublishQueue.DEFAULT_MAX_BATCH_SIZE, capacity, policy, 10, spool, new CircuitBreaker(1, 50));
+	}
+}
@@ -9,27 +9,38 @@
  */
 package org.openmrs.event;
 
+import org.apache.activemq.ActiveMQMessageConsumer;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.openmrs.Concept;
 import org.openmrs.ConceptName;
 import org.openmrs.ConceptNumeric;
+import org.openmrs.GlobalProperty;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
 import org.openmrs.event.Event.Action;
 import org.openmrs.test.Verifies;
+import org.springframework.jms.core.JmsTemplate;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("deprecation")
 public class EventTest extends BaseEventTest {
@@ -327,6 +338,30 @@ public class EventTest extends BaseEventTest {
 		Assertions.assertEquals(2, listener2.getUpdatedCount());
 	}
 	
+	/**
+	 * @see Event#unsubscribeAll(EventListener)
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void unsubscribeAll_shouldCloseEverySubscriptionOfTheListenerOnly() throws Exception {
+		ConceptService cs = Context.getConceptService();
+		MockEventListener listener1 = new MockEventListener(0);
+		MockEventListener listener2 = new AnotherTestEventListener(1);
+		Event.subscribe(Concept.class, null, listener1);
+		Event.subscribe(Concept.class, Action.UPDATED.toString(), listener2);
+		
+		Event.unsubscribeAll(listener1);
+		Concept concept = cs.getConcept(3);
+		concept.setVersion("new random version");
+		cs.saveConcept(concept);
+		
+		listener1.waitForEvents();
+		listener2.waitForEvents();
+		
+		Assertions.assertEquals(0, listener1.getUpdatedCount());
+		Assertions.assertEquals(1, listener2.getUpdatedCount());
+	}
+	
 	public class AnotherTestEventListener extends MockEventListener {
 		
 		/**
@@ -440,6 +475,281 @@ public class EventTest extends BaseEventTest {
 		Assertions.assertEquals(1, listener.getCreatedCount());
 	}
 	
+	/**
+	 * @see {@link Event#subscribe(String, EventListener, SubscriptionOptions)}
+	 */
+	@Test
+	public void subscribe_shouldRedeliverTheUnacknowledgedMessagesWhenAClientAcknowledgedListenerFails() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(2);
+		final List<Boolean> redelivered = Collections.synchronizedList(new ArrayList<>());
+		EventListener listener = message -> {
+			try {
+				redelivered.add(message.getJMSRedelivered());
+			}
+			catch (JMSException e) {
+				Assertions.fail(e.getMessage());
+			}
+			latch.countDown();
+			if (redelivered.size() == 1) {
+				throw new IllegalStateException("first delivery fails");
+			}
+		};
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setAcknowledgeMode(SubscriptionOptions.AcknowledgeMode.CLIENT);
+		options.setAckBatchSize(1);
+		final String dest = "org.openmrs.test.clientAck";
+		Event.subscribe(dest, listener, options);
+		
+		Event.fireEvent(dest, new EventMessage());
+		
+		latch.await(10, TimeUnit.SECONDS);
+		Event.unsubscribe(dest, listener);
+		
+		Assertions.assertEquals(Arrays.asList(false, true), redelivered);
+	}
+	
+	/**
+	 * @see {@link Event#subscribe(String, EventListener, SubscriptionOptions)}
+	 */
+	@Test
+	public void subscribe_shouldRedeliverTheUncommittedMessagesWhenATransactedListenerFails() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(4);
+		final List<String> deliveries = Collections.synchronizedList(new ArrayList<>());
+		EventListener listener = message -> {
+			try {
+				deliveries.add(((MapMessage) message).getString("city") + ":" + message.getJMSRedelivered());
+			}
+			catch (JMSException e) {
+				Assertions.fail(e.getMessage());
+			}
+			latch.countDown();
+			if (deliveries.size() == 2) {
+				throw new IllegalStateException("second delivery fails");
+			}
+		};
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setAcknowledgeMode(SubscriptionOptions.AcknowledgeMode.TRANSACTED);
+		options.setAckBatchSize(10);
+		final String dest = "org.openmrs.test.transacted";
+		Event.subscribe(dest, listener, options);
+		
+		for (String city : Arrays.asList("arua", "lira")) {
+			EventMessage eventMessage = new EventMessage();
+			eventMessage.put("city", city);
+			Event.fireEvent(dest, eventMessage);
+		}
+		
+		latch.await(10, TimeUnit.SECONDS);
+		Event.unsubscribe(dest, listener);
+		
+		//The rollback redelivers the whole uncommitted batch
+		Assertions.assertEquals(Arrays.asList("arua:false", "lira:false", "arua:true", "lira:true"),
+		    deliveries.subList(0, Math.min(4, deliveries.size())));
+	}
+	
+	/**
+	 * @see {@link Event#subscribe(String, EventListener, SubscriptionOptions)}
+	 */
+	@Test
+	public void subscribe_shouldCreateTheConsumerWithTheConfiguredPrefetch() throws Exception {
+		EventMessageListener listener = new EventMessageListener(1);
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setPrefetch(10);
+		final String dest = "org.openmrs.test.prefetch";
+		Event.subscribe(dest, listener, options);
+		
+		EventMessage eventMessage = new EventMessage();
+		eventMessage.put("city", "gulu");
+		Event.fireEvent(dest, eventMessage);
+		listener.waitForEvents();
+		
+		String key = dest + EventEngine.DELIMITER + listener.getClass().getName();
+		ActiveMQMessageConsumer consumer = (ActiveMQMessageConsumer) EventEngineUtil.getEventEngine().subscribers.get(key);
+		int consumerPrefetch = consumer.getPrefetchNumber();
+		Map<String, Object> statistics = Event.getStatistics();
+		Event.unsubscribe(dest, listener);
+		
+		Assertions.assertEquals("gulu", listener.getCity());
+		Assertions.assertEquals(10, consumerPrefetch);
+		Assertions.assertEquals(10, statistics.get("subscription." + key + ".prefetch"));
+		Assertions.assertNotNull(statistics.get("subscription." + key + ".inFlight"));
+	}
+	
+	/**
+	 * @see {@link Event#subscribe(String, EventListener, SubscriptionOptions)}
+	 */
+	@Test
+	public void subscribe_shouldReceiveTheEventsSentWhileADurableListenerWasNotSubscribed() throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setDurable(true);
+		options.setListenerId("durableTestListener");
+		final String dest = "org.openmrs.test.durable";
+		EventMessageListener listener = new EventMessageListener(1);
+		try {
+			Event.subscribe(dest, listener, options);
+			Event.unsubscribe(dest, listener);
+			
+			EventMessage eventMessage = new EventMessage();
+			eventMessage.put("city", "jinja");
+			Event.fireEvent(dest, eventMessage);
+			
+			Event.subscribe(dest, listener, options);
+			listener.waitForEvents();
+			
+			Assertions.assertEquals("jinja", listener.getCity());
+		}
+		finally {
+			Event.removeDurableSubscription(dest, options.getListenerId());
+		}
+	}
+	
+	/**
+	 * @see {@link Event#subscribe(String, EventListener, SubscriptionOptions)}
+	 */
+	@Test
+	public void subscribe_shouldPaceTheEventsSentWhileADurableListenerWasNotSubscribedToTheCatchUpRate()
+	        throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setDurable(true);
+		options.setListenerId("catchUpTestListener");
+		options.setCatchUpRate(10);
+		final String dest = "org.openmrs.test.catchUp";
+		final List<Long> receivedAt = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch latch = new CountDownLatch(5);
+		EventListener listener = message -> {
+			receivedAt.add(System.nanoTime());
+			latch.countDown();
+		};
+		try {
+			Event.subscribe(dest, listener, options);
+			Event.unsubscribe(dest, listener);
+			for (int i = 0; i < 5; i++) {
+				Event.fireEvent(dest, new EventMessage());
+			}
+			
+			Event.subscribe(dest, listener, options);
+			Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+			Event.unsubscribe(dest, listener);
+		}
+		finally {
+			Event.removeDurableSubscription(dest, options.getListenerId());
+		}
+		
+		//The 5 events are 100ms apart at 10 events per second
+		Assertions.assertTrue(receivedAt.get(4) - receivedAt.get(0) >= TimeUnit.MILLISECONDS.toNanos(350));
+	}
+	
+	/**
+	 * @see {@link Event#getDeadLetterQueue(String)}
+	 */
+	@Test
+	public void unsubscribe_shouldSendThePendingRetriesToTheDeadLetterQueueOfTheListener() throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setListenerId("deadLetterTestListener");
+		options.setMaxRetries(3);
+		options.setRetryDelay(60000);
+		final String dest = "org.openmrs.test.deadLetter";
+		final CountDownLatch latch = new CountDownLatch(1);
+		EventListener listener = message -> {
+			latch.countDown();
+			throw new IllegalStateException("always fails");
+		};
+		Event.subscribe(dest, listener, options);
+		EventMessage eventMessage = new EventMessage();
+		eventMessage.put("city", "mbale");
+		Event.fireEvent(dest, eventMessage);
+		Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		
+		//The retry is not due for a minute
+		Event.unsubscribe(dest, listener);
+		
+		//The queue keeps the message although nothing consumes it yet
+		JmsTemplate template = new JmsTemplate(EventEngineUtil.getEventEngine().connectionFactory);
+		template.setReceiveTimeout(10000);
+		MapMessage deadLetter = (MapMessage) template.receive(Event.getDeadLetterQueue(options.getListenerId()));
+		Assertions.assertNotNull(deadLetter);
+		Assertions.assertEquals("mbale", deadLetter.getString("city"));
+		Assertions.assertEquals(dest, deadLetter.getStringProperty("originalTopic"));
+		Assertions.assertEquals(1, deadLetter.getIntProperty("attempts"));
+	}
+	
+	/**
+	 * @see {@link Event#subscribe(String, EventListener, SubscriptionOptions)}
+	 */
+	@Test
+	public void subscribe_shouldKeepThePendingRetriesOfAListenerSubscribedAgain() throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setListenerId("resubscribeTestListener");
+		options.setMaxRetries(3);
+		options.setRetryDelay(500);
+		options.setMaxRetryDelay(500);
+		final String dest = "org.openmrs.test.resubscribe";
+		final CountDownLatch failed = new CountDownLatch(1);
+		final CountDownLatch retried = new CountDownLatch(1);
+		EventListener listener = message -> {
+			if (failed.getCount() > 0) {
+				failed.countDown();
+				throw new IllegalStateException("fails once");
+			}
+			retried.countDown();
+		};
+		try {
+			Event.subscribe(dest, listener, options);
+			Event.fireEvent(dest, new EventMessage());
+			Assertions.assertTrue(failed.await(10, TimeUnit.SECONDS));
+			
+			//Replaces the subscription while the retry is pending
+			Event.subscribe(dest, listener, options);
+			
+			Assertions.assertTrue(retried.await(10, TimeUnit.SECONDS));
+			JmsTemplate template = new JmsTemplate(EventEngineUtil.getEventEngine().connectionFactory);
+			template.setReceiveTimeout(500);
+			Assertions.assertNull(template.receive(Event.getDeadLetterQueue(options.getListenerId())));
+		}
+		finally {
+			Event.unsubscribe(dest, listener);
+		}
+	}
+	
+	/**
+	 * @see EventConstants#GP_CONNECTION_SESSION_THREAD_POOL_SIZE
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void subscribe_shouldKeepTheSessionThreadCountWithinThePoolSizeAsSubscriptionsGrow() throws Exception {
+		AdministrationService as = Context.getAdministrationService();
+		as.saveGlobalProperty(new GlobalProperty(EventConstants.GP_CONNECTION_SESSION_THREAD_POOL_SIZE, "4"));
+		Event.shutdown();
+		int before = EventEngine.getSessionThreadCount();
+		MockEventListener listener = new MockEventListener(200);
+		List<String> topics = new ArrayList<>();
+		int peak = 0;
+		try {
+			//The count is sampled while the sessions of each batch of subscriptions are dispatching
+			for (int i = 0; i < 200; i++) {
+				topics.add("org.openmrs.test.soak" + i);
+				Event.subscribe(topics.get(i), listener);
+				if ((i + 1) % 50 == 0) {
+					for (String topic : topics.subList(i - 49, i + 1)) {
+						Event.fireEvent(topic, new EventMessage());
+					}
+					peak = Math.max(peak, EventEngine.getSessionThreadCount() - before);
+				}
+			}
+			
+			listener.waitForEvents(10, TimeUnit.SECONDS);
+			peak = Math.max(peak, EventEngine.getSessionThreadCount() - before);
+			
+			Assertions.assertEquals(200, listener.getDeletedCount());
+			Assertions.assertTrue(peak <= 4, "The peak session thread count was " + peak);
+		}
+		finally {
+			Event.unsubscribeAll(listener);
+			as.purgeGlobalProperty(as.getGlobalPropertyObject(EventConstants.GP_CONNECTION_SESSION_THREAD_POOL_SIZE));
+			Event.shutdown();
+		}
+	}
+	
 	/**
 	 * @see {@link Event#fireEvent(String, EventMessage)}
 	 */
@@ -462,4 +772,120 @@ public class EventTest extends BaseEventTest {
 		Assertions.assertEquals(city, listener.getCity());
 		Assertions.assertEquals(state, listener.getState());
 	}
+	
+	/**
+	 * @see {@link Event#fireEventAsync(String, EventMessage)}
+	 */
+	@Test
+	public void fireEventAsync_shouldCompleteTheFutureOnceTheEventIsSent() throws Exception {
+		EventMessageListener listener = new EventMessageListener(1);
+		final String dest = "org.openmrs.test.async";
+		Event.subscribe(dest, listener);
+		
+		EventMessage eventMessage = new EventMessage();
+		eventMessage.put("city", "kampala");
+		
+		Event.fireEventAsync(dest, eventMessage).get(10, TimeUnit.SECONDS);
+		
+		listener.waitForEvents();
+		
+		Assertions.assertEquals("kampala", listener.getCity());
+	}
+	
+	/**
+	 * @see {@link Event#fireEventAsync(String, EventMessage)}
+	 */
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void fireEventAsync_shouldFailTheFutureRightAwayWhenTooManyCallsAreWaiting() throws Exception {
+		AdministrationService as = Context.getAdministrationService();
+		as.saveGlobalProperty(new GlobalProperty(EventConstants.GP_PUBLISH_QUEUE_CAPACITY, "1"));
+		Event.shutdown();
+		try {
+			final String dest = "org.openmrs.test.asyncFull";
+			//The first call starts the engine on the sender thread, the second one waits for it
+			CompletableFuture<Void> first = Event.fireEventAsync(dest, new EventMessage());
+			CompletableFuture<Void> second = Event.fireEventAsync(dest, new EventMessage());
+			CompletableFuture<Void> third = Event.fireEventAsync(dest, new EventMessage());
+			
+			Assertions.assertFalse(first.isDone());
+			Assertions.assertTrue(third.isCompletedExceptionally());
+			first.get(10, TimeUnit.SECONDS);
+			second.get(10, TimeUnit.SECONDS);
+		}
+		finally {
+			as.purgeGlobalProperty(as.getGlobalPropertyObject(EventConstants.GP_PUBLISH_QUEUE_CAPACITY));
+			Event.shutdown();
+		}
+	}
+	
+	/**
+	 * @see {@link Event#fireEvents(String, Collection)}
+	 */
+	@Test
+	public void fireEvents_shouldSendAllTheEventsInOrder() throws Exception {
+		EventMessageListener listener = new EventMessageListener(2);
+		final String dest = "org.openmrs.test.bulk";
+		Event.subscribe(dest, listener);
+		
+		EventMessage first = new EventMessage();
+		first.put("city", "kampala");
+		EventMessage second = new EventMessage();
+		second.put("city", "eldoret");
+		
+		Event.fireEvents(dest, Arrays.asList(first, second)).get(10, TimeUnit.SECONDS);
+		
+		listener.waitForEvents();
+		
+		Assertions.assertEquals("eldoret", listener.getCity());
+	}
+	
+	/**
+	 * @see {@link Event#subscribe(String, EventListener)}
+	 */
+	@Test
+	public void subscribe_shouldDeliverTheMessagesToABatchEventListenerInBatches() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+		BatchEventListener listener = new BatchEventListener() {
+			
+			@Override
+			public void onMessages(List<Message> messages) {
+				List<String> cities = new ArrayList<>();
+				try {
+					for (Message message : messages) {
+						cities.add(((MapMessage) message).getString("city"));
+					}
+				}
+				catch (JMSException e) {
+					Assertions.fail(e.getMessage());
+				}
+				batches.add(cities);
+				latch.countDown();
+			}
+			
+			@Override
+			public int getMaxBatchSize() {
+				return 3;
+			}
+			
+			@Override
+			public long getMaxBatchWait() {
+				return 5000;
+			}
+		};
+		final String dest = "org.openmrs.test.batch";
+		Event.subscribe(dest, listener);
+		
+		for (String city : Arrays.asList("kampala", "eldoret", "mbarara")) {
+			EventMessage eventMessage = new EventMessage();
+			eventMessage.put("city", city);
+			Event.fireEvent(dest, eventMessage);
+		}
+		
+		latch.await(10, TimeUnit.SECONDS);
+		Event.unsubscribe(dest, listener);
+		
+		Assertions.assertEquals(Collections.singletonList(Arrays.asList("kampala", "eldoret", "mbarara")), batches);
+	}
 }
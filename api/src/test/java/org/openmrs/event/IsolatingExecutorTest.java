@@ -0,0 +1,103 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.event.EventTestUtil.waitFor;
+
+public class IsolatingExecutorTest extends OrderedExecutorTest<IsolatingExecutor> {
+	
+	@Override
+	protected IsolatingExecutor newExecutor() {
+		return new IsolatingExecutor("test", 1000, 0, 1, 1000, false);
+	}
+	
+	@Test
+	public void execute_shouldShedTheMessagesWhenTheQueueIsFullWithoutBlocking() throws Exception {
+		executor = new IsolatingExecutor("test", 2, 0, 1, 1000, false);
+		executor.start();
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		executor.execute(null, () -> {
+			started.countDown();
+			await(release);
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		
+		for (int i = 0; i < 5; i++) {
+			executor.execute(null, () -> {});
+		}
+		
+		assertEquals(2, executor.getDepth());
+		assertEquals(3, executor.getShedCount());
+		assertEquals(1.0, executor.getStatistics().get("saturation"));
+		release.countDown();
+	}
+	
+	@Test
+	public void execute_shouldOpenTheCircuitBreakerWhenTooManyDeliveriesFailAndShedWhileOpen() throws Exception {
+		executor = new IsolatingExecutor("test", 100, 0, 0.5, 60000, false);
+		executor.start();
+		for (int i = 0; i < IsolatingExecutor.WINDOW; i++) {
+			int value = i;
+			executor.execute(null, () -> {
+				if (value % 2 == 0) {
+					throw new IllegalStateException("failure " + value);
+				}
+			});
+		}
+		waitFor(() -> executor.getCircuitBreakerState() == CircuitBreaker.State.OPEN);
+		
+		List<Integer> handled = new CopyOnWriteArrayList<>();
+		executor.execute(null, () -> handled.add(1));
+		
+		waitFor(() -> executor.getShedCount() == 1);
+		assertTrue(handled.isEmpty());
+		assertEquals(1L, executor.getStatistics().get("circuitBreakerOpened"));
+	}
+	
+	@Test
+	public void execute_shouldParkTheMessagesWhileTheCircuitBreakerIsOpen() throws Exception {
+		executor = new IsolatingExecutor("test", 100, 0, 0.5, 300, true);
+		executor.start();
+		for (int i = 0; i < IsolatingExecutor.WINDOW; i++) {
+			executor.execute(null, () -> {
+				throw new IllegalStateException("failure");
+			});
+		}
+		waitFor(() -> executor.getCircuitBreakerState() == CircuitBreaker.State.OPEN);
+		
+		List<Integer> handled = new CopyOnWriteArrayList<>();
+		executor.execute(null, () -> handled.add(1));
+		executor.execute(null, () -> handled.add(2));
+		
+		waitFor(() -> handled.size() == 2);
+		assertEquals(0, executor.getShedCount());
+		assertEquals(CircuitBreaker.State.CLOSED, executor.getCircuitBreakerState());
+	}
+	
+	private void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+}
@@ -0,0 +1,79 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.event.EventTestUtil.waitFor;
+
+public class KeyedExecutorTest extends OrderedExecutorTest<KeyedExecutor> {
+	
+	@Override
+	protected KeyedExecutor newExecutor() {
+		return new KeyedExecutor("test", 4, 100);
+	}
+	
+	@Test
+	public void execute_shouldRunTheTasksWithDifferentKeysInParallel() throws Exception {
+		executor = new KeyedExecutor("test", 2, 10);
+		executor.start();
+		CountDownLatch bothRunning = new CountDownLatch(2);
+		CountDownLatch done = new CountDownLatch(2);
+		//Keys that hash to different workers
+		for (Object key : new Object[] { 0, 1 }) {
+			executor.execute(key, () -> {
+				bothRunning.countDown();
+				try {
+					if (bothRunning.await(5, TimeUnit.SECONDS)) {
+						done.countDown();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		//A task is counted once it has returned
+		waitFor(() -> executor.getExecutedCount() == 2);
+		assertEquals(1.0, executor.getSkew(), 0.001);
+	}
+	
+	@Test
+	public void getSkew_shouldReportTheImbalanceOfTheKeys() {
+		executor = new KeyedExecutor("test", 2, 100);
+		executor.start();
+		for (int i = 0; i < 30; i++) {
+			executor.execute(i < 20 ? 0 : 1, () -> {});
+		}
+		
+		assertTrue(executor.stop(5000));
+		assertEquals(20.0 * 2 / 30, executor.getSkew(), 0.001);
+		assertEquals(30L, executor.getStatistics().get("executed"));
+	}
+	
+	@Test
+	public void execute_shouldRejectTasksOnceStopped() {
+		executor = new KeyedExecutor("test", 2, 10);
+		executor.start();
+		executor.stop(1000);
+		
+		assertThrows(RejectedExecutionException.class, () -> executor.execute("a", () -> {}));
+	}
+	
+}
@@ -19,4 +19,6 @@ public interface MockNestedService extends OpenmrsService {
 	
 	void innerTransaction(boolean rollback);
 	
+	void outerTransactionUpdatingPatient(boolean outerRollback, boolean innerRollback);
+	
 }
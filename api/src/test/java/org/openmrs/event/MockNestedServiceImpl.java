@@ -34,6 +34,24 @@ public class MockNestedServiceImpl extends BaseOpenmrsService implements MockNes
 		}
 	}
 	
+	@Override
+	@Transactional
+	public void outerTransactionUpdatingPatient(boolean outerRollback, boolean innerRollback) {
+		// the inner transaction completes first so that it doesn't wait on a lock held by this one
+		try {
+			Context.getService(MockNestedService.class).innerTransaction(innerRollback);
+		}
+		catch (Exception e) {}
+		
+		Patient patient = Context.getPatientService().getPatient(2);
+		patient.setGender(patient.getGender().equals("M") ? "F" : "M");
+		Context.getPatientService().savePatient(patient);
+		
+		if (outerRollback) {
+			throw new APIException();
+		}
+	}
+	
 	@Override
 	@Transactional(propagation = Propagation.REQUIRES_NEW)
 	public void innerTransaction(boolean rollback) {
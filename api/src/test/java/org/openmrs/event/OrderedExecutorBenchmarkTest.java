@@ -0,0 +1,61 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the time the {@link OrderedExecutor} implementations take to run 5000 tasks with distinct
+ * keys that each wait 5ms, like listeners calling a slow service. Run it manually, the timings
+ * depend on the machine.
+ */
+@Disabled("Benchmark, run manually")
+public class OrderedExecutorBenchmarkTest {
+	
+	private static final Logger log = LoggerFactory.getLogger(OrderedExecutorBenchmarkTest.class);
+	
+	private static final int TASKS = 5000;
+	
+	@Test
+	public void execute_shouldRunTheBlockingTasksWithEachExecutor() {
+		run("KeyedExecutor with 4 threads", () -> new KeyedExecutor("benchmark", 4, TASKS));
+		run("ScalingExecutor with 1 to 64 threads", () -> new ScalingExecutor("benchmark", 1, 64, 60000, TASKS));
+		run("VirtualThreadExecutor", () -> new VirtualThreadExecutor("benchmark", TASKS, 64));
+		run("VirtualThreadExecutor with 64 platform threads",
+		    () -> new VirtualThreadExecutor("benchmark", TASKS, 64, null));
+	}
+	
+	private void run(String description, Supplier<OrderedExecutor> executorSupplier) {
+		OrderedExecutor executor = executorSupplier.get();
+		executor.start();
+		long start = System.nanoTime();
+		for (int i = 0; i < TASKS; i++) {
+			executor.execute(i, () -> {
+				try {
+					TimeUnit.MILLISECONDS.sleep(5);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		
+		assertTrue(executor.stop(120000));
+		log.info("{}: {}ms", description, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+}
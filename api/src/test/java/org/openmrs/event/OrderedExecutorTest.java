@@ -0,0 +1,67 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The contract of the {@link OrderedExecutor} implementations, run by the test of each of them
+ * 
+ * @param <E> the type of the executor
+ */
+public abstract class OrderedExecutorTest<E extends OrderedExecutor> {
+	
+	protected E executor;
+	
+	/**
+	 * @return a new executor that can queue at least 1000 tasks
+	 */
+	protected abstract E newExecutor();
+	
+	@AfterEach
+	public void stopExecutor() {
+		if (executor != null) {
+			executor.stop(1000);
+		}
+	}
+	
+	@Test
+	public void execute_shouldRunTheTasksWithTheSameKeyInOrder() {
+		executor = newExecutor();
+		executor.start();
+		Map<String, List<Integer>> results = new ConcurrentHashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			String key = "uuid" + (i % 10);
+			int value = i;
+			executor.execute(key, () -> results.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()))
+			        .add(value));
+		}
+		
+		assertTrue(executor.stop(5000));
+		assertEquals(1000L, ((Number) executor.getStatistics().get("executed")).longValue());
+		for (int k = 0; k < 10; k++) {
+			List<Integer> values = results.get("uuid" + k);
+			assertEquals(100, values.size());
+			for (int i = 0; i < values.size(); i++) {
+				assertEquals(k + i * 10, values.get(i).intValue());
+			}
+		}
+	}
+}
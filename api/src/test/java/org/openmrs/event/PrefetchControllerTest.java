@@ -0,0 +1,88 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQSession;
+import org.apache.activemq.ActiveMQTopicSubscriber;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.ConsumerControl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PrefetchControllerTest {
+	
+	private final ActiveMQSession session = mock(ActiveMQSession.class);
+	
+	private final ActiveMQConnection connection = mock(ActiveMQConnection.class);
+	
+	private final ActiveMQTopicSubscriber subscriber = mock(ActiveMQTopicSubscriber.class);
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		when(session.getConnection()).thenReturn(connection);
+		when(subscriber.getTopic()).thenReturn(new ActiveMQTopic("org.openmrs.test"));
+	}
+	
+	@Test
+	public void record_shouldLowerThePrefetchToTheMessagesHandledWithinTheTargetTime() throws Exception {
+		PrefetchController prefetchController = newPrefetchController(new SubscriptionOptions());
+		
+		prefetchController.record(TimeUnit.MILLISECONDS.toNanos(10));
+		
+		assertEquals(100, getSentPrefetch());
+		assertEquals(100, prefetchController.getPrefetch());
+	}
+	
+	@Test
+	public void record_shouldScaleThePrefetchWithTheThreadsOfTheListener() throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setConcurrency(4);
+		PrefetchController prefetchController = newPrefetchController(options);
+		
+		prefetchController.record(TimeUnit.MILLISECONDS.toNanos(10));
+		
+		assertEquals(400, getSentPrefetch());
+	}
+	
+	@Test
+	public void record_shouldNotChangeThePrefetchWhenNotAdaptive() throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setPrefetch(10);
+		PrefetchController prefetchController = new PrefetchController(session, subscriber, options, 0);
+		
+		prefetchController.record(TimeUnit.MILLISECONDS.toNanos(500));
+		
+		verify(connection, never()).asyncSendPacket(any());
+		assertEquals(10, prefetchController.getPrefetch());
+	}
+	
+	private PrefetchController newPrefetchController(SubscriptionOptions options) {
+		options.setAdaptivePrefetch(true);
+		options.setMaxPrefetch(1000);
+		return new PrefetchController(session, subscriber, options, 0);
+	}
+	
+	private int getSentPrefetch() throws Exception {
+		ArgumentCaptor<ConsumerControl> control = ArgumentCaptor.forClass(ConsumerControl.class);
+		verify(connection).asyncSendPacket(control.capture());
+		return control.getValue().getPrefetch();
+	}
+}
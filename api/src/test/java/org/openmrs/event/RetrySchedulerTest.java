@@ -0,0 +1,221 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.event.EventTestUtil.waitFor;
+
+public class RetrySchedulerTest {
+	
+	private final List<String> deadLetters = new CopyOnWriteArrayList<>();
+	
+	private final RetryScheduler scheduler = new RetryScheduler(
+	        (listenerId, message, attempts, error) -> deadLetters.add(listenerId + ":" + attempts));
+	
+	@AfterEach
+	public void stopScheduler() {
+		scheduler.stop(1000);
+	}
+	
+	@Test
+	public void deliver_shouldRetryAFailedDeliveryUntilItSucceeds() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		EventListener listener = message -> {
+			if (attempts.incrementAndGet() < 3) {
+				throw new IllegalStateException("failure " + attempts.get());
+			}
+		};
+		
+		scheduler.deliver(listener, "test", null, options(5));
+		
+		waitFor(() -> scheduler.getSucceededCount() == 1);
+		assertEquals(3, attempts.get());
+		assertEquals(2, scheduler.getScheduledCount());
+		assertTrue(deadLetters.isEmpty());
+	}
+	
+	@Test
+	public void deliver_shouldSendTheMessageToTheDeadLetterQueueAfterTheMaxRetries() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		EventListener listener = message -> {
+			attempts.incrementAndGet();
+			throw new IllegalStateException("always fails");
+		};
+		
+		scheduler.deliver(listener, "test", null, options(2));
+		
+		waitFor(() -> deadLetters.size() == 1);
+		assertEquals("test:3", deadLetters.get(0));
+		assertEquals(3, attempts.get());
+		assertEquals(1L, scheduler.getStatistics().get("deadLettered.test"));
+	}
+	
+	@Test
+	public void deliver_shouldNotRetryAtTheSameTimeAsTheOtherDeliveriesToAListenerWithoutAnExecutor()
+	        throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		AtomicInteger active = new AtomicInteger();
+		AtomicInteger maxActive = new AtomicInteger();
+		EventListener listener = message -> {
+			maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+			try {
+				if (calls.incrementAndGet() == 1) {
+					throw new IllegalStateException("fails once");
+				}
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				active.decrementAndGet();
+			}
+		};
+		
+		scheduler.deliver(listener, "test", null, options(5));
+		//The retry is due while the session delivers the next messages
+		for (int i = 0; i < 3; i++) {
+			scheduler.deliver(listener, "test", null, options(5));
+		}
+		
+		waitFor(() -> scheduler.getSucceededCount() == 1);
+		assertEquals(5, calls.get());
+		assertEquals(1, maxActive.get());
+	}
+	
+	@Test
+	public void deliver_shouldSendTheFailedMessagesToTheDeadLetterQueueWhileTheMaxRetriesArePending() {
+		RetryScheduler bounded = new RetryScheduler(
+		        (listenerId, message, attempts, error) -> deadLetters.add(listenerId + ":" + attempts), 2);
+		EventListener listener = message -> {
+			throw new IllegalStateException("always fails");
+		};
+		SubscriptionOptions options = options(5);
+		options.setRetryDelay(60000);
+		options.setMaxRetryDelay(60000);
+		try {
+			for (int i = 0; i < 3; i++) {
+				bounded.deliver(listener, "test", null, options);
+			}
+			
+			assertEquals(2, bounded.getPendingCount());
+			assertEquals(1L, bounded.getOverflowedCount());
+			assertEquals(1, deadLetters.size());
+			assertEquals("test:1", deadLetters.get(0));
+		}
+		finally {
+			bounded.stop(1000);
+		}
+	}
+	
+	@Test
+	public void deliver_shouldRetryOnTheExecutorOfTheSubscriptionWhenGiven() throws Exception {
+		List<String> threads = new CopyOnWriteArrayList<>();
+		EventListener listener = message -> {
+			threads.add(Thread.currentThread().getName());
+			if (threads.size() < 2) {
+				throw new IllegalStateException("failure");
+			}
+		};
+		KeyedExecutor executor = new KeyedExecutor("listener", 2, 10);
+		executor.start();
+		try {
+			scheduler.deliver(listener, "test", null, options(5), executor, "key");
+			
+			waitFor(() -> scheduler.getSucceededCount() == 1);
+		}
+		finally {
+			executor.stop(1000);
+		}
+		assertEquals(2, threads.size());
+		assertTrue(threads.get(1).startsWith("listener-"));
+	}
+	
+	@Test
+	public void deliver_shouldOpenTheCircuitBreakerOfAnIsolatedSubscriptionAndHoldTheRetriesWhileOpen() throws Exception {
+		EventListener listener = message -> {
+			throw new IllegalStateException("always fails");
+		};
+		SubscriptionOptions options = options(3);
+		options.setIsolated(true);
+		//Due after the breaker has opened
+		options.setRetryDelay(200);
+		options.setMaxRetryDelay(200);
+		IsolatingExecutor executor = new IsolatingExecutor("test", 100, 0, 0.5, 60000, false);
+		executor.start();
+		try {
+			for (int i = 0; i < IsolatingExecutor.WINDOW; i++) {
+				executor.execute(null, () -> scheduler.deliver(listener, "test", null, options, executor, null));
+			}
+			
+			//The failures reach the breaker although the retries are scheduled
+			waitFor(() -> executor.getCircuitBreakerState() == CircuitBreaker.State.OPEN);
+			waitFor(() -> scheduler.getPendingCount() == IsolatingExecutor.WINDOW);
+			Thread.sleep(200);
+			
+			//The retries are neither attempted nor shed while the breaker is open
+			assertEquals((long) IsolatingExecutor.WINDOW, executor.getStatistics().get("failed"));
+			assertTrue(deadLetters.isEmpty());
+		}
+		finally {
+			executor.stop(1000);
+		}
+	}
+	
+	@Test
+	public void cancel_shouldSendThePendingRetriesOfTheListenerToTheDeadLetterQueue() throws Exception {
+		EventListener listener = message -> {
+			throw new IllegalStateException("always fails");
+		};
+		SubscriptionOptions options = options(5);
+		options.setRetryDelay(60000);
+		options.setMaxRetryDelay(60000);
+		scheduler.deliver(listener, "test", null, options);
+		scheduler.deliver(message -> {
+			throw new IllegalStateException("always fails");
+		}, "other", null, options);
+		assertEquals(2, scheduler.getPendingCount());
+		
+		scheduler.cancel(listener.getClass().getName());
+		
+		assertEquals(1, scheduler.getPendingCount());
+		assertEquals(1, deadLetters.size());
+		assertEquals("test:1", deadLetters.get(0));
+	}
+	
+	@Test
+	public void getDelay_shouldDoubleTheDelayWithJitterUpToTheMaxDelay() {
+		for (int i = 0; i < 100; i++) {
+			long first = RetryScheduler.getDelay(1, 100, 1000);
+			long third = RetryScheduler.getDelay(3, 100, 1000);
+			long capped = RetryScheduler.getDelay(10, 100, 1000);
+			assertTrue(first >= 50 && first <= 100);
+			assertTrue(third >= 200 && third <= 400);
+			assertTrue(capped >= 500 && capped <= 1000);
+		}
+	}
+	
+	private SubscriptionOptions options(int maxRetries) {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setMaxRetries(maxRetries);
+		options.setRetryDelay(10);
+		options.setMaxRetryDelay(50);
+		return options;
+	}
+	
+}
@@ -0,0 +1,50 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.openmrs.event.EventTestUtil.waitFor;
+
+public class ScalingExecutorTest extends OrderedExecutorTest<ScalingExecutor> {
+	
+	@Override
+	protected ScalingExecutor newExecutor() {
+		return new ScalingExecutor("test", 1, 8, 60000, 1000);
+	}
+	
+	@Test
+	public void execute_shouldAddThreadsWhileTasksAreWaitingAndRemoveThemWhenIdle() throws Exception {
+		executor = new ScalingExecutor("test", 1, 4, 200, 100);
+		executor.start();
+		CountDownLatch release = new CountDownLatch(1);
+		for (int i = 0; i < 4; i++) {
+			executor.execute(i, () -> {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		
+		waitFor(() -> executor.getThreadCount() == 4);
+		release.countDown();
+		waitFor(() -> executor.getThreadCount() == 1);
+		assertEquals(4, executor.getPeakThreadCount());
+		assertEquals(3L, executor.getStatistics().get("scaledDown"));
+	}
+	
+}
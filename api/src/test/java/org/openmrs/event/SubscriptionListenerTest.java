@@ -0,0 +1,251 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.openmrs.event.SubscriptionOptions.AcknowledgeMode;
+
+import javax.jms.Message;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SubscriptionListenerTest {
+	
+	private final Session session = mock(Session.class);
+	
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	
+	private final ActiveMQMessageConsumer consumer = mock(ActiveMQMessageConsumer.class);
+	
+	@AfterEach
+	public void stopTimer() {
+		timer.shutdownNow();
+	}
+	
+	@Test
+	public void onMessage_shouldAcknowledgeTheMessagesInBatches() throws Exception {
+		SubscriptionListener subscriptionListener = newSubscriptionListener(message -> {}, AcknowledgeMode.CLIENT, 3, 0);
+		List<Message> messages = newMessages(5);
+		
+		for (Message message : messages) {
+			subscriptionListener.onMessage(message);
+		}
+		
+		//Acknowledging a message acknowledges all the messages received before it
+		verify(messages.get(2)).acknowledge();
+		verify(messages.get(4), never()).acknowledge();
+		verify(session, never()).recover();
+	}
+	
+	@Test
+	public void onMessage_shouldAcknowledgeThePartialBatchOnceTheAckIntervalHasElapsed() throws Exception {
+		SubscriptionListener subscriptionListener = newSubscriptionListener(message -> {}, AcknowledgeMode.CLIENT, 10,
+		    200);
+		List<Message> messages = newMessages(2);
+		
+		for (Message message : messages) {
+			subscriptionListener.onMessage(message);
+		}
+		
+		//No other message arrives to acknowledge them
+		verify(messages.get(1), timeout(5000)).acknowledge();
+		verify(messages.get(0), never()).acknowledge();
+		//The consumer is stopped so that no message is being dispatched meanwhile
+		verify(consumer, timeout(5000)).start();
+		InOrder inOrder = inOrder(consumer, messages.get(1));
+		inOrder.verify(consumer).stop();
+		inOrder.verify(messages.get(1)).acknowledge();
+		inOrder.verify(consumer).start();
+	}
+	
+	@Test
+	public void onMessage_shouldAcknowledgeThePartialBatchOnTheSessionThreadWhenTheNextMessageArrivesAfterTheAckInterval()
+	        throws Exception {
+		SubscriptionListener subscriptionListener = new SubscriptionListener(message -> {}, session,
+		        newOptions(AcknowledgeMode.CLIENT, 10, 100), null, null, null, false, null, null);
+		List<Message> messages = newMessages(2);
+		
+		subscriptionListener.onMessage(messages.get(0));
+		Thread.sleep(150);
+		subscriptionListener.onMessage(messages.get(1));
+		
+		verify(messages.get(1)).acknowledge();
+	}
+	
+	@Test
+	public void flush_shouldNotResumeTheConsumerPausedWhileCatchingUp() throws Exception {
+		SubscriptionOptions options = newOptions(AcknowledgeMode.CLIENT, 10, 50);
+		//The next message is due in a second
+		options.setCatchUpRate(1);
+		SubscriptionListener subscriptionListener = new SubscriptionListener(message -> {}, session, options, null, null,
+		        null, false, consumer, timer);
+		Message message = newMessages(1).get(0);
+		when(message.getJMSTimestamp()).thenReturn(System.currentTimeMillis() - 60000);
+		
+		subscriptionListener.onMessage(message);
+		
+		verify(message, timeout(900)).acknowledge();
+		verify(consumer, times(2)).stop();
+		verify(consumer, never()).start();
+		subscriptionListener.close();
+	}
+	
+	@Test
+	public void onMessage_shouldCommitTheBatchesAndRollBackWhenTheListenerFailsInTransactedMode() throws Exception {
+		List<Message> messages = newMessages(4);
+		SubscriptionListener subscriptionListener = newSubscriptionListener(message -> {
+			if (message == messages.get(2)) {
+				throw new IllegalStateException("failure");
+			}
+		}, AcknowledgeMode.TRANSACTED, 2, 0);
+		
+		subscriptionListener.onMessage(messages.get(0));
+		subscriptionListener.onMessage(messages.get(1));
+		verify(session).commit();
+		subscriptionListener.onMessage(messages.get(2));
+		verify(session).rollback();
+		//The batch starts again after the rollback
+		subscriptionListener.onMessage(messages.get(3));
+		verify(session).commit();
+		subscriptionListener.onMessage(messages.get(0));
+		verify(session, times(2)).commit();
+	}
+	
+	@Test
+	public void onMessage_shouldLetTheFailuresThroughWithoutAcknowledgingInDupsOkMode() throws Exception {
+		SubscriptionListener subscriptionListener = newSubscriptionListener(message -> {
+			throw new IllegalStateException("failure");
+		}, AcknowledgeMode.DUPS_OK, 1, 0);
+		Message message = newMessages(1).get(0);
+		
+		//The session acknowledges the messages lazily and redelivers the message that failed
+		assertThrows(IllegalStateException.class, () -> subscriptionListener.onMessage(message));
+		verify(message, never()).acknowledge();
+		verify(session, never()).recover();
+		verify(session, never()).commit();
+	}
+	
+	@Test
+	public void close_shouldCommitTheHandledMessages() throws Exception {
+		SubscriptionListener subscriptionListener = newSubscriptionListener(message -> {}, AcknowledgeMode.TRANSACTED, 10,
+		    0);
+		subscriptionListener.onMessage(newMessages(1).get(0));
+		verify(session, never()).commit();
+		
+		subscriptionListener.close();
+		
+		verify(session).commit();
+	}
+	
+	@Test
+	public void onMessage_shouldRecordTheTimeTheListenerTakesOnTheThreadsOfTheListener() throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setConcurrency(2);
+		PrefetchController prefetchController = mock(PrefetchController.class);
+		KeyedExecutor executor = new KeyedExecutor("test", 2, 10);
+		executor.start();
+		try {
+			SubscriptionListener subscriptionListener = new SubscriptionListener(message -> {
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, session, options, executor, prefetchController, null, false, null, timer);
+			
+			subscriptionListener.onMessage(newMessages(1).get(0));
+			
+			//Not only the time it takes to hand the message to the executor
+			verify(prefetchController, timeout(5000))
+			        .record(longThat(nanos -> nanos >= TimeUnit.MILLISECONDS.toNanos(100)));
+		}
+		finally {
+			executor.stop(5000);
+		}
+	}
+	
+	@Test
+	public void onMessage_shouldPauseTheConsumerRatherThanTheSessionThreadWhileCatchingUp() throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setCatchUpRate(5);
+		ActiveMQMessageConsumer consumer = mock(ActiveMQMessageConsumer.class);
+		SubscriptionListener subscriptionListener = new SubscriptionListener(message -> {}, session, options, null, null,
+		    null, false, consumer, timer);
+		Message message = newMessages(1).get(0);
+		when(message.getJMSTimestamp()).thenReturn(System.currentTimeMillis() - 60000);
+		
+		long start = System.nanoTime();
+		subscriptionListener.onMessage(message);
+		long elapsed = System.nanoTime() - start;
+		
+		verify(consumer).stop();
+		verify(consumer, never()).start();
+		assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(100));
+		//Resumed once the next message is due at 5 messages per second
+		verify(consumer, timeout(5000)).start();
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+	}
+	
+	@Test
+	public void onMessage_shouldNotPauseTheConsumerForTheMessagesSentAfterTheSubscription() throws Exception {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setCatchUpRate(5);
+		ActiveMQMessageConsumer consumer = mock(ActiveMQMessageConsumer.class);
+		SubscriptionListener subscriptionListener = new SubscriptionListener(message -> {}, session, options, null, null,
+		    null, false, consumer, timer);
+		Message message = newMessages(1).get(0);
+		when(message.getJMSTimestamp()).thenReturn(System.currentTimeMillis() + 1000);
+		
+		subscriptionListener.onMessage(message);
+		
+		verify(consumer, never()).stop();
+	}
+	
+	private SubscriptionListener newSubscriptionListener(EventListener listener, AcknowledgeMode acknowledgeMode,
+	        int ackBatchSize, long ackInterval) {
+		return new SubscriptionListener(listener, session, newOptions(acknowledgeMode, ackBatchSize, ackInterval), null,
+		        null, null, false, consumer, timer);
+	}
+	
+	private SubscriptionOptions newOptions(AcknowledgeMode acknowledgeMode, int ackBatchSize, long ackInterval) {
+		SubscriptionOptions options = new SubscriptionOptions();
+		options.setAcknowledgeMode(acknowledgeMode);
+		options.setAckBatchSize(ackBatchSize);
+		options.setAckInterval(ackInterval);
+		return options;
+	}
+	
+	private List<Message> newMessages(int count) {
+		List<Message> messages = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			messages.add(mock(Message.class));
+		}
+		return messages;
+	}
+}
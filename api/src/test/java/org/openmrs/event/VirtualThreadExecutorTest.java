@@ -0,0 +1,109 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.event;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.event.EventTestUtil.waitFor;
+
+public class VirtualThreadExecutorTest extends OrderedExecutorTest<VirtualThreadExecutor> {
+	
+	@Override
+	protected VirtualThreadExecutor newExecutor() {
+		return new VirtualThreadExecutor("test", 100, 4);
+	}
+	
+	@Test
+	public void execute_shouldBoundTheNumberOfTasksInFlight() throws Exception {
+		executor = new VirtualThreadExecutor("test", 2, 2);
+		executor.start();
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger started = new AtomicInteger();
+		Runnable task = () -> {
+			started.incrementAndGet();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		executor.execute("a", task);
+		executor.execute("b", task);
+		Thread submitter = new Thread(() -> executor.execute("c", task));
+		submitter.start();
+		
+		submitter.join(200);
+		assertTrue(submitter.isAlive());
+		assertEquals(2, executor.getDepth());
+		release.countDown();
+		submitter.join(5000);
+		assertFalse(submitter.isAlive());
+		assertTrue(executor.stop(5000));
+		assertEquals(3, started.get());
+	}
+	
+	@Test
+	public void execute_shouldRunTheKeysOnAPoolOfPlatformThreadsWhenVirtualThreadsAreNotSupported() throws Exception {
+		executor = new VirtualThreadExecutor("test", 100, 2, null);
+		executor.start();
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+		for (int i = 0; i < 10; i++) {
+			executor.execute("uuid" + i, () -> {
+				threads.add(Thread.currentThread().getName());
+				peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+			});
+		}
+		
+		waitFor(() -> running.get() == 2);
+		//The other keys wait for a thread of the pool
+		Thread.sleep(100);
+		assertEquals(2, running.get());
+		release.countDown();
+		assertTrue(executor.stop(5000));
+		assertFalse(executor.isVirtual());
+		assertEquals(2, peak.get());
+		assertEquals(2, threads.size());
+		assertEquals(10, executor.getExecutedCount());
+	}
+	
+	/**
+	 * The contract with the platform thread pool used when virtual threads are not supported
+	 */
+	@Nested
+	public class PlatformThreads extends OrderedExecutorTest<VirtualThreadExecutor> {
+		
+		@Override
+		protected VirtualThreadExecutor newExecutor() {
+			return new VirtualThreadExecutor("test", 100, 4, null);
+		}
+	}
+	
+}
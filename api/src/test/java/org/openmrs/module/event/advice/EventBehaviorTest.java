@@ -14,6 +14,7 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatcher;
 import org.mockito.internal.verification.Times;
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
@@ -33,8 +34,10 @@ import org.openmrs.event.BaseEventTest;
 import org.openmrs.event.Event;
 import org.openmrs.event.EventEngine;
 import org.openmrs.event.EventEngineUtil;
+import org.openmrs.event.EventMessage;
 import org.openmrs.event.MockEventListener;
 import org.openmrs.event.MockNestedService;
+import org.openmrs.event.api.db.hibernate.HibernateEventInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -43,6 +46,8 @@ import java.util.Arrays;
 import java.util.Locale;
 import java.util.UUID;
 
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
@@ -63,9 +68,13 @@ public class EventBehaviorTest extends BaseEventTest {
 		EventEngineUtil.setEventEngine(eventEngine);
 	}
 	
+	@Autowired
+	HibernateEventInterceptor interceptor;
+	
 	@AfterEach
 	public void afterTest() {
 		reset(eventEngine); // need to manually reset the event engine to clean up from previous test
+		interceptor.setMergeNestedTransactions(false);
 	}
 	
 	@Test
@@ -176,10 +185,24 @@ public class EventBehaviorTest extends BaseEventTest {
 		concept.addDescription(cd);
 		conceptService.saveConcept(concept);
 		
-		verify(eventEngine).fireAction(Event.Action.UPDATED.name(), concept);
+		verify(eventEngine).fireAction(eq(Event.Action.UPDATED.name()), eq(concept),
+		    argThat(changedCollections("org.openmrs.Concept.descriptions")));
 		verify(eventEngine).fireAction(Event.Action.CREATED.name(), cd);
 	}
 	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldFireASingleEventWhenSeveralChildCollectionsAreChanged() throws Exception {
+		Concept concept = conceptService.getConcept(5089);
+		concept.addDescription(new ConceptDescription("new descr", Locale.ENGLISH));
+		concept.addName(new ConceptName(UUID.randomUUID().toString(), Locale.ENGLISH));
+		conceptService.saveConcept(concept);
+		
+		verify(eventEngine).fireAction(eq(Event.Action.UPDATED.name()), eq(concept),
+		    argThat(changedCollections("org.openmrs.Concept.descriptions", "org.openmrs.Concept.names")));
+		verify(eventEngine, never()).fireAction(Event.Action.UPDATED.name(), concept);
+	}
+	
 	@Test
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public void shouldFireEventWhenAnElementIsRemovedFromAChildCollection() throws Exception {
@@ -188,7 +211,8 @@ public class EventBehaviorTest extends BaseEventTest {
 		concept.removeDescription(concept.getDescription());
 		conceptService.saveConcept(concept);
 		
-		verify(eventEngine).fireAction(Event.Action.UPDATED.name(), concept);
+		verify(eventEngine).fireAction(eq(Event.Action.UPDATED.name()), eq(concept),
+		    argThat(changedCollections("org.openmrs.Concept.descriptions")));
 	}
 	
 	@Test
@@ -307,6 +331,65 @@ public class EventBehaviorTest extends BaseEventTest {
 		verify(eventEngine, never()).fireAction(Event.Action.CREATED.name(), concept);
 	}
 	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldFireMergedEventsOnceWhenMergingNestedTransactions() throws Exception {
+		interceptor.setMergeNestedTransactions(true);
+		
+		Context.getService(MockNestedService.class).outerTransactionUpdatingPatient(false, false);
+		
+		Patient patient = Context.getPatientService().getPatient(2);
+		verify(eventEngine, times(1)).fireAction(Event.Action.UPDATED.name(), patient);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldFireEventsOfBothTransactionsWhenMergingNestedTransactions() throws Exception {
+		interceptor.setMergeNestedTransactions(true);
+		Concept concept = randomConcept();
+		
+		Context.getService(MockNestedService.class).outerTransaction(concept, false, false);
+		
+		Patient patient = Context.getPatientService().getPatient(2);
+		verify(eventEngine).fireAction(Event.Action.UPDATED.name(), patient);
+		verify(eventEngine).fireAction(Event.Action.CREATED.name(), concept);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldDropInnerEventsOnInnerRollbackWhenMergingNestedTransactions() throws Exception {
+		interceptor.setMergeNestedTransactions(true);
+		Concept concept = randomConcept();
+		
+		Context.getService(MockNestedService.class).outerTransaction(concept, false, true);
+		
+		Patient patient = Context.getPatientService().getPatient(2);
+		verify(eventEngine, never()).fireAction(Event.Action.UPDATED.name(), patient);
+		verify(eventEngine).fireAction(Event.Action.CREATED.name(), concept);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void shouldFireCommittedInnerEventsOnOuterRollbackWhenMergingNestedTransactions() throws Exception {
+		interceptor.setMergeNestedTransactions(true);
+		Concept concept = randomConcept();
+		
+		try {
+			Context.getService(MockNestedService.class).outerTransaction(concept, true, false);
+		}
+		catch (Exception e) {}
+		
+		Patient patient = Context.getPatientService().getPatient(2);
+		verify(eventEngine).fireAction(Event.Action.UPDATED.name(), patient);
+		verify(eventEngine, never()).fireAction(Event.Action.CREATED.name(), concept);
+	}
+	
+	ArgumentMatcher<EventMessage> changedCollections(String... roles) {
+		return message -> message != null
+		        && Arrays.asList(String.valueOf(message.get(EventMessage.CHANGED_COLLECTIONS)).split(","))
+		                .containsAll(Arrays.asList(roles));
+	}
+	
 	Concept randomConcept() {
 		Concept concept = new Concept();
 		ConceptName name = new ConceptName(UUID.randomUUID().toString(), Locale.ENGLISH);